@@ -0,0 +1,118 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Throughput versus CPU cost of the server's response codecs. Each codec
+ * compresses the same file through the ResponseBody the server sends, into a
+ * channel that only counts bytes, and reports input MB/s, CPU milliseconds per
+ * MB of input and the compression ratio.
+ *
+ * Run from this directory:
+ *   javac -d out ../server/*.java CompressionBenchmark.java
+ *   java -cp out CompressionBenchmark [--file=path] [--size=8388608] [--rounds=5]
+ *
+ * Without --file a text corpus of --size bytes is generated, since text is what
+ * the server compresses; pass a binary file to see what compression costs there.
+ */
+public class CompressionBenchmark {
+    private static final String[] CODECS = {
+            "identity", "deflate-1", "deflate-6", "deflate-9", "gzip-1", "gzip-6", "gzip-9"
+    };
+
+    /** Counts what it is given and throws it away. */
+    private static final class CountingChannel implements WritableByteChannel {
+        long count;
+
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            source.position(source.limit());
+            count += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ServerOptions options = ServerOptions.parse(args);
+        int rounds = options.getInt("rounds", 5);
+        String path = options.get("file", null);
+        File file = path != null ? new File(path) : createCorpus(options.getInt("size", 8 * 1024 * 1024));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = source.size();
+            double megabytes = length / (1024.0 * 1024.0);
+            System.out.printf("Input: %s (%d bytes)%n", file.getName(), length);
+            System.out.printf("%-10s %10s %12s %12s %10s%n", "codec", "MB/s", "CPU ms/MB", "output", "ratio");
+
+            for (String codec : CODECS) {
+                long bestElapsed = Long.MAX_VALUE;
+                long bestCpu = Long.MAX_VALUE;
+                long output = 0;
+                // Earlier rounds warm up the JIT; the best round is reported
+                for (int round = 0; round < rounds; round++) {
+                    CountingChannel sink = new CountingChannel();
+                    long cpuBefore = threads.getCurrentThreadCpuTime();
+                    long start = System.nanoTime();
+                    ResponseBody body = body(codec, source, length);
+                    try {
+                        body.writeTo(sink);
+                    } finally {
+                        body.close();
+                    }
+                    bestElapsed = Math.min(bestElapsed, System.nanoTime() - start);
+                    bestCpu = Math.min(bestCpu, threads.getCurrentThreadCpuTime() - cpuBefore);
+                    output = sink.count;
+                }
+                System.out.printf("%-10s %10.1f %12.2f %12d %10.3f%n", codec, megabytes / (bestElapsed / 1e9),
+                        bestCpu / 1e6 / megabytes, output, (double) output / length);
+            }
+        }
+    }
+
+    private static ResponseBody body(String codec, FileChannel source, long length) {
+        if (codec.equals("identity")) {
+            return ResponseBody.fileRegion(source, 0, length, new BufferPool(256 * 1024, 1));
+        }
+        String[] parts = codec.split("-");
+        return ResponseBody.compressed(source, 0, length, parts[0], Integer.parseInt(parts[1]), true);
+    }
+
+    /** Writes a file of word-like text, roughly as compressible as logs or source code. */
+    private static File createCorpus(int size) throws IOException {
+        File file = File.createTempFile("compression-corpus", ".txt");
+        file.deleteOnExit();
+        String[] words = {
+                "GET", "POST", "/download", "/upload", "filename", "HTTP/1.1", "200", "404", "Content-Length",
+                "keep-alive", "server", "client", "bytes", "range", "upload_20240101_120000.bin", "shared_files"
+        };
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]);
+            text.append(random.nextInt(8) == 0 ? '\n' : ' ');
+            if (random.nextInt(16) == 0) {
+                text.append(random.nextInt(100000));
+            }
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(text.substring(0, size).getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return file;
+    }
+}
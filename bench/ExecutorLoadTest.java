@@ -0,0 +1,167 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Load test comparing the blocking server's executor modes on concurrent downloads.
+ * For each mode it starts an in-process HTTPFileServer, fires the same number of
+ * simultaneous downloads at it and reports throughput and per-download latency.
+ *
+ * Run from a scratch directory (the server serves ./shared_files):
+ *   javac -d out ../server/*.java ExecutorLoadTest.java
+ *   java -cp out ExecutorLoadTest [--clients=200] [--file-size=1048576]
+ *        [--client-delay-ms=0] [--threads=10] [--modes=fixed,work-stealing,virtual]
+ *
+ * --client-delay-ms makes every client pause after each 64 KB it reads, which
+ * models slow links: that is where a 10-thread pool leaves clients queueing.
+ */
+public class ExecutorLoadTest {
+    private static final String TEST_FILE = "loadtest.bin";
+    private static final int BASE_PORT = 18080;
+
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = ServerOptions.parse(args);
+        int clients = options.getInt("clients", 200);
+        int fileSize = options.getInt("file-size", 1024 * 1024);
+        int clientDelayMs = options.getInt("client-delay-ms", 0);
+        int threads = options.getInt("threads", 10);
+        String[] modes = options.get("modes", defaultModes()).split(",");
+
+        createTestFile(fileSize);
+
+        System.out.printf("%-14s %8s %10s %10s %10s %10s %10s%n",
+                "executor", "clients", "total ms", "MB/s", "p50 ms", "p99 ms", "max ms");
+        for (int i = 0; i < modes.length; i++) {
+            runMode(modes[i].trim(), BASE_PORT + i, threads, clients, fileSize, clientDelayMs);
+        }
+    }
+
+    private static String defaultModes() {
+        boolean hasVirtualThreads = Runtime.version().feature() >= 21;
+        return hasVirtualThreads ? "fixed,work-stealing,virtual" : "fixed,work-stealing";
+    }
+
+    private static void createTestFile(int size) throws IOException {
+        File dir = new File(HTTPFileServer.SHARED_FOLDER);
+        dir.mkdirs();
+        File file = new File(dir, TEST_FILE);
+        if (file.length() == size)
+            return;
+
+        byte[] chunk = new byte[64 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                fos.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    private static void runMode(String executor, int port, int threads, int clients, int fileSize,
+            int clientDelayMs) throws Exception {
+        ServerOptions serverOptions = ServerOptions.parse(new String[] {
+                "--port=" + port, "--mode=blocking", "--executor=" + executor, "--threads=" + threads,
+                "--access-log=off" });
+        HTTPFileServer server = new HTTPFileServer(serverOptions);
+
+        // Keep the server's startup messages out of the results
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.err.println("Server failed: " + e.getMessage());
+            }
+        }, "server-" + executor);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        awaitListening(port);
+
+        ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            results.add(clientPool.submit(() -> {
+                ready.countDown();
+                go.await();
+                return download(port, fileSize, clientDelayMs);
+            }));
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+
+        long[] latencies = new long[clients];
+        int failures = 0;
+        for (int i = 0; i < clients; i++) {
+            try {
+                latencies[i] = results.get(i).get();
+            } catch (ExecutionException e) {
+                failures++;
+                latencies[i] = Long.MAX_VALUE;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        clientPool.shutdown();
+        server.stop();
+        System.setOut(console);
+
+        Arrays.sort(latencies);
+        double seconds = elapsed / 1e9;
+        double megabytes = (double) fileSize * (clients - failures) / (1024 * 1024);
+        System.out.printf("%-14s %8d %10.0f %10.1f %10.1f %10.1f %10.1f%s%n",
+                executor, clients, elapsed / 1e6, megabytes / seconds,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), latencies[clients - 1 - failures] / 1e6,
+                failures > 0 ? "  (" + failures + " failed)" : "");
+    }
+
+    private static long download(int port, int fileSize, int clientDelayMs) throws Exception {
+        long start = System.nanoTime();
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /download?filename=" + TEST_FILE + " HTTP/1.1\r\n" +
+                    "Host: localhost:" + port + "\r\n" +
+                    "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (clientDelayMs > 0) {
+                    Thread.sleep(clientDelayMs);
+                }
+            }
+            if (total < fileSize) {
+                throw new IOException("Short download: " + total + " bytes");
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
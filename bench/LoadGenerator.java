@@ -0,0 +1,373 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * End-to-end load generator for catching performance regressions on one
+ * machine. It downloads files of a configurable size mix over a fixed number
+ * of connections for a fixed time, then reports throughput and latency
+ * percentiles (p50, p90, p99, p99.9, max) for each size and overall.
+ *
+ * By default it starts the server in-process on a free port; with --external
+ * it loads a server that is already running on --port instead. Either way the
+ * test files are written to ./shared_files, so run it from a scratch directory,
+ * or from the external server's directory:
+ *   javac -d out ../server/*.java LoadGenerator.java
+ *   java -cp out LoadGenerator [--connections=32] [--duration=10] [--warmup=2]
+ *        [--sizes=4096:70,65536:25,1048576:5] [--keep-alive=true|false] [--rate=0]
+ *        [--server-args="--mode=nio --io-threads=2"] [--external --port=8080]
+ *
+ * --sizes is a list of size:weight pairs. With --rate=0 each connection sends
+ * its next request as soon as the last one finishes (closed loop). A rate in
+ * requests per second schedules requests at fixed intervals instead (open loop)
+ * and measures each one from when it was due, so a stalled server shows up in
+ * the tail percentiles rather than just slowing the senders down.
+ */
+public class LoadGenerator {
+    private static final String FILE_PREFIX = "loadgen_";
+
+    /** Latencies of one size class on one connection, in nanoseconds. */
+    private static final class Samples {
+        long[] latencies = new long[1024];
+        int count;
+        long bytes;
+        int errors;
+
+        void add(long nanos, long bodyBytes) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            bytes += bodyBytes;
+        }
+
+        void addAll(Samples other) {
+            if (count + other.count > latencies.length) {
+                latencies = Arrays.copyOf(latencies, Math.max(latencies.length * 2, count + other.count));
+            }
+            System.arraycopy(other.latencies, 0, latencies, count, other.count);
+            count += other.count;
+            bytes += other.bytes;
+            errors += other.errors;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = ServerOptions.parse(args);
+        int connections = options.getInt("connections", 32);
+        int durationSeconds = options.getInt("duration", 10);
+        int warmupSeconds = options.getInt("warmup", 2);
+        boolean keepAlive = options.getBoolean("keep-alive", true);
+        double rate = Double.parseDouble(options.get("rate", "0"));
+        boolean external = options.getBoolean("external", false);
+        int port = options.getInt("port", external ? 8080 : freePort());
+        int[] sizes = parseSizes(options.get("sizes", "4096:70,65536:25,1048576:5"));
+        int[] weights = parseWeights(options.get("sizes", "4096:70,65536:25,1048576:5"));
+
+        for (int size : sizes) {
+            createTestFile(size);
+        }
+        HTTPFileServer server = null;
+        if (external) {
+            // Give the server's file watcher time to index the new files
+            Thread.sleep(1000);
+        } else {
+            server = startServer(port, options.get("server-args", ""));
+        }
+
+        System.out.printf("%d connections, keep-alive %s, %s, %d s after %d s warm-up%n", connections,
+                keepAlive ? "on" : "off", rate > 0 ? "open loop at " + rate + " req/s" : "closed loop",
+                durationSeconds, warmupSeconds);
+
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        // Each connection's requests are spread evenly; a random phase keeps them from arriving together
+        long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        List<Future<Samples[]>> results = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            long seed = 42 + i;
+            results.add(pool.submit(() -> runConnection(port, sizes, weights, keepAlive, interval, seed, start,
+                    measureFrom, end)));
+        }
+        Samples[] total = new Samples[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            total[i] = new Samples();
+        }
+        for (Future<Samples[]> result : results) {
+            Samples[] connectionSamples = result.get();
+            for (int i = 0; i < sizes.length; i++) {
+                total[i].addAll(connectionSamples[i]);
+            }
+        }
+        pool.shutdown();
+        if (server != null) {
+            server.stop();
+        }
+
+        report(sizes, total, durationSeconds);
+    }
+
+    private static Samples[] runConnection(int port, int[] sizes, int[] weights, boolean keepAlive, long interval,
+            long seed, long start, long measureFrom, long end) throws InterruptedException {
+        Random random = new Random(seed);
+        int totalWeight = Arrays.stream(weights).sum();
+        Samples[] samples = new Samples[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            samples[i] = new Samples();
+        }
+        Connection connection = null;
+        long due = start + (interval > 0 ? (long) (random.nextDouble() * interval) : 0);
+        byte[] buffer = new byte[64 * 1024];
+
+        while (true) {
+            if (interval > 0) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+            long sent = interval > 0 ? due : System.nanoTime();
+            if (sent >= end)
+                break;
+            due += interval;
+
+            int pick = random.nextInt(totalWeight);
+            int sizeIndex = 0;
+            while (pick >= weights[sizeIndex]) {
+                pick -= weights[sizeIndex++];
+            }
+
+            long bodyBytes;
+            try {
+                if (connection == null) {
+                    connection = new Connection(port);
+                }
+                bodyBytes = connection.download(FILE_PREFIX + sizes[sizeIndex] + ".bin", keepAlive, buffer);
+                if (bodyBytes < 0 && connection.reused) {
+                    // The server closed an idle connection as we reused it; that isn't the server being slow
+                    connection.close();
+                    connection = new Connection(port);
+                    bodyBytes = connection.download(FILE_PREFIX + sizes[sizeIndex] + ".bin", keepAlive, buffer);
+                }
+            } catch (IOException e) {
+                bodyBytes = -1;
+            }
+            long finished = System.nanoTime();
+
+            if (bodyBytes != sizes[sizeIndex]) {
+                if (sent >= measureFrom) {
+                    samples[sizeIndex].errors++;
+                }
+                if (connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+                continue;
+            }
+            if (sent >= measureFrom) {
+                samples[sizeIndex].add(finished - sent, bodyBytes);
+            }
+            if (!keepAlive || connection.closing) {
+                connection.close();
+                connection = null;
+            }
+        }
+        if (connection != null) {
+            connection.close();
+        }
+        return samples;
+    }
+
+    /** One client connection, reused across requests while keep-alive lasts. */
+    private static final class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final String host;
+        // Set once the connection has served a request, so a failure may just mean it timed out idle
+        boolean reused;
+        // The server said it will close the connection after this response
+        boolean closing;
+
+        Connection(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream(), 512);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            host = "localhost:" + port;
+        }
+
+        /** Downloads a file and returns its body length, or -1 if the connection closed before a response. */
+        long download(String filename, boolean keepAlive, byte[] buffer) throws IOException {
+            out.write(("GET /download?filename=" + filename + " HTTP/1.1\r\n" +
+                    "Host: " + host + "\r\n" +
+                    "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n" +
+                    "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            String statusLine = readLine();
+            if (statusLine == null)
+                return -1;
+            reused = true;
+            long contentLength = -1;
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = line.substring(0, colon).trim().toLowerCase();
+                String value = line.substring(colon + 1).trim();
+                if (name.equals("content-length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equals("connection") && value.equalsIgnoreCase("close")) {
+                    closing = true;
+                }
+            }
+            if (!statusLine.startsWith("HTTP/1.1 200") || contentLength < 0) {
+                throw new IOException("Unexpected response: " + statusLine);
+            }
+
+            long remaining = contentLength;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Response ended early");
+                }
+                remaining -= read;
+            }
+            return contentLength;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    int length = line.length();
+                    return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1)
+                            : line.toString();
+                }
+                line.append((char) b);
+            }
+            return line.length() == 0 ? null : line.toString();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Done with it either way
+            }
+        }
+    }
+
+    private static void report(int[] sizes, Samples[] bySize, int durationSeconds) {
+        System.out.printf("%-9s %10s %7s %10s %9s %9s %9s %9s %9s %9s%n", "size", "requests", "errors", "req/s",
+                "MB/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        Samples all = new Samples();
+        for (int i = 0; i < sizes.length; i++) {
+            printRow(sizeLabel(sizes[i]), bySize[i], durationSeconds);
+            all.addAll(bySize[i]);
+        }
+        if (sizes.length > 1) {
+            printRow("all", all, durationSeconds);
+        }
+    }
+
+    private static void printRow(String label, Samples samples, int durationSeconds) {
+        long[] sorted = Arrays.copyOf(samples.latencies, samples.count);
+        Arrays.sort(sorted);
+        System.out.printf("%-9s %10d %7d %10.1f %9.1f %9.3f %9.3f %9.3f %9.3f %9.3f%n", label, samples.count,
+                samples.errors, (double) samples.count / durationSeconds,
+                samples.bytes / (1024.0 * 1024.0) / durationSeconds, percentile(sorted, 0.50),
+                percentile(sorted, 0.90), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0);
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static String sizeLabel(int size) {
+        if (size >= 1024 * 1024 && size % (1024 * 1024) == 0)
+            return size / (1024 * 1024) + " MB";
+        if (size >= 1024 && size % 1024 == 0)
+            return size / 1024 + " KB";
+        return size + " B";
+    }
+
+    private static int[] parseSizes(String spec) {
+        return Arrays.stream(spec.split(",")).mapToInt(pair -> Integer.parseInt(pair.split(":")[0].trim())).toArray();
+    }
+
+    private static int[] parseWeights(String spec) {
+        return Arrays.stream(spec.split(","))
+                .mapToInt(pair -> pair.contains(":") ? Integer.parseInt(pair.split(":")[1].trim()) : 1).toArray();
+    }
+
+    private static void createTestFile(int size) throws IOException {
+        File dir = new File(HTTPFileServer.SHARED_FOLDER);
+        dir.mkdirs();
+        File file = new File(dir, FILE_PREFIX + size + ".bin");
+        if (file.length() == size)
+            return;
+
+        byte[] chunk = new byte[64 * 1024];
+        new Random(size).nextBytes(chunk);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                fos.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    private static HTTPFileServer startServer(int port, String serverArgs) throws Exception {
+        List<String> args = new ArrayList<>();
+        for (String arg : serverArgs.trim().split("\\s+")) {
+            if (!arg.isEmpty()) {
+                args.add(arg);
+            }
+        }
+        args.add("--port=" + port);
+        args.add("--access-log=off");
+        HTTPFileServer server = new HTTPFileServer(ServerOptions.parse(args.toArray(new String[0])));
+
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.err.println("Server failed: " + e.getMessage());
+            }
+        }, "server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        awaitListening(port);
+        return server;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Microbenchmark of HTTPRequestParser against the original BufferedReader/split
+ * parser it replaced, reporting time and heap allocation per parsed request.
+ *
+ * Run from this directory:
+ *   javac -d out ../server/*.java RequestParserBenchmark.java
+ *   java -cp out RequestParserBenchmark [--iterations=2000000] [--rounds=5]
+ */
+public class RequestParserBenchmark {
+    private static final byte[] DOWNLOAD_REQUEST = ("GET /download?filename=tanjiro.jpg HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "User-Agent: HTTPFileClient\r\n" +
+            "Accept: */*\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] UPLOAD_REQUEST = ("POST /upload HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Content-Type: application/octet-stream\r\n" +
+            "Content-Length: 10801\r\n" +
+            "X-Filename: img2.jpg\r\n" +
+            "Content-Disposition: attachment; filename=\"img2.jpg\"\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private interface Parser {
+        HTTPFileServer.HTTPRequest parse(byte[] head) throws IOException;
+    }
+
+    // Defeats dead-code elimination of the parse results
+    private static int sink;
+
+    public static void main(String[] args) throws IOException {
+        ServerOptions options = ServerOptions.parse(args);
+        int iterations = options.getInt("iterations", 2_000_000);
+        int rounds = options.getInt("rounds", 5);
+
+        HTTPRequestParser byteParser = new HTTPRequestParser(16 * 1024);
+        Parser current = head -> {
+            byteParser.parse(head, 0, head.length);
+            return byteParser.request();
+        };
+        Parser legacy = head -> parseLegacy(
+                new BufferedReader(new InputStreamReader(new ByteArrayInputStream(head))));
+
+        System.out.printf("%-10s %-8s %12s %14s%n", "parser", "request", "ns/op", "bytes/op");
+        for (int round = 1; round <= rounds; round++) {
+            boolean report = round == rounds;
+            run("legacy", "GET", legacy, DOWNLOAD_REQUEST, iterations, report);
+            run("byte", "GET", current, DOWNLOAD_REQUEST, iterations, report);
+            run("legacy", "POST", legacy, UPLOAD_REQUEST, iterations, report);
+            run("byte", "POST", current, UPLOAD_REQUEST, iterations, report);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void run(String name, String label, Parser parser, byte[] head, int iterations, boolean report)
+            throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            HTTPFileServer.HTTPRequest request = parser.parse(head);
+            sink += request.path.length() + request.headers.size();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // Earlier rounds only warm up the JIT
+        if (report) {
+            System.out.printf("%-10s %-8s %12.1f %14.1f%n", name, label,
+                    (double) elapsed / iterations, (double) allocated / iterations);
+        }
+    }
+
+    /** The server's original parseHTTPRequest, kept here as the baseline. */
+    private static HTTPFileServer.HTTPRequest parseLegacy(BufferedReader in) throws IOException {
+        String requestLine = in.readLine();
+        if (requestLine == null)
+            return null;
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3)
+            return null;
+
+        HTTPFileServer.HTTPRequest request = new HTTPFileServer.HTTPRequest();
+        request.method = parts[0];
+        request.path = parts[1];
+        request.version = parts[2];
+        request.headers = new HashMap<>();
+
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            String[] headerParts = line.split(": ", 2);
+            if (headerParts.length == 2) {
+                request.headers.put(headerParts[0].toLowerCase(), headerParts[1]);
+            }
+        }
+
+        return request;
+    }
+}
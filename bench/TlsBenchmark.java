@@ -0,0 +1,253 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.*;
+
+/**
+ * Compares HTTPS with plain HTTP on an in-process HTTPFileServer, in each
+ * serving mode:
+ *   - connection rate: one small download per connection, over plain TCP, over
+ *     TLS with a full handshake every time (a fresh client context, so nothing
+ *     to resume), and over TLS resuming the session of an earlier connection
+ *   - bulk throughput: simultaneous large downloads over each
+ *
+ * Run from a scratch directory (the server serves ./shared_files):
+ *   javac -d out ../server/*.java TlsBenchmark.java
+ *   java -cp out TlsBenchmark [--connections=500] [--threads=4] [--downloads=4]
+ *        [--file-size=67108864] [--modes=blocking,nio] [--keystore=server.p12]
+ *        [--keystore-password=changeit]
+ *
+ * Without --keystore a self-signed one is made with keytool in the current
+ * directory. The client trusts the keystore's own certificate.
+ */
+public class TlsBenchmark {
+    private static final String SMALL_FILE = "tlsbench-small.bin";
+    private static final String LARGE_FILE = "tlsbench-large.bin";
+    private static final String GENERATED_KEYSTORE = "tlsbench.p12";
+    private static final int BASE_PORT = 18180;
+
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = ServerOptions.parse(args);
+        int connections = options.getInt("connections", 500);
+        int threads = options.getInt("threads", 4);
+        int downloads = options.getInt("downloads", 4);
+        int fileSize = options.getInt("file-size", 64 * 1024 * 1024);
+        String[] modes = options.get("modes", "blocking,nio").split(",");
+        String password = options.get("keystore-password", "changeit");
+        String keystore = options.get("keystore", null);
+        if (keystore == null) {
+            keystore = GENERATED_KEYSTORE;
+            generateKeystore(keystore, password);
+        }
+
+        createTestFile(SMALL_FILE, 1024);
+        createTestFile(LARGE_FILE, fileSize);
+        TrustManager[] trust = trustManagers(keystore, password);
+
+        for (int i = 0; i < modes.length; i++) {
+            String mode = modes[i].trim();
+            int port = BASE_PORT + 2 * i;
+            int tlsPort = port + 1;
+            HTTPFileServer server = startServer(mode, port, tlsPort, keystore, password);
+            try {
+                System.out.printf("%n%s mode%n", mode);
+                System.out.printf("%-14s %8s %10s %10s %10s %10s%n",
+                        "connections", "count", "total ms", "conn/s", "p50 ms", "p99 ms");
+                SSLContext shared = clientContext(trust);
+                // One connection first, so every measured one has a session to resume
+                download(tlsPort, shared, SMALL_FILE);
+                long resumedBefore = server.tls.handshakesResumed.sum();
+                runConnections("plain", connections, threads, () -> download(port, null, SMALL_FILE));
+                runConnections("tls full", connections, threads,
+                        () -> download(tlsPort, clientContext(trust), SMALL_FILE));
+                runConnections("tls resumed", connections, threads,
+                        () -> download(tlsPort, shared, SMALL_FILE));
+                // Below the count when concurrent connections outrun the TLS 1.3 tickets the client has kept
+                System.out.printf("(server counted %d resumed handshakes)%n",
+                        server.tls.handshakesResumed.sum() - resumedBefore);
+
+                // Once each first, so the cipher code is compiled before it is timed
+                download(port, null, LARGE_FILE);
+                download(tlsPort, shared, LARGE_FILE);
+                System.out.printf("%-14s %8s %10s %10s%n", "throughput", "count", "total ms", "MB/s");
+                runThroughput("plain", downloads, fileSize, () -> download(port, null, LARGE_FILE));
+                runThroughput("tls", downloads, fileSize, () -> download(tlsPort, shared, LARGE_FILE));
+            } finally {
+                server.stop();
+            }
+        }
+    }
+
+    private static void generateKeystore(String keystore, String password) throws Exception {
+        if (new File(keystore).exists())
+            return;
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "httpfs",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "30",
+                "-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", keystore, "-storepass", password)
+                .inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed; pass --keystore instead");
+        }
+    }
+
+    private static TrustManager[] trustManagers(String keystore, String password) throws Exception {
+        KeyStore keys = KeyStore.getInstance(new File(keystore), password.toCharArray());
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(keys);
+        return factory.getTrustManagers();
+    }
+
+    /** A client context of its own, with its own session cache. */
+    private static SSLContext clientContext(TrustManager[] trust) throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust, null);
+        return context;
+    }
+
+    private static void createTestFile(String name, int size) throws IOException {
+        File dir = new File(HTTPFileServer.SHARED_FOLDER);
+        dir.mkdirs();
+        File file = new File(dir, name);
+        if (file.length() == size)
+            return;
+
+        byte[] chunk = new byte[64 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (int written = 0; written < size; written += chunk.length) {
+                fos.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    private static HTTPFileServer startServer(String mode, int port, int tlsPort, String keystore,
+            String password) throws Exception {
+        ServerOptions serverOptions = ServerOptions.parse(new String[] {
+                "--port=" + port, "--tls-port=" + tlsPort, "--mode=" + mode,
+                "--tls-keystore=" + keystore, "--tls-keystore-password=" + password,
+                "--access-log=off" });
+        HTTPFileServer server = new HTTPFileServer(serverOptions);
+
+        // Keep the server's startup messages out of the results
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.err.println("Server failed: " + e.getMessage());
+            }
+        }, "server-" + mode);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try {
+            // Both listeners are bound before either accepts; a bare probe would only count as a failed handshake
+            awaitListening(port);
+        } finally {
+            System.setOut(console);
+        }
+        return server;
+    }
+
+    private static void runConnections(String label, int connections, int threads, Callable<Long> task)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            results.add(pool.submit(() -> {
+                long begun = System.nanoTime();
+                task.call();
+                return System.nanoTime() - begun;
+            }));
+        }
+        long[] latencies = new long[connections];
+        int failures = 0;
+        for (int i = 0; i < connections; i++) {
+            try {
+                latencies[i] = results.get(i).get();
+            } catch (ExecutionException e) {
+                failures++;
+                latencies[i] = Long.MAX_VALUE;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("%-14s %8d %10.0f %10.0f %10.2f %10.2f%s%n",
+                label, connections, elapsed / 1e6, (connections - failures) / (elapsed / 1e9),
+                percentile(latencies, 0.50), percentile(latencies, 0.99),
+                failures > 0 ? "  (" + failures + " failed)" : "");
+    }
+
+    private static void runThroughput(String label, int downloads, int fileSize, Callable<Long> task)
+            throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(downloads);
+        List<Future<Long>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < downloads; i++) {
+            results.add(pool.submit(task));
+        }
+        AtomicLong bytes = new AtomicLong();
+        int failures = 0;
+        for (Future<Long> result : results) {
+            try {
+                bytes.addAndGet(result.get());
+            } catch (ExecutionException e) {
+                failures++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        System.out.printf("%-14s %8d %10.0f %10.1f%s%n",
+                label, downloads, elapsed / 1e6, bytes.get() / (1024.0 * 1024) / (elapsed / 1e9),
+                failures > 0 ? "  (" + failures + " failed)" : "");
+    }
+
+    /** Downloads a file on a connection of its own, over TLS if context is set; returns the bytes read. */
+    private static long download(int port, SSLContext context, String file) throws Exception {
+        Socket socket = context == null ? new Socket("localhost", port)
+                : context.getSocketFactory().createSocket("localhost", port);
+        try (socket) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET /download?filename=" + file + " HTTP/1.1\r\n" +
+                    "Host: localhost:" + port + "\r\n" +
+                    "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+            return total;
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import httpfs.jmh.ServerAccess;
+
+/** ServerAccess on the real server classes; see there for why this lives in the default package. */
+public class ServerAccessImpl implements ServerAccess {
+    private final HTTPRequestParser parser = new HTTPRequestParser(16 * 1024);
+    private HTTPFileServer server;
+
+    @Override
+    public Object parseRequest(byte[] head) throws IOException {
+        parser.parse(head, 0, head.length);
+        return parser.request();
+    }
+
+    @Override
+    public String extractFilename(String path) throws IOException {
+        return HTTPFileServer.queryParameter(path, "filename");
+    }
+
+    @Override
+    public void createServer(String... options) throws IOException {
+        String[] args = new String[options.length + 1];
+        args[0] = "--access-log=off";
+        System.arraycopy(options, 0, args, 1, options.length);
+        server = new HTTPFileServer(ServerOptions.parse(args));
+        server.fileIndex.build();
+    }
+
+    @Override
+    public long sendFile(String filename, WritableByteChannel target) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("host", "localhost:8080");
+        Response response = server.route(request("GET", "/download?filename=" + filename, headers)).response;
+        try {
+            ByteBuffer head = ByteBuffer.wrap(response.encodeHead());
+            while (head.hasRemaining()) {
+                target.write(head);
+            }
+            while (!response.body.writeTo(target)) {
+                // Writing to a file never stalls
+            }
+        } finally {
+            response.close();
+        }
+        return response.body.length();
+    }
+
+    @Override
+    public int saveUpload(byte[] body, int chunkSize) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("host", "localhost:8080");
+        headers.put("content-length", Integer.toString(body.length));
+        headers.put("x-filename", "bench.bin");
+        Route route = server.route(request("POST", "/upload", headers));
+        ByteBuffer input = ByteBuffer.wrap(body);
+        boolean complete = false;
+        while (!complete) {
+            input.limit(Math.min(body.length, input.position() + chunkSize));
+            complete = route.decoder.decode(input, route.handler);
+            // Held back while the disk catches up, as a connection is
+            CompletableFuture<Void> ready = route.handler.ready();
+            if (ready != null) {
+                await(ready);
+            }
+        }
+        Response response = route.handler.finish(true);
+        if (response.pending != null) {
+            // Waits out the writes and the sync, so the benchmark measures the whole upload
+            response = await(response.pending);
+        }
+        response.close();
+        return response.statusCode;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = Response.cause(e);
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    @Override
+    public void clearUploads() throws IOException {
+        for (File directory : new File[] { new File(HTTPFileServer.UPLOAD_FOLDER),
+                new File(HTTPFileServer.UPLOAD_FOLDER, UploadStore.STORE_FOLDER) }) {
+            File[] files = directory.listFiles(File::isFile);
+            for (File file : files != null ? files : new File[0]) {
+                file.delete();
+            }
+        }
+    }
+
+    private static HTTPFileServer.HTTPRequest request(String method, String path, Map<String, String> headers) {
+        HTTPFileServer.HTTPRequest request = new HTTPFileServer.HTTPRequest();
+        request.method = method;
+        request.path = path;
+        request.version = "HTTP/1.1";
+        request.headers = headers;
+        request.keepAlive = true;
+        return request;
+    }
+}
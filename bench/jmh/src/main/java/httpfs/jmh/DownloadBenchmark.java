@@ -0,0 +1,59 @@
+package httpfs.jmh;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Answering a download: index lookup, response head, and sending the file with
+ * sendfile or through a copy buffer. The response goes to /dev/null, so what is
+ * measured is the server's own work per response rather than loopback TCP.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownloadBenchmark {
+    @Param({ "4096", "1048576" })
+    public int size;
+
+    @Param({ "true", "false" })
+    public boolean zeroCopy;
+
+    private ServerAccess server;
+    private String filename;
+    private FileChannel sink;
+
+    @Setup
+    public void setUp() throws IOException {
+        File shared = new File("shared_files");
+        shared.mkdirs();
+        filename = "jmh_" + size + ".bin";
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        try (FileOutputStream out = new FileOutputStream(new File(shared, filename))) {
+            out.write(content);
+        }
+
+        server = ServerAccess.create();
+        server.createServer("--zero-copy=" + zeroCopy);
+        sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sink.close();
+    }
+
+    @Benchmark
+    public long sendFileResponse() throws IOException {
+        return server.sendFile(filename, sink);
+    }
+}
@@ -0,0 +1,57 @@
+package httpfs.jmh;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Parsing a request head and reading the filename out of a download path. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+    private static final byte[] DOWNLOAD_REQUEST = ("GET /download?filename=tanjiro.jpg HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "User-Agent: HTTPFileClient\r\n" +
+            "Accept: */*\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "If-None-Match: \"5a1c3f0e9b2d4c7a8e6f1b3d5c7a9e0f\"\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] UPLOAD_REQUEST = ("POST /upload HTTP/1.1\r\n" +
+            "Host: localhost:8080\r\n" +
+            "Content-Type: application/octet-stream\r\n" +
+            "Content-Length: 10801\r\n" +
+            "X-Filename: img2.jpg\r\n" +
+            "Content-Disposition: attachment; filename=\"img2.jpg\"\r\n" +
+            "Digest: sha-256=47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=\r\n" +
+            "Connection: keep-alive\r\n" +
+            "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private ServerAccess server;
+
+    @Setup
+    public void setUp() {
+        server = ServerAccess.create();
+    }
+
+    @Benchmark
+    public Object parseDownloadRequest() throws IOException {
+        return server.parseRequest(DOWNLOAD_REQUEST);
+    }
+
+    @Benchmark
+    public Object parseUploadRequest() throws IOException {
+        return server.parseRequest(UPLOAD_REQUEST);
+    }
+
+    @Benchmark
+    public String extractFilename() throws IOException {
+        return server.extractFilename("/download?filename=My%20Holiday%20Photos.tar.gz");
+    }
+}
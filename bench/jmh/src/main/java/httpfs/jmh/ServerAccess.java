@@ -0,0 +1,53 @@
+package httpfs.jmh;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The server operations the benchmarks measure. The server is written in the
+ * default package, which code in a named package can't refer to, and JMH won't
+ * generate benchmarks in the default package. So the benchmarks call the server
+ * through this interface, implemented by the default-package ServerAccessImpl
+ * and loaded by name. Each benchmark sees a single implementation, so the JIT
+ * inlines the call and it costs nothing measurable.
+ *
+ * An instance is not thread-safe; each benchmark thread gets its own.
+ */
+public interface ServerAccess {
+
+    static ServerAccess create() {
+        try {
+            return (ServerAccess) Class.forName("ServerAccessImpl").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("ServerAccessImpl is missing from the benchmark jar", e);
+        }
+    }
+
+    /** Parses one complete request head and returns the request. */
+    Object parseRequest(byte[] head) throws IOException;
+
+    /** The filename query parameter of a request path, as the download handler reads it. */
+    String extractFilename(String path) throws IOException;
+
+    /**
+     * Sets up a server in the working directory, with the given --name=value
+     * options, without binding its port. Files put in ./shared_files before this
+     * call are indexed.
+     */
+    void createServer(String... options) throws IOException;
+
+    /**
+     * Answers GET /download for the file and writes the whole response, head and
+     * body, to target. Returns the number of body bytes.
+     */
+    long sendFile(String filename, WritableByteChannel target) throws IOException;
+
+    /**
+     * Sends body through the server's POST /upload path, fed to the body decoder
+     * in pieces of chunkSize bytes as a connection would. Returns the status code.
+     */
+    int saveUpload(byte[] body, int chunkSize) throws IOException;
+
+    /** Deletes stored uploads, so repeated uploads don't fill the disk. */
+    void clearUploads() throws IOException;
+}
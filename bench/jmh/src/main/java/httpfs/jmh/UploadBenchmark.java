@@ -0,0 +1,55 @@
+package httpfs.jmh;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Receiving an upload: body decoding, writing to the upload store's temp file
+ * with SHA-256 hashing, and the rename and hard link that store it. Every
+ * upload has new content, so none is deduplicated; stored uploads are deleted
+ * after each one so the benchmark doesn't fill the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadBenchmark {
+    @Param({ "65536", "1048576" })
+    public int size;
+
+    // How much of the body a connection hands the decoder at a time
+    @Param({ "65536" })
+    public int chunkSize;
+
+    private ServerAccess server;
+    private byte[] body;
+    private long sequence;
+
+    @Setup
+    public void setUp() throws IOException {
+        body = new byte[size];
+        new Random(42).nextBytes(body);
+        server = ServerAccess.create();
+        server.createServer();
+    }
+
+    @Benchmark
+    public int saveUploadedFile() throws IOException {
+        // A different first 8 bytes each time keeps the content, and so its hash, unique
+        long value = ++sequence;
+        for (int i = 0; i < 8; i++) {
+            body[i] = (byte) (value >>> (8 * i));
+        }
+        return server.saveUpload(body, chunkSize);
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeUpload() throws IOException {
+        server.clearUploads();
+    }
+}
@@ -1,24 +1,101 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.net.ssl.*;
 
 public class HTTPFileClient {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 8080;
+    private static final int PROGRESS_BAR_WIDTH = 20;
+    private static final String DOWNLOAD_FOLDER = "downloads";
+    private static final int DEFAULT_SEGMENTS = 4;
+    private static final int SEGMENT_ATTEMPTS = 3;
+    private static final int DEFAULT_UPLOAD_WORKERS = 4;
+    private static final int PART_ATTEMPTS = 3;
+    private static final int LIST_PAGE_SIZE = 20;
+    private static final int DEFAULT_BATCH_PARALLEL = 4;
+    private static final int DEFAULT_BATCH_RETRIES = 2;
+    private static final long DEFAULT_BATCH_PROGRESS_MS = 1000;
+    private static final DateTimeFormatter LIST_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    private static String serverHost = SERVER_HOST;
+    private static int serverPort = SERVER_PORT;
+    // Null for plain HTTP. One factory for every connection, so its session cache lets them resume TLS sessions
+    private static SSLSocketFactory tlsSockets;
+    // With --cluster, where each file lives; the node named on the command line answers everything else
+    private static NodeRing ring;
+    private static String homeHost;
+    private static int homePort;
+
+    // What printProgress last drew, so it can skip redrawing the same bar
+    private static int lastProgressPercent = -1;
+    private static String lastProgressLabel;
+
+    // Kept open between menu choices so consecutive transfers skip the TCP handshake
+    private ServerConnection connection;
 
     public static void main(String[] args) {
+        BatchRun batch = null;
+        try {
+            Map<String, String> options = configure(args);
+            if (options.containsKey("batch")) {
+                batch = new BatchRun(options);
+            }
+        } catch (IllegalArgumentException | IOException | GeneralSecurityException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java HTTPFileClient [--host=localhost] [--port=8080]"
+                    + " [--tls [--truststore=file [--truststore-password=pw]] | --cluster]"
+                    + " [--batch=manifest|- [--parallel=4] [--retries=2] [--summary=file|-] [--progress-interval=ms]]");
+            return;
+        }
+        if (batch != null) {
+            System.exit(batch.run() ? 0 : 1);
+        }
         HTTPFileClient client = new HTTPFileClient();
         Scanner scanner = new Scanner(System.in);
 
-        System.out.println("Server: " + SERVER_HOST + ":" + SERVER_PORT);
+        System.out.println("Server: " + (tlsSockets != null ? "https://" : "") + serverHost + ":" + serverPort);
+        if (ring != null) {
+            System.out.println("Cluster of " + ring.nodes.size() + " nodes: " + String.join(", ", ring.nodes));
+        }
         System.out.println();
 
         while (true) {
             System.out.println("Choose an option:");
             System.out.println("1. Upload file");
             System.out.println("2. Download file");
-            System.out.println("3. Exit");
-            System.out.print("Enter your choice (1-3): ");
+            System.out.println("3. Download several files");
+            System.out.println("4. Download file in parallel segments");
+            System.out.println("5. Upload file in parallel parts (resumable)");
+            System.out.println("6. Download several files as one archive");
+            System.out.println("7. Upload several files as one archive");
+            System.out.println("8. Browse files on the server");
+            System.out.println("9. Search files on the server");
+            System.out.println("10. Exit");
+            System.out.print("Enter your choice (1-10): ");
 
             String choice = scanner.nextLine().trim();
 
@@ -30,231 +107,2524 @@ public class HTTPFileClient {
                     client.downloadFile(scanner);
                     break;
                 case "3":
+                    client.downloadFiles(scanner);
+                    break;
+                case "4":
+                    client.downloadSegmented(scanner);
+                    break;
+                case "5":
+                    client.uploadParallel(scanner);
+                    break;
+                case "6":
+                    client.downloadArchive(scanner);
+                    break;
+                case "7":
+                    client.uploadArchive(scanner);
+                    break;
+                case "8":
+                    client.browseFiles(scanner);
+                    break;
+                case "9":
+                    client.searchFiles(scanner);
+                    break;
+                case "10":
+                    client.closeConnection();
                     return;
                 default:
-                    System.out.println("Invalid choice. Please enter 1, 2, or 3.");
+                    System.out.println("Invalid choice. Please enter a number from 1 to 10.");
             }
             System.out.println();
         }
     }
 
-    private void uploadFile(Scanner scanner) {
-        System.out.print("Enter the path of the file to upload: ");
-        String filePath = scanner.nextLine().trim();
+    /**
+     * Reads the command line. --tls speaks HTTPS, trusting the certificates in
+     * --truststore (the server's own keystore will do for a self-signed one) or
+     * else the JDK's default authorities. The port defaults to 8443 with --tls.
+     * --cluster asks the server for its cluster's nodes and then sends single
+     * file transfers straight to the node that owns the file. Returns every
+     * option, for those only some modes read.
+     */
+    private static Map<String, String> configure(String[] args) throws IOException, GeneralSecurityException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unrecognized argument: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            options.put(equals < 0 ? arg.substring(2) : arg.substring(2, equals),
+                    equals < 0 ? "true" : arg.substring(equals + 1));
+        }
+        boolean tls = Boolean.parseBoolean(options.getOrDefault("tls", "false"));
+        serverHost = options.getOrDefault("host", SERVER_HOST);
+        try {
+            serverPort = Integer.parseInt(options.getOrDefault("port", tls ? "8443" : Integer.toString(SERVER_PORT)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port: " + options.get("port"));
+        }
+        homeHost = serverHost;
+        homePort = serverPort;
+        if (Boolean.parseBoolean(options.getOrDefault("cluster", "false"))) {
+            if (tls) {
+                throw new IllegalArgumentException("--cluster talks to the nodes over plain HTTP; it can't be used with --tls");
+            }
+            ring = fetchRing();
+        }
+        if (!tls)
+            return options;
 
-        File fileToUpload = new File(filePath);
-        if (!fileToUpload.exists() || !fileToUpload.isFile()) {
-            System.out.println("Error: File not found or is not a valid file.");
-            return;
+        TrustManager[] trust = null;
+        String truststore = options.get("truststore");
+        if (truststore != null) {
+            char[] password = options.getOrDefault("truststore-password", "changeit").toCharArray();
+            TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init(KeyStore.getInstance(new File(truststore), password));
+            trust = factory.getTrustManagers();
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust, null);
+        tlsSockets = context.getSocketFactory();
+        return options;
+    }
+
+    /** Reads GET /cluster from the server named on the command line. */
+    private static NodeRing fetchRing() throws IOException {
+        try (ServerConnection conn = new ServerConnection(serverHost, serverPort)) {
+            conn.sendHead("GET /cluster HTTP/1.1\r\n" +
+                    "Host: " + serverHost + ":" + serverPort + "\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n");
+            conn.flush();
+            HTTPResponse response = conn.readResponseHead();
+            if (response.statusCode != 200) {
+                throw new IOException("The server is not part of a cluster: " + response.statusLine);
+            }
+            Map<String, Object> description = new HashMap<>();
+            conn.readBody(response, body -> description.putAll(new ListingParser(body, null).parse()));
+            List<String> nodes = new ArrayList<>();
+            if (description.get("nodes") instanceof List) {
+                for (Object node : (List<?>) description.get("nodes")) {
+                    nodes.add(String.valueOf(node));
+                }
+            }
+            if (nodes.isEmpty() || !(description.get("virtualNodes") instanceof Number)) {
+                throw new IOException("Malformed cluster description from the server");
+            }
+            return new NodeRing(nodes, ((Number) description.get("virtualNodes")).intValue());
         }
+    }
 
-        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-                OutputStream out = socket.getOutputStream();
-                InputStream in = socket.getInputStream()) {
+    /**
+     * The server's HashRing, rebuilt from GET /cluster: each node at many points
+     * of a 64-bit ring, a point being the first 8 bytes of the MD5 of "node#i".
+     * A file belongs to the first node clockwise from its name's point.
+     */
+    private static class NodeRing {
+        final List<String> nodes;
+        private final TreeMap<Long, String> points = new TreeMap<>();
 
-            System.out.println("Connected to server. Uploading file: " + fileToUpload.getName() +
-                    " (" + fileToUpload.length() + " bytes)");
+        NodeRing(List<String> nodes, int virtualNodes) {
+            this.nodes = nodes;
+            for (String node : nodes) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    points.put(hash(node + "#" + i), node);
+                }
+            }
+        }
 
-            // Build HTTP request headers
-            String filename = fileToUpload.getName();
+        String owner(String name) {
+            Map.Entry<Long, String> point = points.ceilingEntry(hash(name));
+            return point != null ? point.getValue() : points.firstEntry().getValue();
+        }
 
-            StringBuilder headers = new StringBuilder();
-            headers.append("POST /upload HTTP/1.1\r\n");
-            headers.append("Host: ").append(SERVER_HOST).append(":").append(SERVER_PORT).append("\r\n");
-            headers.append("Content-Type: application/octet-stream\r\n");
-            headers.append("Content-Length: ").append(fileToUpload.length()).append("\r\n");
-            headers.append("X-Filename: ").append(filename).append("\r\n");
-            headers.append("Content-Disposition: attachment; filename=\"").append(filename).append("\"\r\n");
-            headers.append("Connection: close\r\n");
-            headers.append("\r\n"); // Empty line to end headers
+        private static long hash(String key) {
+            byte[] digest;
+            try {
+                digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (digest[i] & 0xff);
+            }
+            return value;
+        }
+    }
 
-            out.write(headers.toString().getBytes());
-            out.flush();
+    /**
+     * In cluster mode, points serverHost and serverPort at the node that owns the
+     * file, or back at the node from the command line for a null name, dropping
+     * the open connection if that changes the server. Any node could serve the
+     * request by asking the owner itself; going straight there saves the hop.
+     */
+    private void useNodeFor(String filename) {
+        if (ring == null)
+            return;
+        String host = homeHost;
+        int port = homePort;
+        if (filename != null) {
+            String node = ring.owner(filename);
+            int colon = node.lastIndexOf(':');
+            host = node.substring(0, colon);
+            port = Integer.parseInt(node.substring(colon + 1));
+        }
+        if (host.equals(serverHost) && port == serverPort)
+            return;
+        closeConnection();
+        serverHost = host;
+        serverPort = port;
+        if (filename != null) {
+            System.out.println(filename + " belongs to node " + host + ":" + port);
+        }
+    }
 
-            long totalBytesSent = 0;
-            try (FileInputStream fis = new FileInputStream(fileToUpload)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
+    /** One line of a batch manifest and, once it has run, how it went. */
+    private static class Transfer {
+        final int line;
+        final boolean upload;
+        // The file's name on the server
+        final String name;
+        // The file uploaded, or the one downloaded into downloads/
+        final File file;
+        final String node;
+        String digest;
+        String status = "pending";
+        int httpStatus;
+        long bytes;
+        long nanos;
+        int attempts;
+        String error;
+
+        Transfer(int line, boolean upload, String name, File file, String node) {
+            this.line = line;
+            this.upload = upload;
+            this.name = name;
+            this.file = file;
+            this.node = node;
+        }
+    }
 
-                System.out.print("Uploading: [");
-                int progressBarWidth = 20;
+    /**
+     * --batch: the transfers in a manifest, run without the menu, several at a
+     * time. Each manifest line is one of
+     *   get <filename>   download into downloads/, as option 2 does
+     *   put <path>       upload a local file, as option 1 does
+     * and blank lines and lines starting with # are skipped.
+     *
+     * --parallel workers each take the next transfer off the queue and keep their
+     * connections open for the ones after it, one per node in cluster mode. A
+     * transfer that fails on the network or with a 5xx is tried again up to
+     * --retries times with backoff; a download picks up where it stopped. Progress
+     * is a single line on stderr for all transfers together, redrawn every
+     * --progress-interval ms (0 for none). At the end a JSON summary with each
+     * file's bytes, time and throughput goes to --summary, stdout by default.
+     */
+    private static class BatchRun {
+        private static final long RETRY_DELAY_MS = 500;
 
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                    totalBytesSent += bytesRead;
-
-                    // Show progress
-                    int progress = (int) ((totalBytesSent * progressBarWidth) / fileToUpload.length());
-                    System.out.print("\rUploading: [");
-                    for (int i = 0; i < progressBarWidth; i++) {
-                        if (i < progress) {
-                            System.out.print("=");
-                        } else if (i == progress) {
-                            System.out.print(">");
-                        } else {
-                            System.out.print(" ");
+        private final List<Transfer> transfers;
+        private final ConcurrentLinkedQueue<Transfer> queue;
+        private final int parallel;
+        private final int retries;
+        private final long progressIntervalMs;
+        private final String summary;
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger finished = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private long startNanos;
+
+        BatchRun(Map<String, String> options) throws IOException {
+            try {
+                parallel = Integer.parseInt(options.getOrDefault("parallel", Integer.toString(DEFAULT_BATCH_PARALLEL)));
+                retries = Integer.parseInt(options.getOrDefault("retries", Integer.toString(DEFAULT_BATCH_RETRIES)));
+                progressIntervalMs = Long.parseLong(options.getOrDefault("progress-interval",
+                        Long.toString(DEFAULT_BATCH_PROGRESS_MS)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("--parallel, --retries and --progress-interval take numbers");
+            }
+            if (parallel < 1 || retries < 0 || progressIntervalMs < 0) {
+                throw new IllegalArgumentException("--parallel must be at least 1, --retries and --progress-interval"
+                        + " at least 0");
+            }
+            summary = options.getOrDefault("summary", "-");
+            transfers = readManifest(options.get("batch"));
+            queue = new ConcurrentLinkedQueue<>(transfers);
+        }
+
+        private static List<Transfer> readManifest(String path) throws IOException {
+            Reader source = path.equals("-") ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                    : new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8);
+            List<Transfer> transfers = new ArrayList<>();
+            Set<String> downloads = new HashSet<>();
+            try (BufferedReader reader = new BufferedReader(source)) {
+                String line;
+                int number = 0;
+                while ((line = reader.readLine()) != null) {
+                    number++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#"))
+                        continue;
+                    String[] parts = line.split("\\s+", 2);
+                    if (parts.length < 2) {
+                        throw new IllegalArgumentException("Manifest line " + number + ": expected get <filename> or"
+                                + " put <path>");
+                    }
+                    String verb = parts[0].toLowerCase();
+                    String argument = parts[1].trim();
+                    if (verb.equals("get")) {
+                        // Two downloads of one name would write the same .part file
+                        if (!downloads.add(argument)) {
+                            throw new IllegalArgumentException("Manifest line " + number + ": " + argument
+                                    + " is already downloaded on an earlier line");
                         }
+                        transfers.add(new Transfer(number, false, argument, downloadTarget(argument),
+                                nodeFor(argument)));
+                    } else if (verb.equals("put")) {
+                        File file = new File(argument);
+                        transfers.add(new Transfer(number, true, file.getName(), file, nodeFor(file.getName())));
+                    } else {
+                        throw new IllegalArgumentException("Manifest line " + number + ": unknown transfer " + verb);
                     }
-                    System.out.print("] " + (totalBytesSent * 100 / fileToUpload.length()) + "%");
                 }
-                System.out.println();
             }
+            if (transfers.isEmpty()) {
+                throw new IllegalArgumentException("The manifest lists no transfers");
+            }
+            return transfers;
+        }
 
-            out.flush();
+        /** The node a file's requests go to: its owner in cluster mode, otherwise the one server. */
+        private static String nodeFor(String name) {
+            return ring != null ? ring.owner(name) : homeHost + ":" + homePort;
+        }
 
-            System.out.println("Waiting for server response...");
-            String fullResponse = readFullSocketResponse(in);
+        /** Runs every transfer; returns true if all of them succeeded. */
+        boolean run() {
+            startNanos = System.nanoTime();
+            int workerCount = Math.min(parallel, transfers.size());
+            ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+            for (int i = 0; i < workerCount; i++) {
+                workers.submit(this::work);
+            }
+            workers.shutdown();
+            try {
+                long interval = progressIntervalMs > 0 ? progressIntervalMs : Long.MAX_VALUE;
+                while (!workers.awaitTermination(interval, TimeUnit.MILLISECONDS)) {
+                    printBatchProgress();
+                }
+            } catch (InterruptedException e) {
+                workers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            if (progressIntervalMs > 0) {
+                printBatchProgress();
+                System.err.println();
+            }
 
-            String[] responseLines = fullResponse.split("\n", 2);
-            String statusLine = responseLines[0];
-            String responseBody = responseLines.length > 1 ? responseLines[1] : "";
+            try {
+                writeSummary();
+            } catch (IOException e) {
+                System.err.println("Could not write the summary: " + e.getMessage());
+                return false;
+            }
+            return failed.get() == 0;
+        }
 
-            System.out.println("=== SERVER RESPONSE ===");
-            System.out.println("Status: " + statusLine);
-            if (!responseBody.isEmpty()) {
-                System.out.println("Message: " + responseBody);
+        private void work() {
+            Map<String, ServerConnection> connections = new HashMap<>();
+            try {
+                Transfer transfer;
+                while ((transfer = queue.poll()) != null) {
+                    active.incrementAndGet();
+                    try {
+                        run(transfer, connections);
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                    (transfer.status.equals("failed") ? failed : finished).incrementAndGet();
+                }
+            } finally {
+                for (ServerConnection connection : connections.values()) {
+                    try {
+                        connection.close();
+                    } catch (IOException e) {
+                        // Done with it either way
+                    }
+                }
             }
-            System.out.println("=======================");
+        }
 
-            if (statusLine.contains("200 OK")) {
-                System.out.println("Upload successful!");
+        private void run(Transfer transfer, Map<String, ServerConnection> connections) {
+            long start = System.nanoTime();
+            if (transfer.upload && !transfer.file.isFile()) {
+                transfer.status = "failed";
+                transfer.error = "not a file: " + transfer.file.getPath();
+                return;
+            }
+            int attempt = 0;
+            while (true) {
+                attempt++;
+                transfer.attempts = attempt;
+                transfer.error = null;
+                boolean retryable;
+                try {
+                    ServerConnection conn = connection(connections, transfer.node);
+                    if (transfer.upload) {
+                        upload(conn, transfer);
+                    } else {
+                        download(conn, transfer);
+                    }
+                    retryable = transfer.status.equals("failed") && transfer.httpStatus >= 500;
+                } catch (IOException e) {
+                    close(connections, transfer.node);
+                    if (e instanceof StaleConnectionException) {
+                        // Closed by the server while idle; not this transfer's fault
+                        attempt--;
+                        continue;
+                    }
+                    transfer.status = "failed";
+                    transfer.error = e.getMessage() != null ? e.getMessage() : e.toString();
+                    retryable = true;
+                }
+                if (!retryable || attempt > retries)
+                    break;
+                try {
+                    Thread.sleep(RETRY_DELAY_MS << (attempt - 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            transfer.nanos = System.nanoTime() - start;
+        }
+
+        private static ServerConnection connection(Map<String, ServerConnection> connections, String node)
+                throws IOException {
+            ServerConnection connection = connections.get(node);
+            if (connection == null || !connection.isReusable()) {
+                close(connections, node);
+                int colon = node.lastIndexOf(':');
+                connection = new ServerConnection(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+                connections.put(node, connection);
+            }
+            return connection;
+        }
+
+        private static void close(Map<String, ServerConnection> connections, String node) {
+            ServerConnection connection = connections.remove(node);
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // Already gone
+                }
+            }
+        }
+
+        private void download(ServerConnection conn, Transfer transfer) throws IOException {
+            conn.sendHead("GET /download?filename=" + URLEncoder.encode(transfer.name, "UTF-8") + " HTTP/1.1\r\n" +
+                    "Host: " + transfer.node + "\r\n" +
+                    resumeHeaders(transfer.name) +
+                    conditionalHeaders(transfer.name) +
+                    "Accept-Encoding: gzip, deflate\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "\r\n");
+            conn.flush();
+            HTTPResponse response = conn.readResponseHead();
+            transfer.httpStatus = response.statusCode;
+            if (response.statusCode == 304) {
+                transfer.status = "not-modified";
+                return;
+            }
+            if (response.statusCode != 200 && response.statusCode != 206) {
+                transfer.status = "failed";
+                transfer.error = conn.readTextBody(response);
+                return;
+            }
+            AtomicLong received = new AtomicLong();
+            try {
+                saveDownload(conn, response, transfer.name, received);
+            } finally {
+                transfer.bytes += received.get();
+                bytes.addAndGet(received.get());
+            }
+            transfer.status = "ok";
+        }
+
+        private void upload(ServerConnection conn, Transfer transfer) throws IOException {
+            if (transfer.digest == null) {
+                transfer.digest = sha256Digest(transfer.file);
+            }
+            long length = transfer.file.length();
+            conn.sendHead("POST /upload HTTP/1.1\r\n" +
+                    "Host: " + transfer.node + "\r\n" +
+                    "Content-Type: application/octet-stream\r\n" +
+                    "Content-Length: " + length + "\r\n" +
+                    "Digest: " + transfer.digest + "\r\n" +
+                    "Content-Disposition: attachment; filename=\"" + transfer.name + "\"\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "\r\n");
+            try (FileInputStream in = new FileInputStream(transfer.file)) {
+                byte[] buffer = new byte[64 * 1024];
+                OutputStream out = conn.body();
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        throw new IOException(transfer.file.getName() + " shrank while it was being uploaded");
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                    transfer.bytes += read;
+                    bytes.addAndGet(read);
+                }
+            }
+            conn.flush();
+            HTTPResponse response = conn.readResponseHead();
+            transfer.httpStatus = response.statusCode;
+            String message = conn.readTextBody(response);
+            if (response.statusCode == 200) {
+                transfer.status = "ok";
             } else {
-                System.out.println("Upload failed!");
+                transfer.status = "failed";
+                transfer.error = message;
             }
+        }
 
-        } catch (IOException e) {
-            System.out.println("Error uploading file: " + e.getMessage());
+        private void printBatchProgress() {
+            double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+            System.err.print(String.format("\r%d/%d done, %d failed, %d running | %.1f MB at %.2f MB/s   ",
+                    finished.get() + failed.get(), transfers.size(), failed.get(), active.get(),
+                    bytes.get() / (1024.0 * 1024), bytes.get() / seconds / (1024 * 1024)));
+        }
+
+        /**
+         * {"transfers":[{"line":1,"op":"get","name":"a.txt","node":"localhost:8080","status":"ok",
+         *  "http":200,"attempts":1,"bytes":1048576,"seconds":0.012,"mbPerSecond":83.3,"error":null},...],
+         *  "files":1,"failed":0,"bytes":1048576,"seconds":0.015,"mbPerSecond":66.7}
+         * where status is ok, not-modified or failed, and bytes counts what crossed
+         * the network, retries included.
+         */
+        private void writeSummary() throws IOException {
+            double totalSeconds = (System.nanoTime() - startNanos) / 1e9;
+            StringBuilder json = new StringBuilder("{\"transfers\":[");
+            for (int i = 0; i < transfers.size(); i++) {
+                Transfer transfer = transfers.get(i);
+                double seconds = transfer.nanos / 1e9;
+                json.append(i > 0 ? "," : "").append("\n{\"line\":").append(transfer.line)
+                        .append(",\"op\":").append(transfer.upload ? "\"put\"" : "\"get\"")
+                        .append(",\"name\":").append(jsonString(transfer.name))
+                        .append(",\"node\":").append(jsonString(transfer.node))
+                        .append(",\"status\":").append(jsonString(transfer.status))
+                        .append(",\"http\":").append(transfer.httpStatus)
+                        .append(",\"attempts\":").append(transfer.attempts)
+                        .append(",\"bytes\":").append(transfer.bytes)
+                        .append(",\"seconds\":").append(String.format(Locale.ROOT, "%.3f", seconds))
+                        .append(",\"mbPerSecond\":").append(String.format(Locale.ROOT, "%.2f",
+                                seconds > 0 ? transfer.bytes / seconds / (1024 * 1024) : 0))
+                        .append(",\"error\":").append(transfer.error != null ? jsonString(transfer.error) : "null")
+                        .append('}');
+            }
+            json.append("\n],\"files\":").append(transfers.size())
+                    .append(",\"failed\":").append(failed.get())
+                    .append(",\"bytes\":").append(bytes.get())
+                    .append(",\"seconds\":").append(String.format(Locale.ROOT, "%.3f", totalSeconds))
+                    .append(",\"mbPerSecond\":").append(String.format(Locale.ROOT, "%.2f",
+                            totalSeconds > 0 ? bytes.get() / totalSeconds / (1024 * 1024) : 0))
+                    .append("}\n");
+            if (summary.equals("-")) {
+                System.out.print(json);
+                System.out.flush();
+            } else {
+                try (Writer writer = new OutputStreamWriter(new FileOutputStream(summary), StandardCharsets.UTF_8)) {
+                    writer.write(json.toString());
+                }
+            }
+        }
+
+        private static String jsonString(String value) {
+            StringBuilder out = new StringBuilder("\"");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            return out.append('"').toString();
         }
     }
 
-    private void downloadFile(Scanner scanner) {
-        System.out.print("Enter the filename to download: ");
-        String filename = scanner.nextLine().trim();
+    private static class HTTPResponse {
+        String statusLine;
+        int statusCode;
+        Map<String, String> headers = new HashMap<>();
+        long contentLength = -1;
+        boolean chunked;
+        boolean keepAlive;
+        // Text body, for responses read with controlRequest
+        String text = "";
+    }
 
-        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-                OutputStream out = socket.getOutputStream();
-                InputStream in = socket.getInputStream()) {
+    private interface BodyReader {
+        void read(InputStream body) throws IOException;
+    }
 
-            System.out.println("Connected to server. Requesting file: " + filename);
+    /** Thrown when a reused connection turns out to have been closed by the server while idle. */
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
 
-            String request = "GET /download?filename=" + URLEncoder.encode(filename, "UTF-8") +
-                    " HTTP/1.1\r\n" +
-                    "Host: " + SERVER_HOST + ":" + SERVER_PORT + "\r\n" +
-                    "Connection: close\r\n" +
-                    "\r\n";
+        StaleConnectionException(String message) {
+            super(message);
+        }
+    }
 
-            out.write(request.getBytes());
-            out.flush();
+    /**
+     * One persistent HTTP/1.1 connection to the server. Requests are written in
+     * order and their responses read back in the same order, so several requests
+     * may be sent before the first response is read (pipelining).
+     */
+    private static class ServerConnection implements Closeable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private int responsesRead = 0;
+        private boolean reusable = true;
+
+        ServerConnection(String host, int port) throws IOException {
+            if (tlsSockets != null) {
+                SSLSocket tls = (SSLSocket) tlsSockets.createSocket(host, port);
+                SSLParameters parameters = tls.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                tls.setSSLParameters(parameters);
+                tls.startHandshake();
+                socket = tls;
+            } else {
+                socket = new Socket(host, port);
+            }
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
 
-            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        void sendHead(String head) throws IOException {
+            try {
+                out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+            } catch (SocketException e) {
+                throw responsesRead > 0 ? new StaleConnectionException(e.getMessage()) : e;
+            }
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
 
-            // Read and display status line
-            String statusLine = reader.readLine();
+        HTTPResponse readResponseHead() throws IOException {
+            String statusLine = readLine();
             if (statusLine == null) {
-                System.out.println("No response from server");
-                return;
+                reusable = false;
+                if (responsesRead > 0) {
+                    throw new StaleConnectionException("Server closed the connection");
+                }
+                throw new EOFException("No response from server");
             }
 
-            System.out.println("=== SERVER RESPONSE ===");
-            System.out.println("Status: " + statusLine);
+            HTTPResponse response = new HTTPResponse();
+            response.statusLine = statusLine;
+            String[] statusParts = statusLine.split(" ", 3);
+            try {
+                response.statusCode = Integer.parseInt(statusParts[1]);
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
 
-            if (!statusLine.contains("200 OK")) {
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    response.headers.put(line.substring(0, colon).trim().toLowerCase(),
+                            line.substring(colon + 1).trim());
+                }
+            }
 
-                StringBuilder errorResponse = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null && !line.isEmpty()) {
-                    if (line.toLowerCase().startsWith("content-length:"))
-                        continue;
-                    errorResponse.append(line).append("\n");
+            String contentLength = response.headers.get("content-length");
+            // These never have a body, whatever their headers say
+            boolean bodyless = response.statusCode == 304 || response.statusCode == 204
+                    || response.statusCode / 100 == 1;
+            if (bodyless) {
+                response.contentLength = 0;
+            } else if (contentLength != null) {
+                response.contentLength = Long.parseLong(contentLength);
+            }
+            response.chunked = !bodyless && "chunked".equalsIgnoreCase(response.headers.get("transfer-encoding"));
+            String connectionHeader = response.headers.getOrDefault("connection", "");
+            response.keepAlive = !connectionHeader.equalsIgnoreCase("close")
+                    && (bodyless || contentLength != null || response.chunked);
+            if (!response.keepAlive) {
+                reusable = false;
+            }
+            responsesRead++;
+            return response;
+        }
+
+        /** Reads a short text body, e.g. an upload confirmation or an error message. */
+        String readTextBody(HTTPResponse response) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            copyBody(response, body, null, 0, 0);
+            return body.toString(StandardCharsets.UTF_8.name()).trim();
+        }
+
+        /**
+         * Copies the response body to out, undoing any gzip or deflate Content-Encoding,
+         * and reports progress when a label is given. Progress counts body bytes as
+         * they arrive; progressOffset and progressTotal describe the whole file when
+         * the body is only its tail, as in a resumed download; 0 means "just this body".
+         * Returns the number of bytes written to target.
+         */
+        long copyBody(HTTPResponse response, OutputStream target, String progressLabel, long progressOffset,
+                long progressTotal) throws IOException {
+            if (progressTotal <= 0) {
+                progressTotal = response.contentLength;
+            }
+            BodyInputStream wire = new BodyInputStream(response);
+            InputStream body = decode(response, wire);
+            byte[] buffer = new byte[64 * 1024];
+            long total = 0;
+            int bytesRead;
+            while ((bytesRead = body.read(buffer)) != -1) {
+                target.write(buffer, 0, bytesRead);
+                total += bytesRead;
+                if (progressLabel != null && progressTotal > 0) {
+                    printProgress(progressLabel, progressOffset + wire.received, progressTotal);
                 }
-                System.out.println("Error details: " + errorResponse.toString().trim());
-                System.out.println("=======================");
-                System.out.println("Download failed!");
-                return;
             }
+            // A decompressor may stop short of the body's framing; the connection needs it all read
+            wire.drain();
+            return total;
+        }
 
-            System.out.println("File found, starting download...");
+        /** Hands the decoded body to reader as a stream, then skips whatever it left unread. */
+        void readBody(HTTPResponse response, BodyReader reader) throws IOException {
+            BodyInputStream wire = new BodyInputStream(response);
+            reader.read(decode(response, wire));
+            wire.drain();
+        }
 
-            long contentLength = -1;
-            String line;
-            while ((line = reader.readLine()) != null && !line.isEmpty()) {
-                if (line.toLowerCase().startsWith("content-length:")) {
-                    try {
-                        contentLength = Long.parseLong(line.substring(15).trim());
-                        System.out.println("File size: " + contentLength + " bytes");
-                    } catch (NumberFormatException e) {
-                        e.printStackTrace();
+        private InputStream decode(HTTPResponse response, InputStream wire) throws IOException {
+            String encoding = response.headers.getOrDefault("content-encoding", "identity").toLowerCase();
+            switch (encoding) {
+                case "gzip":
+                case "x-gzip":
+                    return new GZIPInputStream(wire, 64 * 1024);
+                case "deflate":
+                    return new InflaterInputStream(wire, new Inflater(), 64 * 1024);
+                case "identity":
+                    return wire;
+                default:
+                    throw new IOException("Unsupported Content-Encoding: " + encoding);
+            }
+        }
+
+        /** One response body as the server framed it: by Content-Length, chunked, or up to the close. */
+        private class BodyInputStream extends InputStream {
+            private final boolean chunked;
+            private final long contentLength;
+            // Left in the current chunk, or in the whole body; -1 means "until the connection closes"
+            private long remaining;
+            private boolean chunkRead;
+            private boolean done;
+            long received;
+
+            BodyInputStream(HTTPResponse response) {
+                this.chunked = response.chunked;
+                this.contentLength = response.contentLength;
+                this.remaining = chunked ? 0 : contentLength;
+                this.done = !chunked && remaining == 0;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] data, int offset, int length) throws IOException {
+                if (done)
+                    return -1;
+                if (chunked && remaining == 0 && !nextChunk())
+                    return -1;
+
+                int toRead = remaining < 0 ? length : (int) Math.min(length, remaining);
+                int bytesRead = in.read(data, offset, toRead);
+                if (bytesRead == -1) {
+                    if (remaining > 0 || chunked) {
+                        reusable = false;
+                        throw new EOFException("Connection closed after " + received + " of "
+                                + (chunked ? "a chunked" : contentLength) + " bytes");
                     }
+                    done = true;
+                    return -1;
                 }
+                received += bytesRead;
+                if (remaining > 0) {
+                    remaining -= bytesRead;
+                    done = !chunked && remaining == 0;
+                }
+                return bytesRead;
             }
 
-            System.out.println("=======================");
+            /** Reads the next chunk's size line; returns false at the last chunk, after its trailers. */
+            private boolean nextChunk() throws IOException {
+                if (chunkRead) {
+                    readLine(); // The CRLF ending the previous chunk
+                }
+                String sizeLine = readLine();
+                if (sizeLine == null) {
+                    reusable = false;
+                    throw new EOFException("Connection closed in the middle of a chunked body");
+                }
+                int extension = sizeLine.indexOf(';');
+                try {
+                    remaining = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+                } catch (NumberFormatException e) {
+                    reusable = false;
+                    throw new IOException("Malformed chunk size: " + sizeLine);
+                }
+                chunkRead = true;
+                if (remaining == 0) {
+                    String trailer;
+                    while ((trailer = readLine()) != null && !trailer.isEmpty()) {
+                        // Trailer fields are ignored
+                    }
+                    done = true;
+                    return false;
+                }
+                return true;
+            }
 
-            File downloadDir = new File("downloads");
-            if (!downloadDir.exists()) {
-                downloadDir.mkdir();
+            void drain() throws IOException {
+                byte[] skip = new byte[8192];
+                while (read(skip, 0, skip.length) != -1) {
+                    // Discard
+                }
             }
+        }
 
-            File downloadFile = new File(downloadDir, "downloaded_" + filename);
+        OutputStream body() {
+            return out;
+        }
 
-            long totalBytesReceived = 0;
-            try (FileOutputStream fos = new FileOutputStream(downloadFile)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
+        boolean isReusable() {
+            return reusable && !socket.isClosed();
+        }
 
-                System.out.print("Downloading: [");
-                int progressBarWidth = 20;
-
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    fos.write(buffer, 0, bytesRead);
-                    totalBytesReceived += bytesRead;
-
-                    if (contentLength > 0) {
-                        int progress = (int) ((totalBytesReceived * progressBarWidth) / contentLength);
-                        System.out.print("\rDownloading: [");
-                        for (int i = 0; i < progressBarWidth; i++) {
-                            if (i < progress) {
-                                System.out.print("=");
-                            } else if (i == progress) {
-                                System.out.print(">");
-                            } else {
-                                System.out.print(" ");
-                            }
-                        }
-                        System.out.print("] " + (totalBytesReceived * 100 / contentLength) + "%");
-                    }
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    return line.toString();
+                }
+                if (c != '\r') {
+                    line.append((char) c);
                 }
-                System.out.println();
             }
+            return line.length() == 0 ? null : line.toString();
+        }
 
-            System.out.println("Download complete!");
-            System.out.println("File saved as: " + downloadFile.getName());
-            System.out.println("Total bytes received: " + totalBytesReceived);
+        @Override
+        public void close() throws IOException {
+            reusable = false;
+            socket.close();
+        }
+    }
 
-        } catch (IOException e) {
-            System.out.println("Error downloading file: " + e.getMessage());
+    private ServerConnection connection() throws IOException {
+        if (connection == null || !connection.isReusable()) {
+            closeConnection();
+            connection = new ServerConnection(serverHost, serverPort);
+            System.out.println("Connected to server " + serverHost + ":" + serverPort);
         }
+        return connection;
     }
 
-    private String readFullSocketResponse(InputStream in) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-        StringBuilder response = new StringBuilder();
-        String line;
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+            connection = null;
+        }
+    }
+
+    private void uploadFile(Scanner scanner) {
+        System.out.print("Enter the path of the file to upload: ");
+        String filePath = scanner.nextLine().trim();
+
+        File fileToUpload = new File(filePath);
+        if (!fileToUpload.exists() || !fileToUpload.isFile()) {
+            System.out.println("Error: File not found or is not a valid file.");
+            return;
+        }
+        useNodeFor(fileToUpload.getName());
+
+        try {
+            HTTPResponse response;
+            String responseBody;
+            String digest = sha256Digest(fileToUpload);
+            try {
+                response = sendUpload(connection(), fileToUpload, digest);
+            } catch (StaleConnectionException e) {
+                // The idle connection was closed by the server; retry once on a fresh one
+                closeConnection();
+                response = sendUpload(connection(), fileToUpload, digest);
+            }
+            responseBody = connection.readTextBody(response);
+
+            System.out.println("=== SERVER RESPONSE ===");
+            System.out.println("Status: " + response.statusLine);
+            if (!responseBody.isEmpty()) {
+                System.out.println("Message: " + responseBody);
+            }
+            System.out.println("=======================");
+
+            if (response.statusCode == 200) {
+                System.out.println("Upload successful!");
+            } else {
+                System.out.println("Upload failed!");
+            }
 
-        if ((line = reader.readLine()) != null) {
-            response.append(line);
+        } catch (IOException e) {
+            closeConnection();
+            System.out.println("Error uploading file: " + e.getMessage());
         }
+    }
+
+    private HTTPResponse sendUpload(ServerConnection conn, File fileToUpload, String digest) throws IOException {
+        System.out.println("Uploading file: " + fileToUpload.getName() +
+                " (" + fileToUpload.length() + " bytes)");
+
+        // Build HTTP request headers
+        String filename = fileToUpload.getName();
+
+        StringBuilder headers = new StringBuilder();
+        headers.append("POST /upload HTTP/1.1\r\n");
+        headers.append("Host: ").append(serverHost).append(":").append(serverPort).append("\r\n");
+        headers.append("Content-Type: application/octet-stream\r\n");
+        headers.append("Content-Length: ").append(fileToUpload.length()).append("\r\n");
+        headers.append("X-Filename: ").append(filename).append("\r\n");
+        headers.append("Digest: ").append(digest).append("\r\n");
+        headers.append("Content-Disposition: attachment; filename=\"").append(filename).append("\"\r\n");
+        headers.append("Connection: keep-alive\r\n");
+        headers.append("\r\n"); // Empty line to end headers
 
-        while ((line = reader.readLine()) != null && !line.isEmpty()) {
-            response.append("\n").append(line);
+        conn.sendHead(headers.toString());
+
+        long totalBytesSent = 0;
+        try (FileInputStream fis = new FileInputStream(fileToUpload)) {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+
+            OutputStream out = conn.body();
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+                totalBytesSent += bytesRead;
+                printProgress("Uploading", totalBytesSent, fileToUpload.length());
+            }
+            System.out.println();
         }
+        conn.flush();
 
-        if (reader.ready()) {
-            while ((line = reader.readLine()) != null) {
-                response.append("\n").append(line);
+        System.out.println("Waiting for server response...");
+        return conn.readResponseHead();
+    }
+
+    /**
+     * The file's SHA-256 as a Digest header value. The server checks the upload
+     * against it, so a file damaged on the way is rejected rather than stored.
+     */
+    private static String sha256Digest(File file) throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                sha256.update(buffer, 0, bytesRead);
             }
         }
+        return "sha-256=" + Base64.getEncoder().encodeToString(sha256.digest());
+    }
+
+    /** The server's upload session for one file: its id and how the file is split into parts. */
+    private static class UploadSession {
+        final String id;
+        final long partSize;
+        final int partCount;
+        final List<Integer> missing = new ArrayList<>();
+
+        UploadSession(String id, long partSize, int partCount) {
+            this.id = id;
+            this.partSize = partSize;
+            this.partCount = partCount;
+        }
+
+        String path() {
+            return "/upload/sessions/" + id;
+        }
+    }
 
-        return response.toString().trim();
+    /**
+     * Uploads one file as numbered parts over several connections at once. The
+     * session id is kept in <file>.upload until the upload is committed, so an
+     * interrupted upload picks up where it left off: the server reports which
+     * parts it already has and only the rest are sent.
+     */
+    private void uploadParallel(Scanner scanner) {
+        System.out.print("Enter the path of the file to upload: ");
+        String filePath = scanner.nextLine().trim();
+        File fileToUpload = new File(filePath);
+        if (!fileToUpload.exists() || !fileToUpload.isFile()) {
+            System.out.println("Error: File not found or is not a valid file.");
+            return;
+        }
+        System.out.print("Number of parallel connections [" + DEFAULT_UPLOAD_WORKERS + "]: ");
+        String workersInput = scanner.nextLine().trim();
+        int workerCount;
+        try {
+            workerCount = workersInput.isEmpty() ? DEFAULT_UPLOAD_WORKERS : Integer.parseInt(workersInput);
+        } catch (NumberFormatException e) {
+            workerCount = 0;
+        }
+        if (workerCount < 1) {
+            System.out.println("Invalid number of connections.");
+            return;
+        }
+        useNodeFor(fileToUpload.getName());
+
+        File sessionFile = new File(fileToUpload.getPath() + ".upload");
+        long length = fileToUpload.length();
+        try {
+            UploadSession session = resumeUploadSession(sessionFile, fileToUpload);
+            if (session == null) {
+                session = createUploadSession(fileToUpload);
+                try (Writer writer = new FileWriter(sessionFile)) {
+                    writer.write(session.id + " " + length + " " + fileToUpload.lastModified());
+                } catch (IOException e) {
+                    // Only resuming needs it; the upload itself can go ahead
+                }
+            } else {
+                System.out.println("Resuming upload session " + session.id + ": "
+                        + (session.partCount - session.missing.size()) + " of " + session.partCount
+                        + " parts already on the server");
+            }
+
+            System.out.println("Uploading " + fileToUpload.getName() + " (" + length + " bytes) as "
+                    + session.missing.size() + " parts of up to " + session.partSize + " bytes over "
+                    + Math.min(workerCount, Math.max(1, session.missing.size())) + " connections");
+            long startNanos = System.nanoTime();
+            uploadParts(fileToUpload, session, workerCount);
+            double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+
+            // Trust the server's record rather than our own: it is what the commit checks
+            UploadSession status = uploadSessionStatus(session.id);
+            if (status == null || !status.missing.isEmpty()) {
+                System.out.println("Upload incomplete" + (status == null ? "" : ", missing parts " + status.missing)
+                        + ". Run the upload again to resume.");
+                System.out.println("Upload failed!");
+                return;
+            }
+
+            HTTPResponse response = controlRequest("POST", session.path() + "/commit",
+                    "Digest: " + sha256Digest(fileToUpload) + "\r\n");
+            System.out.println("=== SERVER RESPONSE ===");
+            System.out.println("Status: " + response.statusLine);
+            if (!response.text.isEmpty()) {
+                System.out.println("Message: " + response.text);
+            }
+            System.out.println("=======================");
+            if (response.statusCode == 200) {
+                sessionFile.delete();
+                System.out.printf("Upload successful! %d bytes in %.2f s (%.2f MB/s)%n", length, seconds,
+                        length / seconds / (1024 * 1024));
+            } else {
+                System.out.println("Upload failed!");
+            }
+        } catch (IOException e) {
+            closeConnection();
+            System.out.println("Error uploading file: " + e.getMessage());
+        }
+    }
+
+    /** Looks up the session recorded for this file, if the file is unchanged and the server still has it. */
+    private UploadSession resumeUploadSession(File sessionFile, File fileToUpload) throws IOException {
+        if (!sessionFile.isFile())
+            return null;
+        String[] saved;
+        try (BufferedReader reader = new BufferedReader(new FileReader(sessionFile))) {
+            String line = reader.readLine();
+            saved = line == null ? new String[0] : line.trim().split(" ");
+        }
+        if (saved.length != 3 || !saved[1].equals(Long.toString(fileToUpload.length()))
+                || !saved[2].equals(Long.toString(fileToUpload.lastModified()))) {
+            sessionFile.delete();
+            return null;
+        }
+        UploadSession session = uploadSessionStatus(saved[0]);
+        if (session == null) {
+            sessionFile.delete();
+        }
+        return session;
+    }
+
+    private UploadSession createUploadSession(File fileToUpload) throws IOException {
+        HTTPResponse response = controlRequest("POST", "/upload/sessions",
+                "X-Filename: " + fileToUpload.getName() + "\r\n" +
+                "X-Upload-Length: " + fileToUpload.length() + "\r\n");
+        if (response.statusCode != 201) {
+            throw new IOException("Could not start upload: " + response.statusLine);
+        }
+        UploadSession session = new UploadSession(response.headers.get("x-upload-id"),
+                Long.parseLong(response.headers.get("x-part-size")),
+                Integer.parseInt(response.headers.get("x-part-count")));
+        for (int part = 1; part <= session.partCount; part++) {
+            session.missing.add(part);
+        }
+        return session;
+    }
+
+    /** Returns the session with its missing parts as the server sees them, or null if it is gone. */
+    private UploadSession uploadSessionStatus(String id) throws IOException {
+        HTTPResponse response = controlRequest("GET", "/upload/sessions/" + id, "");
+        if (response.statusCode != 200)
+            return null;
+        UploadSession session = new UploadSession(id, Long.parseLong(response.headers.get("x-part-size")),
+                Integer.parseInt(response.headers.get("x-part-count")));
+        for (String line : response.text.split("\n")) {
+            if (line.startsWith("missing:")) {
+                for (String part : line.substring("missing:".length()).trim().split(",")) {
+                    if (!part.isEmpty()) {
+                        session.missing.add(Integer.parseInt(part));
+                    }
+                }
+            }
+        }
+        return session;
+    }
+
+    /** Sends a request without a body on the shared connection and reads its text response. */
+    private HTTPResponse controlRequest(String method, String path, String extraHeaders) throws IOException {
+        String head = method + " " + path + " HTTP/1.1\r\n" +
+                "Host: " + serverHost + ":" + serverPort + "\r\n" +
+                extraHeaders +
+                "Connection: keep-alive\r\n" +
+                "\r\n";
+        HTTPResponse response;
+        try {
+            ServerConnection conn = connection();
+            conn.sendHead(head);
+            conn.flush();
+            response = conn.readResponseHead();
+        } catch (StaleConnectionException e) {
+            closeConnection();
+            ServerConnection conn = connection();
+            conn.sendHead(head);
+            conn.flush();
+            response = conn.readResponseHead();
+        }
+        response.text = connection.readTextBody(response);
+        return response;
+    }
+
+    /**
+     * Sends the session's missing parts from a shared queue, one worker thread and
+     * persistent connection per parallel upload. A part that fails is retried on a
+     * fresh connection; one that keeps failing is left for the next run.
+     */
+    private void uploadParts(File fileToUpload, UploadSession session, int workerCount) throws IOException {
+        Queue<Integer> parts = new ConcurrentLinkedQueue<>(session.missing);
+        long length = fileToUpload.length();
+        AtomicLong sent = new AtomicLong();
+        for (int part = 1; part <= session.partCount; part++) {
+            if (!session.missing.contains(part)) {
+                sent.addAndGet(partLength(session, part, length));
+            }
+        }
+
+        try (FileChannel source = FileChannel.open(fileToUpload.toPath(), StandardOpenOption.READ)) {
+            ExecutorService workers = Executors.newFixedThreadPool(Math.min(workerCount, Math.max(1, parts.size())));
+            for (int i = 0; i < workerCount && i < parts.size(); i++) {
+                workers.submit(() -> uploadWorker(source, session, parts, sent, length));
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+                printProgress("Uploading", sent.get(), length);
+            }
+            printProgress("Uploading", sent.get(), length);
+            System.out.println();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+
+    private void uploadWorker(FileChannel source, UploadSession session, Queue<Integer> parts, AtomicLong sent,
+            long length) {
+        ServerConnection conn = null;
+        Integer part;
+        while ((part = parts.poll()) != null) {
+            long partLength = partLength(session, part, length);
+            for (int attempt = 1; attempt <= PART_ATTEMPTS; attempt++) {
+                long partSent = 0;
+                try {
+                    if (conn == null || !conn.isReusable()) {
+                        if (conn != null) {
+                            conn.close();
+                        }
+                        conn = new ServerConnection(serverHost, serverPort);
+                    }
+                    conn.sendHead("PUT " + session.path() + "/parts/" + part + " HTTP/1.1\r\n" +
+                            "Host: " + serverHost + ":" + serverPort + "\r\n" +
+                            "Content-Type: application/octet-stream\r\n" +
+                            "Content-Length: " + partLength + "\r\n" +
+                            "Connection: keep-alive\r\n" +
+                            "\r\n");
+
+                    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                    long position = (part - 1) * session.partSize;
+                    while (partSent < partLength) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(buffer.capacity(), partLength - partSent));
+                        int read = source.read(buffer, position + partSent);
+                        if (read == -1) {
+                            throw new EOFException("File shrank during upload");
+                        }
+                        conn.body().write(buffer.array(), 0, read);
+                        partSent += read;
+                        sent.addAndGet(read);
+                    }
+                    conn.flush();
+
+                    HTTPResponse response = conn.readResponseHead();
+                    String message = conn.readTextBody(response);
+                    if (response.statusCode != 200) {
+                        throw new IOException("Part " + part + ": " + message);
+                    }
+                    break;
+                } catch (IOException e) {
+                    sent.addAndGet(-partSent);
+                    if (conn != null) {
+                        try {
+                            conn.close();
+                        } catch (IOException closeFailure) {
+                            // Replaced on the next attempt anyway
+                        }
+                    }
+                    if (attempt == PART_ATTEMPTS) {
+                        System.out.println();
+                        System.out.println("Part " + part + " failed: " + e.getMessage());
+                    }
+                }
+            }
+        }
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (IOException e) {
+                // Done with it either way
+            }
+        }
+    }
+
+    private static long partLength(UploadSession session, int part, long length) {
+        return Math.min(session.partSize, length - (part - 1) * session.partSize);
+    }
+
+    private void downloadFile(Scanner scanner) {
+        System.out.print("Enter the filename to download: ");
+        downloadFile(scanner.nextLine().trim());
+    }
+
+    private void downloadFile(String filename) {
+        useNodeFor(filename);
+        try {
+            System.out.println("Requesting file: " + filename);
+            HTTPResponse response;
+            try {
+                ServerConnection conn = connection();
+                sendDownloadRequest(conn, filename);
+                conn.flush();
+                response = conn.readResponseHead();
+            } catch (StaleConnectionException e) {
+                closeConnection();
+                ServerConnection conn = connection();
+                sendDownloadRequest(conn, filename);
+                conn.flush();
+                response = conn.readResponseHead();
+            }
+            receiveDownload(connection, response, filename);
+        } catch (IOException e) {
+            closeConnection();
+            System.out.println("Error downloading file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Downloads several files over one connection, sending every request up front
+     * and then reading the responses back in order.
+     */
+    private void downloadFiles(Scanner scanner) {
+        System.out.print("Enter the filenames to download, separated by commas: ");
+        List<String> filenames = new ArrayList<>();
+        for (String name : scanner.nextLine().split(",")) {
+            if (!name.trim().isEmpty()) {
+                filenames.add(name.trim());
+            }
+        }
+        if (filenames.isEmpty()) {
+            System.out.println("No filenames given.");
+            return;
+        }
+        // One connection for the lot, so to one node, which fetches what it doesn't own
+        useNodeFor(null);
+
+        try {
+            // Start from a fresh connection so a stale one can't swallow the whole batch
+            closeConnection();
+            ServerConnection conn = connection();
+            for (String filename : filenames) {
+                sendDownloadRequest(conn, filename);
+            }
+            conn.flush();
+            System.out.println("Sent " + filenames.size() + " pipelined requests");
+
+            for (String filename : filenames) {
+                System.out.println();
+                receiveDownload(conn, conn.readResponseHead(), filename);
+            }
+        } catch (IOException e) {
+            closeConnection();
+            System.out.println("Error downloading files: " + e.getMessage());
+        }
+    }
+
+    /** One byte range of a segmented download and how far its connection has got. */
+    private static class Segment {
+        final int index;
+        final long start;
+        final long end;
+        final AtomicLong received = new AtomicLong();
+        volatile long startNanos;
+        volatile long endNanos;
+        volatile IOException failure;
+
+        Segment(int index, long start, long end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+    }
+
+    /**
+     * Downloads one file over several connections at once. A one-byte range request
+     * finds the size and validator; the file is then preallocated and each segment
+     * fetched with its own Range request and written at its own offset.
+     */
+    private void downloadSegmented(Scanner scanner) {
+        System.out.print("Enter the filename to download: ");
+        String filename = scanner.nextLine().trim();
+        System.out.print("Number of segments [" + DEFAULT_SEGMENTS + "]: ");
+        String segmentsInput = scanner.nextLine().trim();
+
+        int segmentCount;
+        try {
+            segmentCount = segmentsInput.isEmpty() ? DEFAULT_SEGMENTS : Integer.parseInt(segmentsInput);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number of segments.");
+            return;
+        }
+        if (segmentCount < 1) {
+            System.out.println("Invalid number of segments.");
+            return;
+        }
+        useNodeFor(filename);
+
+        try {
+            // Probe with a one-byte range: a 206 carries the total size and the validator
+            long size;
+            String validator;
+            try (ServerConnection probe = new ServerConnection(serverHost, serverPort)) {
+                probe.sendHead(segmentRequest(filename, 0, 0, null));
+                probe.flush();
+                HTTPResponse response = probe.readResponseHead();
+                String body = probe.readTextBody(response);
+                if (response.statusCode != 206) {
+                    System.out.println("Status: " + response.statusLine);
+                    if (response.statusCode == 200) {
+                        System.out.println("Server does not support ranges; use a regular download.");
+                    } else {
+                        System.out.println("Error details: " + body);
+                    }
+                    return;
+                }
+                long[] contentRange = parseContentRange(response.headers.get("content-range"));
+                if (contentRange == null || contentRange[1] < 0) {
+                    throw new IOException("Server did not report the file size");
+                }
+                size = contentRange[1];
+                validator = response.headers.getOrDefault("etag", response.headers.get("last-modified"));
+            }
+
+            segmentCount = (int) Math.max(1, Math.min(segmentCount, size));
+            List<Segment> segments = new ArrayList<>();
+            long segmentSize = size / segmentCount;
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * segmentSize;
+                long end = i == segmentCount - 1 ? size - 1 : start + segmentSize - 1;
+                segments.add(new Segment(i + 1, start, end));
+            }
+
+            File downloadDir = new File(DOWNLOAD_FOLDER);
+            if (!downloadDir.exists()) {
+                downloadDir.mkdir();
+            }
+            File downloadFile = downloadTarget(filename);
+            File partial = new File(downloadFile.getPath() + ".segments");
+
+            System.out.println("File size: " + size + " bytes, downloading in " + segmentCount + " segments");
+            long startNanos = System.nanoTime();
+            try (FileChannel output = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                // Preallocate so segments can land at their offsets in any order
+                if (size > 0) {
+                    output.write(ByteBuffer.wrap(new byte[1]), size - 1);
+                }
+
+                ExecutorService workers = Executors.newFixedThreadPool(segmentCount);
+                List<Future<?>> tasks = new ArrayList<>();
+                for (Segment segment : segments) {
+                    tasks.add(workers.submit(() -> fetchSegment(filename, validator, segment, output)));
+                }
+                workers.shutdown();
+                while (!workers.awaitTermination(500, TimeUnit.MILLISECONDS)) {
+                    printSegmentProgress(segments, size, startNanos);
+                }
+                printSegmentProgress(segments, size, startNanos);
+                System.out.println();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+
+            double totalSeconds = (System.nanoTime() - startNanos) / 1e9;
+            boolean failed = false;
+            for (Segment segment : segments) {
+                double seconds = Math.max(1e-9, (segment.endNanos - segment.startNanos) / 1e9);
+                String outcome = segment.failure != null ? "FAILED: " + segment.failure.getMessage()
+                        : String.format("%.2f MB/s", segment.received.get() / seconds / (1024 * 1024));
+                System.out.printf("Segment %d: bytes %d-%d, %d bytes in %.2f s, %s%n", segment.index,
+                        segment.start, segment.end, segment.received.get(), seconds, outcome);
+                failed |= segment.failure != null;
+            }
+            if (failed) {
+                partial.delete();
+                System.out.println("Download failed!");
+                return;
+            }
+
+            downloadFile.delete();
+            if (!partial.renameTo(downloadFile)) {
+                throw new IOException("Could not rename " + partial.getName() + " to " + downloadFile.getName());
+            }
+            currentValidatorFile(downloadFile).delete();
+            System.out.println("Download complete!");
+            System.out.println("File saved as: " + downloadFile.getName());
+            System.out.printf("Total: %d bytes in %.2f s (%.2f MB/s)%n", size, totalSeconds,
+                    size / Math.max(1e-9, totalSeconds) / (1024 * 1024));
+
+        } catch (IOException e) {
+            System.out.println("Error downloading file: " + e.getMessage());
+        }
+    }
+
+    /** Fetches one segment on its own connection, resuming where it stopped if the connection drops. */
+    private void fetchSegment(String filename, String validator, Segment segment, FileChannel output) {
+        segment.startNanos = System.nanoTime();
+        for (int attempt = 1; attempt <= SEGMENT_ATTEMPTS; attempt++) {
+            long from = segment.start + segment.received.get();
+            if (from > segment.end)
+                break;
+            try (ServerConnection conn = new ServerConnection(serverHost, serverPort)) {
+                conn.sendHead(segmentRequest(filename, from, segment.end, validator));
+                conn.flush();
+                HTTPResponse response = conn.readResponseHead();
+                long[] contentRange = parseContentRange(response.headers.get("content-range"));
+                if (response.statusCode != 206 || contentRange == null || contentRange[0] != from) {
+                    // A 200 here means the file changed since the probe; the segments would not fit together
+                    throw new IOException("Unexpected response: " + response.statusLine);
+                }
+                conn.copyBody(response, new OutputStream() {
+                    private long position = from;
+
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] { (byte) b }, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] data, int offset, int length) throws IOException {
+                        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+                        while (buffer.hasRemaining()) {
+                            position += output.write(buffer, position);
+                        }
+                        segment.received.addAndGet(length);
+                    }
+                }, null, 0, 0);
+                segment.failure = null;
+                break;
+            } catch (IOException e) {
+                segment.failure = e;
+            }
+        }
+        segment.endNanos = System.nanoTime();
+    }
+
+    private String segmentRequest(String filename, long start, long end, String validator)
+            throws UnsupportedEncodingException {
+        return "GET /download?filename=" + URLEncoder.encode(filename, "UTF-8") + " HTTP/1.1\r\n" +
+                "Host: " + serverHost + ":" + serverPort + "\r\n" +
+                "Range: bytes=" + start + "-" + end + "\r\n" +
+                (validator != null ? "If-Range: " + validator + "\r\n" : "") +
+                "Connection: close\r\n" +
+                "\r\n";
+    }
+
+    private static void printSegmentProgress(List<Segment> segments, long size, long startNanos) {
+        StringBuilder line = new StringBuilder("\r");
+        long total = 0;
+        for (Segment segment : segments) {
+            long received = segment.received.get();
+            total += received;
+            line.append('[').append(segment.index).append("] ")
+                    .append(segment.length() == 0 ? 100 : received * 100 / segment.length()).append("% ");
+        }
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        line.append(String.format("| %d%% %.2f MB/s", size == 0 ? 100 : total * 100 / size,
+                total / seconds / (1024 * 1024)));
+        System.out.print(line);
+    }
+
+    /**
+     * Fetches several files in one response from /archive, named in a list or
+     * matched by a glob, and unpacks the tar or zip into downloads/ as it arrives.
+     */
+    private void downloadArchive(Scanner scanner) {
+        System.out.print("Enter filenames separated by commas, or a pattern such as *.txt: ");
+        String selection = scanner.nextLine().trim();
+        if (selection.isEmpty()) {
+            System.out.println("No filenames given.");
+            return;
+        }
+        System.out.print("Archive format (tar/zip) [tar]: ");
+        String format = scanner.nextLine().trim().toLowerCase();
+        if (format.isEmpty()) {
+            format = "tar";
+        }
+        if (!format.equals("tar") && !format.equals("zip")) {
+            System.out.println("Unknown format: " + format);
+            return;
+        }
+        useNodeFor(null);
+
+        boolean glob = selection.contains("*") || selection.contains("?") || selection.contains("[");
+        try {
+            String path = "/archive?" + (glob ? "glob=" : "files=") + URLEncoder.encode(selection, "UTF-8")
+                    + "&format=" + format;
+            String head = "GET " + path + " HTTP/1.1\r\n" +
+                    "Host: " + serverHost + ":" + serverPort + "\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "\r\n";
+            HTTPResponse response;
+            try {
+                ServerConnection conn = connection();
+                conn.sendHead(head);
+                conn.flush();
+                response = conn.readResponseHead();
+            } catch (StaleConnectionException e) {
+                closeConnection();
+                ServerConnection conn = connection();
+                conn.sendHead(head);
+                conn.flush();
+                response = conn.readResponseHead();
+            }
+
+            System.out.println("=== SERVER RESPONSE ===");
+            System.out.println("Status: " + response.statusLine);
+            if (response.statusCode != 200) {
+                System.out.println("Error details: " + connection.readTextBody(response));
+                System.out.println("=======================");
+                System.out.println("Download failed!");
+                return;
+            }
+            System.out.println("Files in archive: " + response.headers.getOrDefault("x-archive-files", "?"));
+            System.out.println("=======================");
+
+            new File(DOWNLOAD_FOLDER).mkdirs();
+            long startNanos = System.nanoTime();
+            long[] totals = new long[2];
+            boolean zip = format.equals("zip");
+            connection.readBody(response, body -> {
+                if (zip) {
+                    extractZip(body, totals);
+                } else {
+                    extractTar(body, totals);
+                }
+            });
+            double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+            System.out.printf("Download complete! %d files, %d bytes in %.2f s (%.2f MB/s)%n", totals[0], totals[1],
+                    seconds, totals[1] / seconds / (1024 * 1024));
+        } catch (IOException e) {
+            closeConnection();
+            System.out.println("Error downloading archive: " + e.getMessage());
+        }
+    }
+
+    /** Writes each regular file in a tar stream to downloads/; totals gets the file and byte counts. */
+    private static void extractTar(InputStream in, long[] totals) throws IOException {
+        byte[] header = new byte[512];
+        String pendingPath = null;
+        long pendingSize = -1;
+        while (true) {
+            if (!readBlock(in, header)) {
+                return; // Ended without the end-of-archive blocks, which is allowed
+            }
+            if (isZeroBlock(header)) {
+                return;
+            }
+            String path = pendingPath != null ? pendingPath : tarText(header, 0, 100);
+            String prefix = tarText(header, 345, 155);
+            if (pendingPath == null && tarText(header, 257, 6).startsWith("ustar") && !prefix.isEmpty()) {
+                path = prefix + "/" + path;
+            }
+            long size = pendingSize >= 0 ? pendingSize : tarNumber(header, 124, 12);
+            char type = (char) header[156];
+            long padding = (512 - size % 512) % 512;
+
+            if (type == 'x' || type == 'L') {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                copyExactly(in, data, size);
+                skipExactly(in, padding);
+                String text = data.toString(StandardCharsets.UTF_8.name());
+                if (type == 'L') {
+                    pendingPath = text.indexOf('\0') >= 0 ? text.substring(0, text.indexOf('\0')) : text;
+                } else {
+                    for (String record : text.split("\n")) {
+                        int space = record.indexOf(' ');
+                        int equals = record.indexOf('=');
+                        if (space < 0 || equals < space)
+                            continue;
+                        String key = record.substring(space + 1, equals);
+                        if (key.equals("path")) {
+                            pendingPath = record.substring(equals + 1);
+                        } else if (key.equals("size")) {
+                            pendingSize = Long.parseLong(record.substring(equals + 1));
+                        }
+                    }
+                }
+                continue;
+            }
+            pendingPath = null;
+            pendingSize = -1;
+
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            if ((type == '0' || type == 0) && !name.isEmpty() && !name.equals("..")) {
+                File target = downloadTarget(name);
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 64 * 1024)) {
+                    copyExactly(in, out, size);
+                }
+                currentValidatorFile(target).delete();
+                System.out.println("Extracted: " + target.getName() + " (" + size + " bytes)");
+                totals[0]++;
+                totals[1] += size;
+            } else {
+                skipExactly(in, size);
+            }
+            skipExactly(in, padding);
+        }
+    }
+
+    private static void extractZip(InputStream in, long[] totals) throws IOException {
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        byte[] buffer = new byte[64 * 1024];
+        while ((entry = zip.getNextEntry()) != null) {
+            String name = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+            if (entry.isDirectory() || name.isEmpty() || name.equals(".."))
+                continue;
+            File target = downloadTarget(name);
+            long size = 0;
+            try (OutputStream out = new FileOutputStream(target)) {
+                int bytesRead;
+                while ((bytesRead = zip.read(buffer)) != -1) {
+                    out.write(buffer, 0, bytesRead);
+                    size += bytesRead;
+                }
+            }
+            currentValidatorFile(target).delete();
+            System.out.println("Extracted: " + target.getName() + " (" + size + " bytes)");
+            totals[0]++;
+            totals[1] += size;
+        }
+    }
+
+    /**
+     * Sends several files to /upload/archive as one tar, written straight from
+     * the files. A tar's length is known up front, so it goes with Content-Length.
+     */
+    private void uploadArchive(Scanner scanner) {
+        System.out.print("Enter file paths separated by commas, or a directory: ");
+        String input = scanner.nextLine().trim();
+        List<File> files = new ArrayList<>();
+        File directory = new File(input);
+        if (directory.isDirectory()) {
+            File[] listed = directory.listFiles(File::isFile);
+            if (listed != null) {
+                Arrays.sort(listed);
+                files.addAll(Arrays.asList(listed));
+            }
+        } else {
+            for (String path : input.split(",")) {
+                File file = new File(path.trim());
+                if (!path.trim().isEmpty()) {
+                    if (!file.isFile()) {
+                        System.out.println("Error: File not found or is not a valid file: " + path.trim());
+                        return;
+                    }
+                    files.add(file);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            System.out.println("No files to upload.");
+            return;
+        }
+
+        List<byte[]> headers = new ArrayList<>();
+        long length = 1024;
+        for (File file : files) {
+            byte[] header = tarHeader(file.getName(), file.length(), file.lastModified());
+            headers.add(header);
+            length += header.length + file.length() + (512 - file.length() % 512) % 512;
+        }
+        System.out.println("Uploading " + files.size() + " files as one tar (" + length + " bytes)");
+
+        useNodeFor(null);
+        try {
+            closeConnection();
+            ServerConnection conn = connection();
+            conn.sendHead("POST /upload/archive HTTP/1.1\r\n" +
+                    "Host: " + serverHost + ":" + serverPort + "\r\n" +
+                    "Content-Type: application/x-tar\r\n" +
+                    "Content-Length: " + length + "\r\n" +
+                    "Connection: keep-alive\r\n" +
+                    "\r\n");
+            OutputStream out = conn.body();
+            byte[] buffer = new byte[64 * 1024];
+            long sent = 0;
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                out.write(headers.get(i));
+                long remaining = file.length();
+                try (FileInputStream in = new FileInputStream(file)) {
+                    while (remaining > 0) {
+                        int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (bytesRead == -1) {
+                            throw new IOException(file.getName() + " shrank while it was being uploaded");
+                        }
+                        out.write(buffer, 0, bytesRead);
+                        remaining -= bytesRead;
+                        sent += bytesRead;
+                        printProgress("Uploading", sent, length);
+                    }
+                }
+                out.write(new byte[(int) ((512 - file.length() % 512) % 512)]);
+            }
+            out.write(new byte[1024]);
+            conn.flush();
+            System.out.println();
+
+            HTTPResponse response = conn.readResponseHead();
+            String message = conn.readTextBody(response);
+            System.out.println("=== SERVER RESPONSE ===");
+            System.out.println("Status: " + response.statusLine);
+            System.out.println(message);
+            System.out.println("=======================");
+            System.out.println(response.statusCode == 200 ? "Upload successful!" : "Upload failed!");
+        } catch (IOException e) {
+            closeConnection();
+            System.out.println("Error uploading files: " + e.getMessage());
+        }
+    }
+
+    /** One file as the server's /list reports it. */
+    private static class ListedFile {
+        String name;
+        long size;
+        long modified;
+        String type;
+    }
+
+    private void browseFiles(Scanner scanner) {
+        String dir = askListFolder(scanner);
+        if (dir == null)
+            return;
+        System.out.print("Sort by (name/size/modified) [name]: ");
+        String sort = scanner.nextLine().trim().toLowerCase();
+        if (sort.isEmpty()) {
+            sort = "name";
+        }
+        if (!sort.equals("name") && !sort.equals("size") && !sort.equals("modified")) {
+            System.out.println("Unknown sort: " + sort);
+            return;
+        }
+        System.out.print("Order (asc/desc) [" + (sort.equals("name") ? "asc" : "desc") + "]: ");
+        String order = scanner.nextLine().trim().toLowerCase();
+        if (order.isEmpty()) {
+            // Biggest or newest first is what anyone sorting by those wants to see
+            order = sort.equals("name") ? "asc" : "desc";
+        }
+        if (!order.equals("asc") && !order.equals("desc")) {
+            System.out.println("Unknown order: " + order);
+            return;
+        }
+        listPages(scanner, "dir=" + dir + "&sort=" + sort + "&order=" + order, dir.equals("shared"));
+    }
+
+    private void searchFiles(Scanner scanner) {
+        String dir = askListFolder(scanner);
+        if (dir == null)
+            return;
+        System.out.print("Enter the start of a filename, or a pattern such as *.log: ");
+        String search = scanner.nextLine().trim();
+        if (search.isEmpty()) {
+            System.out.println("Nothing to search for.");
+            return;
+        }
+        boolean glob = search.contains("*") || search.contains("?") || search.contains("[") || search.contains("{");
+        try {
+            listPages(scanner, "dir=" + dir + (glob ? "&glob=" : "&prefix=") + URLEncoder.encode(search, "UTF-8"),
+                    dir.equals("shared"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String askListFolder(Scanner scanner) {
+        System.out.print("Folder (shared/uploads) [shared]: ");
+        String dir = scanner.nextLine().trim().toLowerCase();
+        if (dir.isEmpty()) {
+            dir = "shared";
+        }
+        if (!dir.equals("shared") && !dir.equals("uploads")) {
+            System.out.println("Unknown folder: " + dir);
+            return null;
+        }
+        return dir;
+    }
+
+    /**
+     * Shows a listing a page at a time, each file printed as soon as it arrives.
+     * Files in the shared folder can be downloaded by their number on the page.
+     */
+    private void listPages(Scanner scanner, String query, boolean downloadable) {
+        String cursor = null;
+        while (true) {
+            List<ListedFile> page = new ArrayList<>();
+            String[] next = new String[1];
+            try {
+                String path = "/list?" + query + "&limit=" + LIST_PAGE_SIZE
+                        + (cursor != null ? "&cursor=" + URLEncoder.encode(cursor, "UTF-8") : "");
+                if (!fetchListing(path, file -> {
+                    if (page.isEmpty()) {
+                        System.out.printf("%4s  %-40s %12s  %s%n", "#", "Name", "Size", "Modified");
+                    }
+                    page.add(file);
+                    System.out.printf("%4d  %-40s %12d  %s%n", page.size(), file.name, file.size,
+                            LIST_DATE_FORMAT.format(Instant.ofEpochMilli(file.modified)));
+                }, next)) {
+                    return;
+                }
+            } catch (IOException e) {
+                closeConnection();
+                System.out.println("Error listing files: " + e.getMessage());
+                return;
+            }
+            if (page.isEmpty()) {
+                System.out.println(cursor == null ? "No files found." : "No more files.");
+                return;
+            }
+            cursor = next[0];
+
+            if (cursor == null && !downloadable)
+                return;
+            while (true) {
+                if (cursor != null) {
+                    System.out.print(downloadable ? "Enter for the next page, a number to download that file, q to stop: "
+                            : "Enter for the next page, q to stop: ");
+                } else {
+                    System.out.print("A number to download that file, Enter to stop: ");
+                }
+                String answer = scanner.nextLine().trim();
+                if (answer.equalsIgnoreCase("q"))
+                    return;
+                if (answer.isEmpty()) {
+                    if (cursor == null)
+                        return;
+                    break;
+                }
+                int number;
+                try {
+                    number = Integer.parseInt(answer);
+                } catch (NumberFormatException e) {
+                    number = 0;
+                }
+                if (!downloadable || number < 1 || number > page.size()) {
+                    System.out.println("Invalid choice: " + answer);
+                    continue;
+                }
+                downloadFile(page.get(number - 1).name);
+                System.out.println();
+            }
+        }
+    }
+
+    /**
+     * Requests one page of a listing and hands each file in it to onFile while the
+     * body is still arriving. next[0] is set to the cursor for the following page,
+     * or null on the last one. Returns false, having printed why, if the server
+     * refused.
+     */
+    private boolean fetchListing(String path, Consumer<ListedFile> onFile, String[] next) throws IOException {
+        // Each node lists its own folders; pages all come from the one on the command line
+        useNodeFor(null);
+        String head = "GET " + path + " HTTP/1.1\r\n" +
+                "Host: " + serverHost + ":" + serverPort + "\r\n" +
+                "Connection: keep-alive\r\n" +
+                "\r\n";
+        HTTPResponse response;
+        try {
+            ServerConnection conn = connection();
+            conn.sendHead(head);
+            conn.flush();
+            response = conn.readResponseHead();
+        } catch (StaleConnectionException e) {
+            closeConnection();
+            ServerConnection conn = connection();
+            conn.sendHead(head);
+            conn.flush();
+            response = conn.readResponseHead();
+        }
+        if (response.statusCode != 200) {
+            System.out.println("Listing failed: " + response.statusLine);
+            System.out.println("Error details: " + connection.readTextBody(response));
+            return false;
+        }
+        connection.readBody(response, body -> {
+            Object value = new ListingParser(body, onFile).parse().get("next");
+            next[0] = value instanceof String ? (String) value : null;
+        });
+        return true;
+    }
+
+    /**
+     * Reads a /list response: a JSON object whose "files" array is handed over
+     * one file at a time as it is parsed, so a long listing is never held whole.
+     * Returns the object's other members. Handles the JSON the server writes,
+     * which is all this has to read; GET /cluster, which has no files, too.
+     */
+    private static class ListingParser {
+        private final Reader in;
+        private final Consumer<ListedFile> onFile;
+        private int peeked = -2;
+
+        ListingParser(InputStream body, Consumer<ListedFile> onFile) {
+            this.in = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8), 64 * 1024);
+            this.onFile = onFile;
+        }
+
+        Map<String, Object> parse() throws IOException {
+            Map<String, Object> members = new HashMap<>();
+            expect('{');
+            if (skipIf('}'))
+                return members;
+            do {
+                String key = readString();
+                expect(':');
+                if (key.equals("files")) {
+                    expect('[');
+                    if (!skipIf(']')) {
+                        do {
+                            onFile.accept(toFile(readValue()));
+                        } while (skipIf(','));
+                        expect(']');
+                    }
+                } else {
+                    members.put(key, readValue());
+                }
+            } while (skipIf(','));
+            expect('}');
+            return members;
+        }
+
+        private static ListedFile toFile(Object value) throws IOException {
+            if (!(value instanceof Map)) {
+                throw new IOException("Malformed listing: a file entry is not an object");
+            }
+            Map<?, ?> fields = (Map<?, ?>) value;
+            ListedFile file = new ListedFile();
+            file.name = String.valueOf(fields.get("name"));
+            file.size = fields.get("size") instanceof Number ? ((Number) fields.get("size")).longValue() : -1;
+            file.modified = fields.get("modified") instanceof Number ? ((Number) fields.get("modified")).longValue() : 0;
+            file.type = fields.get("type") instanceof String ? (String) fields.get("type") : null;
+            return file;
+        }
+
+        private Object readValue() throws IOException {
+            int c = peek();
+            if (c == '"')
+                return readString();
+            if (c == '{') {
+                Map<String, Object> object = new HashMap<>();
+                expect('{');
+                if (!skipIf('}')) {
+                    do {
+                        String key = readString();
+                        expect(':');
+                        object.put(key, readValue());
+                    } while (skipIf(','));
+                    expect('}');
+                }
+                return object;
+            }
+            if (c == '[') {
+                List<Object> array = new ArrayList<>();
+                expect('[');
+                if (!skipIf(']')) {
+                    do {
+                        array.add(readValue());
+                    } while (skipIf(','));
+                    expect(']');
+                }
+                return array;
+            }
+            StringBuilder word = new StringBuilder();
+            while ((c = peek()) != -1 && (Character.isLetterOrDigit(c) || c == '-' || c == '+' || c == '.')) {
+                word.append((char) next());
+            }
+            String literal = word.toString();
+            switch (literal) {
+                case "null":
+                    return null;
+                case "true":
+                    return Boolean.TRUE;
+                case "false":
+                    return Boolean.FALSE;
+            }
+            try {
+                return literal.contains(".") || literal.contains("e") || literal.contains("E")
+                        ? (Object) Double.parseDouble(literal) : (Object) Long.parseLong(literal);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed listing near '" + literal + "'");
+            }
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            StringBuilder out = new StringBuilder();
+            while (true) {
+                int c = next();
+                if (c == -1)
+                    throw new EOFException("Listing ended inside a string");
+                if (c == '"')
+                    return out.toString();
+                if (c != '\\') {
+                    out.append((char) c);
+                    continue;
+                }
+                int escaped = next();
+                switch (escaped) {
+                    case 'n':
+                        out.append('\n');
+                        break;
+                    case 'r':
+                        out.append('\r');
+                        break;
+                    case 't':
+                        out.append('\t');
+                        break;
+                    case 'b':
+                        out.append('\b');
+                        break;
+                    case 'f':
+                        out.append('\f');
+                        break;
+                    case 'u': {
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) {
+                            hex[i] = (char) next();
+                        }
+                        try {
+                            out.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Malformed listing: bad \\u escape");
+                        }
+                        break;
+                    }
+                    default:
+                        if (escaped == -1)
+                            throw new EOFException("Listing ended inside a string");
+                        out.append((char) escaped); // \", \\ and \/
+                }
+            }
+        }
+
+        private void expect(char wanted) throws IOException {
+            peek();
+            int c = next();
+            if (c != wanted) {
+                throw new IOException("Malformed listing: expected '" + wanted + "' but found "
+                        + (c == -1 ? "the end" : "'" + (char) c + "'"));
+            }
+        }
+
+        private boolean skipIf(char wanted) throws IOException {
+            if (peek() != wanted)
+                return false;
+            next();
+            return true;
+        }
+
+        /** The next character that isn't white space, without consuming it. */
+        private int peek() throws IOException {
+            if (peeked == -2) {
+                peeked = in.read();
+            }
+            while (peeked == ' ' || peeked == '\n' || peeked == '\r' || peeked == '\t') {
+                peeked = in.read();
+            }
+            return peeked;
+        }
+
+        private int next() throws IOException {
+            int c = peeked != -2 ? peeked : in.read();
+            peeked = -2;
+            return c;
+        }
+    }
+
+    /** A ustar header for a file, preceded by a pax header when the name is too long for it. */
+    private static byte[] tarHeader(String name, long size, long lastModifiedMillis) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        StringBuilder pax = new StringBuilder();
+        if (name.getBytes(StandardCharsets.UTF_8).length > 100) {
+            pax.append(paxRecord("path", name));
+        }
+        if (size > 077777777777L) {
+            pax.append(paxRecord("size", Long.toString(size)));
+        }
+        if (pax.length() > 0) {
+            byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+            header.write(ustarBlock("PaxHeaders/" + name, records.length, lastModifiedMillis, 'x'), 0, 512);
+            header.write(records, 0, records.length);
+            header.write(new byte[(512 - records.length % 512) % 512], 0, (512 - records.length % 512) % 512);
+        }
+        header.write(ustarBlock(name, Math.min(size, 077777777777L), lastModifiedMillis, '0'), 0, 512);
+        return header.toByteArray();
+    }
+
+    private static byte[] ustarBlock(String name, long size, long lastModifiedMillis, char type) {
+        byte[] block = new byte[512];
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        // A name cut short here is only a fallback; the pax header carries the real one
+        System.arraycopy(nameBytes, 0, block, 0, Math.min(100, nameBytes.length));
+        putOctal(block, 100, 8, 0644);
+        putOctal(block, 108, 8, 0);
+        putOctal(block, 116, 8, 0);
+        putOctal(block, 124, 12, size);
+        putOctal(block, 136, 12, lastModifiedMillis / 1000);
+        Arrays.fill(block, 148, 156, (byte) ' ');
+        block[156] = (byte) type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.ISO_8859_1), 0, block, 257, 6);
+        block[263] = '0';
+        block[264] = '0';
+        long checksum = 0;
+        for (byte b : block) {
+            checksum += b & 0xff;
+        }
+        putOctal(block, 148, 7, checksum);
+        return block;
+    }
+
+    private static void putOctal(byte[] block, int offset, int length, long value) {
+        String digits = String.format("%0" + (length - 1) + "o", value);
+        System.arraycopy(digits.getBytes(StandardCharsets.ISO_8859_1), digits.length() - (length - 1), block, offset,
+                length - 1);
+    }
+
+    private static String paxRecord(String key, String value) {
+        int body = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int length = body + Integer.toString(body).length();
+        if (Integer.toString(length).length() != Integer.toString(body).length()) {
+            length++;
+        }
+        return length + " " + key + "=" + value + "\n";
+    }
+
+    private static String tarText(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long tarNumber(byte[] header, int offset, int length) throws IOException {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7f;
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (header[offset + i] & 0xff);
+            }
+            return value;
+        }
+        String digits = tarText(header, offset, length).trim();
+        try {
+            return digits.isEmpty() ? 0 : Long.parseLong(digits, 8);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed tar header");
+        }
+    }
+
+    /** Reads a whole 512-byte block; returns false at a clean end of stream. */
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int filled = 0;
+        while (filled < block.length) {
+            int bytesRead = in.read(block, filled, block.length - filled);
+            if (bytesRead == -1) {
+                if (filled == 0)
+                    return false;
+                throw new EOFException("Archive ended in the middle of a header");
+            }
+            filled += bytesRead;
+        }
+        return true;
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static void copyExactly(InputStream in, OutputStream out, long count) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        while (count > 0) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (bytesRead == -1) {
+                throw new EOFException("Archive ended in the middle of a file");
+            }
+            out.write(buffer, 0, bytesRead);
+            count -= bytesRead;
+        }
+    }
+
+    private static void skipExactly(InputStream in, long count) throws IOException {
+        copyExactly(in, OutputStream.nullOutputStream(), count);
+    }
+
+    private void sendDownloadRequest(ServerConnection conn, String filename) throws IOException {
+        String request = "GET /download?filename=" + URLEncoder.encode(filename, "UTF-8") +
+                " HTTP/1.1\r\n" +
+                "Host: " + serverHost + ":" + serverPort + "\r\n" +
+                resumeHeaders(filename) +
+                conditionalHeaders(filename) +
+                "Accept-Encoding: gzip, deflate\r\n" +
+                "Connection: keep-alive\r\n" +
+                "\r\n";
+        conn.sendHead(request);
+    }
+
+    private static File downloadTarget(String filename) {
+        return new File(DOWNLOAD_FOLDER, "downloaded_" + filename);
+    }
+
+    // A download in progress is written to <target>.part; the server's validator for
+    // it is kept in <target>.part.etag so a later attempt can resume with If-Range
+    private static File partialFile(File target) {
+        return new File(target.getPath() + ".part");
+    }
+
+    private static File validatorFile(File target) {
+        return new File(target.getPath() + ".part.etag");
+    }
+
+    // A finished download keeps the ETag and Last-Modified it was served with in
+    // <target>.etag, so asking for it again only transfers it if it has changed
+    private static File currentValidatorFile(File target) {
+        return new File(target.getPath() + ".etag");
+    }
+
+    /**
+     * Asks for just the missing tail when an earlier attempt left a partial file.
+     * If-Range makes the server send the whole file instead if it has changed since.
+     */
+    private static String resumeHeaders(String filename) throws IOException {
+        File target = downloadTarget(filename);
+        File partial = partialFile(target);
+        File validator = validatorFile(target);
+        if (!partial.isFile() || partial.length() == 0 || !validator.isFile()) {
+            return "";
+        }
+
+        String tag;
+        try (BufferedReader reader = new BufferedReader(new FileReader(validator))) {
+            tag = reader.readLine();
+        }
+        if (tag == null || tag.trim().isEmpty()) {
+            return "";
+        }
+        return "Range: bytes=" + partial.length() + "-\r\n" +
+                "If-Range: " + tag.trim() + "\r\n";
+    }
+
+    /**
+     * Makes the request conditional when an earlier download of the file is still
+     * in downloads/ untouched: the server answers 304 instead of sending it again
+     * if it hasn't changed. A copy edited since it was downloaded is always
+     * fetched again.
+     */
+    private static String conditionalHeaders(String filename) throws IOException {
+        File target = downloadTarget(filename);
+        File validators = currentValidatorFile(target);
+        if (!target.isFile() || !validators.isFile() || partialFile(target).isFile()) {
+            return "";
+        }
+
+        String tag;
+        String lastModified;
+        try (BufferedReader reader = new BufferedReader(new FileReader(validators))) {
+            tag = reader.readLine();
+            lastModified = reader.readLine();
+        }
+        long lastModifiedMillis = parseHttpDate(lastModified);
+        if (lastModifiedMillis < 0 || target.lastModified() != lastModifiedMillis) {
+            return "";
+        }
+        StringBuilder headers = new StringBuilder();
+        if (tag != null && !tag.trim().isEmpty()) {
+            headers.append("If-None-Match: ").append(tag.trim()).append("\r\n");
+        }
+        headers.append("If-Modified-Since: ").append(lastModified.trim()).append("\r\n");
+        return headers.toString();
+    }
+
+    /** Parses an HTTP date into epoch milliseconds, or returns -1 if there is none. */
+    private static long parseHttpDate(String value) {
+        if (value == null)
+            return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private void receiveDownload(ServerConnection conn, HTTPResponse response, String filename) throws IOException {
+        System.out.println("=== SERVER RESPONSE ===");
+        System.out.println("Status: " + response.statusLine);
+
+        if (response.statusCode == 304) {
+            System.out.println("=======================");
+            System.out.println("File is up to date: " + downloadTarget(filename).getName() + " (not downloaded again)");
+            return;
+        }
+
+        if (response.statusCode != 200 && response.statusCode != 206) {
+            System.out.println("Error details: " + conn.readTextBody(response));
+            System.out.println("=======================");
+            System.out.println("Download failed!");
+            return;
+        }
+
+        long totalBytesReceived = saveDownload(conn, response, filename, null);
+
+        System.out.println("Download complete!");
+        System.out.println("File saved as: " + downloadTarget(filename).getName());
+        System.out.println("Total bytes received: " + totalBytesReceived);
+    }
+
+    /**
+     * Writes a 200 or 206 body to the file's .part file, appending to it for a
+     * resumed 206, and moves it into downloads/ once complete. Without received it
+     * describes the response and draws a progress bar, for the menu; with it, it
+     * only adds the bytes as they arrive. Returns the bytes written.
+     */
+    private static long saveDownload(ServerConnection conn, HTTPResponse response, String filename,
+            AtomicLong received) throws IOException {
+        boolean verbose = received == null;
+        File downloadDir = new File(DOWNLOAD_FOLDER);
+        if (!downloadDir.exists()) {
+            downloadDir.mkdir();
+        }
+
+        File downloadFile = downloadTarget(filename);
+        File partial = partialFile(downloadFile);
+        File validator = validatorFile(downloadFile);
+
+        boolean resuming = response.statusCode == 206;
+        long offset = 0;
+        long fileSize = response.contentLength;
+        if (resuming) {
+            long[] contentRange = parseContentRange(response.headers.get("content-range"));
+            if (contentRange == null || contentRange[0] != partial.length()) {
+                throw new IOException("Server resumed at an unexpected offset: " + response.headers.get("content-range"));
+            }
+            offset = contentRange[0];
+            fileSize = contentRange[1];
+            if (verbose) {
+                System.out.println("Resuming download at byte " + offset);
+            }
+        } else {
+            if (verbose) {
+                System.out.println("File found, starting download...");
+            }
+            // Remember the validator so an interrupted download can be resumed later. A compressed
+            // response's ETag names the compressed variant, but the partial file holds the
+            // decompressed bytes, so only Last-Modified can validate a resume of it
+            String encoding = response.headers.get("content-encoding");
+            String tag = encoding != null ? response.headers.get("last-modified")
+                    : response.headers.getOrDefault("etag", response.headers.get("last-modified"));
+            if (tag != null) {
+                try (Writer writer = new FileWriter(validator)) {
+                    writer.write(tag);
+                }
+            } else {
+                validator.delete();
+            }
+        }
+        if (verbose) {
+            if (response.headers.containsKey("content-encoding")) {
+                System.out.println("Content-Encoding: " + response.headers.get("content-encoding") + " (decompressing)");
+                if (fileSize >= 0) {
+                    System.out.println("Compressed size: " + fileSize + " bytes");
+                }
+            } else if (fileSize >= 0) {
+                System.out.println("File size: " + fileSize + " bytes");
+            }
+            System.out.println("=======================");
+        }
+
+        long totalBytesReceived;
+        try (FileOutputStream fos = new FileOutputStream(partial, resuming)) {
+            if (verbose) {
+                totalBytesReceived = conn.copyBody(response, fos, "Downloading", offset, fileSize);
+                System.out.println();
+            } else {
+                totalBytesReceived = conn.copyBody(response, new FilterOutputStream(fos) {
+                    @Override
+                    public void write(byte[] data, int offset, int length) throws IOException {
+                        out.write(data, offset, length);
+                        received.addAndGet(length);
+                    }
+                }, null, 0, 0);
+            }
+        }
+
+        downloadFile.delete();
+        if (!partial.renameTo(downloadFile)) {
+            throw new IOException("Could not rename " + partial.getName() + " to " + downloadFile.getName());
+        }
+        validator.delete();
+        saveValidators(downloadFile, response);
+
+        return totalBytesReceived;
+    }
+
+    /**
+     * Records what a finished download was served with and stamps the file with
+     * the server's Last-Modified, which is how a later request tells that the copy
+     * hasn't been edited since.
+     */
+    private static void saveValidators(File downloadFile, HTTPResponse response) throws IOException {
+        File validators = currentValidatorFile(downloadFile);
+        String lastModified = response.headers.get("last-modified");
+        long lastModifiedMillis = parseHttpDate(lastModified);
+        if (lastModifiedMillis < 0 || !downloadFile.setLastModified(lastModifiedMillis)) {
+            validators.delete();
+            return;
+        }
+        try (Writer writer = new FileWriter(validators)) {
+            writer.write(response.headers.getOrDefault("etag", "") + "\n" + lastModified + "\n");
+        }
+    }
+
+    /** Parses "bytes start-end/size" into {start, size}, or returns null if malformed. */
+    private static long[] parseContentRange(String value) {
+        if (value == null || !value.startsWith("bytes "))
+            return null;
+        try {
+            int dash = value.indexOf('-');
+            int slash = value.indexOf('/');
+            long start = Long.parseLong(value.substring(6, dash).trim());
+            String size = value.substring(slash + 1).trim();
+            return new long[] { start, size.equals("*") ? -1 : Long.parseLong(size) };
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Redraws the progress bar, but only when its percentage has moved: it is
+     * called for every block read or written, and a terminal can't keep up with
+     * being redrawn that often on a fast transfer.
+     */
+    private static void printProgress(String label, long done, long total) {
+        if (total <= 0)
+            return;
+        int percent = (int) (done * 100 / total);
+        if (percent == lastProgressPercent && label.equals(lastProgressLabel))
+            return;
+        lastProgressPercent = percent;
+        lastProgressLabel = label;
+        int progress = (int) ((done * PROGRESS_BAR_WIDTH) / total);
+        StringBuilder bar = new StringBuilder("\r").append(label).append(": [");
+        for (int i = 0; i < PROGRESS_BAR_WIDTH; i++) {
+            if (i < progress) {
+                bar.append('=');
+            } else if (i == progress) {
+                bar.append('>');
+            } else {
+                bar.append(' ');
+            }
+        }
+        bar.append("] ").append(percent).append('%');
+        System.out.print(bar);
     }
-}
\ No newline at end of file
+}
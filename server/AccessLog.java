@@ -0,0 +1,116 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One line per request, in the Common Log Format plus the time taken and the
+ * server's note about the response. Request threads only queue an entry; a
+ * background thread formats entries in batches and writes each batch at once,
+ * so serving a request never waits on the console or a log file. If the queue
+ * fills up because output can't keep up, entries are dropped and counted rather
+ * than slowing requests down.
+ */
+class AccessLog {
+    private static final int QUEUE_SIZE = 16 * 1024;
+    private static final int MAX_BATCH = 1024;
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter
+            .ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final PrintStream out;
+    final LongAdder dropped = new LongAdder();
+
+    private static final class Entry {
+        final long timeMillis;
+        final InetAddress client;
+        final String requestLine;
+        final int statusCode;
+        final long bytesSent;
+        final long durationNanos;
+        final String message;
+
+        Entry(long timeMillis, InetAddress client, String requestLine, int statusCode, long bytesSent,
+                long durationNanos, String message) {
+            this.timeMillis = timeMillis;
+            this.client = client;
+            this.requestLine = requestLine;
+            this.statusCode = statusCode;
+            this.bytesSent = bytesSent;
+            this.durationNanos = durationNanos;
+            this.message = message;
+        }
+    }
+
+    private AccessLog(PrintStream out) {
+        this.out = out;
+    }
+
+    /** "stdout" logs to the console, "off" nowhere (null), anything else is a file to append to. */
+    static AccessLog open(String destination) throws IOException {
+        if ("off".equals(destination))
+            return null;
+        PrintStream out = "stdout".equals(destination) ? System.out
+                : new PrintStream(new FileOutputStream(destination, true), false, StandardCharsets.UTF_8.name());
+        AccessLog log = new AccessLog(out);
+        Thread writer = new Thread(log::run, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return log;
+    }
+
+    /** Queues a line for a finished request; requestLine is null if the request couldn't be parsed. */
+    void log(InetAddress client, String requestLine, int statusCode, long bytesSent, long durationNanos,
+            String message) {
+        Entry entry = new Entry(System.currentTimeMillis(), client, requestLine, statusCode, bytesSent, durationNanos,
+                message);
+        if (!queue.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        StringBuilder text = new StringBuilder(64 * 1024);
+        try {
+            while (true) {
+                Entry first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Entry entry : batch) {
+                    format(entry, text);
+                }
+                out.print(text);
+                out.flush();
+                batch.clear();
+                text.setLength(0);
+            }
+        } catch (InterruptedException e) {
+            // Server shutting down
+        }
+    }
+
+    private static void format(Entry entry, StringBuilder text) {
+        text.append(entry.client != null ? entry.client.getHostAddress() : "-")
+                .append(" - - [").append(TIMESTAMP.format(Instant.ofEpochMilli(entry.timeMillis))).append("] \"")
+                .append(entry.requestLine != null ? entry.requestLine : "-").append("\" ")
+                .append(entry.statusCode).append(' ')
+                .append(entry.bytesSent).append(' ')
+                .append(String.format(Locale.ROOT, "%.3fms", entry.durationNanos / 1e6));
+        if (entry.message != null) {
+            text.append(" \"").append(entry.message).append('"');
+        }
+        text.append('\n');
+    }
+}
@@ -0,0 +1,501 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Several files uploaded in one request to POST /upload/archive, as a tar
+ * (Content-Type application/x-tar) or as multipart/form-data, the way a browser
+ * form or curl -F sends them. The body is unpacked as it streams in: each file
+ * in it goes through the upload store like a single upload, and gets its own
+ * upload_<timestamp> name. Only regular files are kept, by their base name;
+ * directories, links and paths inside the archive are ignored, so an archive
+ * can't write anywhere but uploads/. Each file is committed in the background
+ * while the next one streams in, with at most MAX_COMMITTING of them under way.
+ */
+abstract class ArchiveUpload implements BodyHandler {
+    private static final int MAX_COMMITTING = 8;
+
+    private final UploadStore store;
+    // One line per stored file, in archive order, once its commit is done
+    private final List<CompletableFuture<String>> files = new ArrayList<>();
+    // Every file before this one has been committed
+    private int committed;
+    private UploadStore.Upload current;
+    private String currentName;
+
+    ArchiveUpload(UploadStore store) {
+        this.store = store;
+    }
+
+    /** Picks the unpacker for the request's Content-Type. */
+    static ArchiveUpload forRequest(Map<String, String> headers, UploadStore store)
+            throws HTTPRequestParser.HTTPParseException {
+        String contentType = headers.getOrDefault("content-type", "");
+        String mediaType = contentType.split(";")[0].trim().toLowerCase();
+        if (mediaType.equals("application/x-tar") || mediaType.equals("application/tar")) {
+            return new TarUpload(store);
+        }
+        if (mediaType.equals("multipart/form-data")) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.toLowerCase().startsWith("boundary=")) {
+                    String boundary = param.substring("boundary=".length());
+                    if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                        boundary = boundary.substring(1, boundary.length() - 1);
+                    }
+                    if (!boundary.isEmpty() && boundary.length() <= 70) {
+                        return new MultipartUpload(store, boundary);
+                    }
+                }
+            }
+            throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: multipart boundary missing or invalid");
+        }
+        throw new HTTPRequestParser.HTTPParseException(415,
+                "Unsupported Media Type: expected application/x-tar or multipart/form-data");
+    }
+
+    /** True once the archive's end marker has been read. */
+    abstract boolean ended();
+
+    void beginFile(String path, Map<String, byte[]> expectedDigests) throws IOException {
+        currentName = baseName(path);
+        current = store.begin(currentName, expectedDigests);
+    }
+
+    void fileData(ByteBuffer data) throws IOException {
+        current.write(data);
+    }
+
+    void endFile() throws IOException {
+        String name = currentName;
+        CompletableFuture<UploadStore.Result> commit = current.commit();
+        current = null;
+        if (commit.isCompletedExceptionally()) {
+            // A digest that doesn't match is known at once and refuses the rest of the archive
+            try {
+                commit.join();
+            } catch (CompletionException e) {
+                Throwable cause = Response.cause(e);
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+        }
+        files.add(commit.thenApply(result -> name + " -> " + result.file.getName()
+                + " (" + result.length + " bytes"
+                + (result.duplicate ? ", same content as an earlier upload" : "") + ")\n"));
+    }
+
+    @Override
+    public CompletableFuture<Void> ready() throws IOException {
+        CompletableFuture<Void> ready = current != null ? current.ready() : null;
+        if (ready != null)
+            return ready;
+        while (committed < files.size() && files.get(committed).isDone()) {
+            committed++;
+        }
+        if (files.size() - committed < MAX_COMMITTING)
+            return null;
+        return files.get(committed).handle((line, failure) -> null);
+    }
+
+    boolean inFile() {
+        return current != null;
+    }
+
+    /** The last part of a path from the archive; null for one that doesn't name a file. */
+    static String baseName(String path) {
+        String name = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+        return name.isEmpty() || name.equals(".") || name.equals("..") ? null : name;
+    }
+
+    @Override
+    public Response finish(boolean complete) {
+        if (current != null) {
+            current.abort();
+            current = null;
+        }
+        boolean endedEarly = !complete || !ended();
+        return Response.deferred(CompletableFuture.allOf(files.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> {
+                    StringBuilder report = new StringBuilder();
+                    for (CompletableFuture<String> file : files) {
+                        report.append(file.join());
+                    }
+                    int fileCount = files.size();
+                    String logMessage = "Received archive: " + fileCount + " files";
+                    if (endedEarly) {
+                        // Files that arrived whole are kept, like the rest of an interrupted upload
+                        return Response.text(400, "Bad Request", "Archive ended early; " + fileCount
+                                + " files stored before that:\n" + report)
+                                .withLogMessage(logMessage + " before it ended early");
+                    }
+                    return Response.text(200, "OK", "Uploaded " + fileCount + " files:\n" + report)
+                            .withLogMessage(logMessage);
+                }));
+    }
+
+    @Override
+    public void abort() {
+        if (current != null) {
+            current.abort();
+            current = null;
+        }
+    }
+
+    /**
+     * Reads a tar stream block by block. Understands ustar names with a prefix,
+     * pax extended headers and GNU long names for paths and sizes that don't fit
+     * a plain header.
+     */
+    static final class TarUpload extends ArchiveUpload {
+        private static final int BLOCK_SIZE = 512;
+        // Extended headers are buffered whole; nothing legitimate comes close to this
+        private static final int MAX_EXTENDED_HEADER = 64 * 1024;
+
+        private enum State { HEADER, DATA, PADDING, END }
+
+        private enum Kind { FILE, EXTENDED, LONG_NAME, SKIP }
+
+        private final byte[] header = new byte[BLOCK_SIZE];
+        private int headerFill;
+        private State state = State.HEADER;
+        private Kind kind;
+        private long remaining;
+        private int padding;
+        private int zeroBlocks;
+        private ByteArrayOutputStream extended;
+        private String pendingPath;
+        private long pendingSize = -1;
+
+        TarUpload(UploadStore store) {
+            super(store);
+        }
+
+        @Override
+        boolean ended() {
+            // Archives that stop after the last file without end-of-archive blocks are accepted too
+            return state == State.END || (state == State.HEADER && headerFill == 0 && !inFile());
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                switch (state) {
+                    case HEADER: {
+                        int n = Math.min(BLOCK_SIZE - headerFill, data.remaining());
+                        data.get(header, headerFill, n);
+                        headerFill += n;
+                        if (headerFill == BLOCK_SIZE) {
+                            headerFill = 0;
+                            readHeader();
+                        }
+                        break;
+                    }
+                    case DATA: {
+                        int n = (int) Math.min(remaining, data.remaining());
+                        ByteBuffer slice = data.duplicate();
+                        slice.limit(slice.position() + n);
+                        data.position(data.position() + n);
+                        entryData(slice);
+                        remaining -= n;
+                        if (remaining == 0) {
+                            endEntry();
+                        }
+                        break;
+                    }
+                    case PADDING: {
+                        int n = Math.min(padding, data.remaining());
+                        data.position(data.position() + n);
+                        padding -= n;
+                        if (padding == 0) {
+                            state = State.HEADER;
+                        }
+                        break;
+                    }
+                    default:
+                        data.position(data.limit()); // Whatever follows the end of the archive
+                }
+            }
+        }
+
+        private void readHeader() throws IOException {
+            boolean zero = true;
+            for (byte b : header) {
+                if (b != 0) {
+                    zero = false;
+                    break;
+                }
+            }
+            if (zero) {
+                if (++zeroBlocks == 2) {
+                    state = State.END;
+                }
+                return;
+            }
+            zeroBlocks = 0;
+
+            long checksum = 0;
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+            }
+            if (checksum != number(148, 8)) {
+                throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: invalid tar header checksum");
+            }
+
+            String path = pendingPath;
+            if (path == null) {
+                path = text(0, 100);
+                String prefix = text(345, 155);
+                if (text(257, 6).startsWith("ustar") && !prefix.isEmpty()) {
+                    path = prefix + "/" + path;
+                }
+            }
+            long size = pendingSize >= 0 ? pendingSize : number(124, 12);
+            char type = (char) header[156];
+
+            remaining = size;
+            padding = (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+            if (type == 'x' || type == 'L') {
+                if (size > MAX_EXTENDED_HEADER) {
+                    throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: tar extended header too large");
+                }
+                kind = type == 'x' ? Kind.EXTENDED : Kind.LONG_NAME;
+                extended = new ByteArrayOutputStream((int) size);
+            } else {
+                pendingPath = null;
+                pendingSize = -1;
+                String name = baseName(path);
+                boolean regular = type == '0' || type == 0 || type == '7';
+                kind = regular && name != null ? Kind.FILE : Kind.SKIP;
+                if (kind == Kind.FILE) {
+                    beginFile(name, Collections.emptyMap());
+                }
+            }
+            state = State.DATA;
+            if (remaining == 0) {
+                endEntry();
+            }
+        }
+
+        private void entryData(ByteBuffer data) throws IOException {
+            if (kind == Kind.FILE) {
+                fileData(data);
+            } else if (kind != Kind.SKIP) {
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                extended.write(bytes, 0, bytes.length);
+            }
+        }
+
+        private void endEntry() throws IOException {
+            if (kind == Kind.FILE) {
+                endFile();
+            } else if (kind == Kind.LONG_NAME) {
+                String name = extended.toString(StandardCharsets.UTF_8.name());
+                int nul = name.indexOf('\0');
+                pendingPath = nul >= 0 ? name.substring(0, nul) : name;
+            } else if (kind == Kind.EXTENDED) {
+                readPaxRecords(extended.toByteArray());
+            }
+            extended = null;
+            state = padding > 0 ? State.PADDING : State.HEADER;
+        }
+
+        /** Takes path and size from "length key=value\n" records; other keys are ignored. */
+        private void readPaxRecords(byte[] records) throws HTTPRequestParser.HTTPParseException {
+            int offset = 0;
+            try {
+                while (offset < records.length) {
+                    int space = offset;
+                    while (records[space] != ' ') {
+                        space++;
+                    }
+                    int length = Integer.parseInt(new String(records, offset, space - offset, StandardCharsets.US_ASCII));
+                    String record = new String(records, space + 1, offset + length - space - 2, StandardCharsets.UTF_8);
+                    int equals = record.indexOf('=');
+                    String key = record.substring(0, equals);
+                    String value = record.substring(equals + 1);
+                    if (key.equals("path")) {
+                        pendingPath = value;
+                    } else if (key.equals("size")) {
+                        pendingSize = Long.parseLong(value);
+                    }
+                    offset += length;
+                }
+            } catch (RuntimeException e) {
+                throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: malformed pax header");
+            }
+        }
+
+        private String text(int offset, int length) {
+            int end = offset;
+            while (end < offset + length && header[end] != 0) {
+                end++;
+            }
+            return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+        }
+
+        /** An octal field, or a base-256 one as GNU tar writes for large values. */
+        private long number(int offset, int length) throws HTTPRequestParser.HTTPParseException {
+            if ((header[offset] & 0x80) != 0) {
+                long value = header[offset] & 0x7f;
+                for (int i = 1; i < length; i++) {
+                    value = (value << 8) | (header[offset + i] & 0xff);
+                }
+                return value;
+            }
+            String digits = text(offset, length).trim();
+            try {
+                return digits.isEmpty() ? 0 : Long.parseLong(digits, 8);
+            } catch (NumberFormatException e) {
+                throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: invalid number in tar header");
+            }
+        }
+    }
+
+    /**
+     * Reads a multipart/form-data body, keeping every part that carries a
+     * filename. Part data is passed on as it arrives, holding back only enough
+     * bytes to recognise a boundary split across two reads. A part's own
+     * Content-MD5 header is checked like a single upload's.
+     */
+    static final class MultipartUpload extends ArchiveUpload {
+        private static final int MAX_PART_HEADERS = 16 * 1024;
+        private static final byte[] HEADERS_END = { '\r', '\n', '\r', '\n' };
+
+        private enum State { PREAMBLE, AFTER_BOUNDARY, HEADERS, BODY, EPILOGUE }
+
+        private final byte[] delimiter;
+        private byte[] buffer = new byte[8192];
+        private int length;
+        private State state = State.PREAMBLE;
+        private boolean keepPart;
+
+        MultipartUpload(UploadStore store, String boundary) {
+            super(store);
+            delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            // The first boundary has no CRLF in front; pretend it does so every delimiter looks the same
+            buffer[length++] = '\r';
+            buffer[length++] = '\n';
+        }
+
+        @Override
+        boolean ended() {
+            return state == State.EPILOGUE;
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            if (state == State.EPILOGUE) {
+                data.position(data.limit());
+                return;
+            }
+            if (buffer.length - length < data.remaining()) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + data.remaining()));
+            }
+            int n = data.remaining();
+            data.get(buffer, length, n);
+            length += n;
+
+            int consumed = 0;
+            while (true) {
+                int used = parse(consumed);
+                if (used < 0)
+                    break;
+                consumed = used;
+            }
+            System.arraycopy(buffer, consumed, buffer, 0, length - consumed);
+            length -= consumed;
+        }
+
+        /** Makes what progress it can from offset; returns the new offset, or -1 if it needs more input. */
+        private int parse(int offset) throws IOException {
+            switch (state) {
+                case PREAMBLE: {
+                    int found = indexOf(delimiter, offset);
+                    if (found < 0)
+                        return -1;
+                    state = State.AFTER_BOUNDARY;
+                    return found + delimiter.length;
+                }
+                case AFTER_BOUNDARY: {
+                    if (length - offset < 2)
+                        return -1;
+                    if (buffer[offset] == '-' && buffer[offset + 1] == '-') {
+                        state = State.EPILOGUE;
+                        return length;
+                    }
+                    if (buffer[offset] == '\r' && buffer[offset + 1] == '\n') {
+                        state = State.HEADERS;
+                        return offset + 2;
+                    }
+                    throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: malformed multipart boundary");
+                }
+                case HEADERS: {
+                    // A part without headers starts straight after the boundary's CRLF with another CRLF
+                    if (length - offset >= 2 && buffer[offset] == '\r' && buffer[offset + 1] == '\n') {
+                        startPart(Collections.emptyMap());
+                        return offset + 2;
+                    }
+                    int found = indexOf(HEADERS_END, offset);
+                    if (found < 0) {
+                        if (length - offset > MAX_PART_HEADERS) {
+                            throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: multipart headers too large");
+                        }
+                        return -1;
+                    }
+                    Map<String, String> headers = new HashMap<>();
+                    for (String line : new String(buffer, offset, found - offset, StandardCharsets.UTF_8).split("\r\n")) {
+                        int colon = line.indexOf(':');
+                        if (colon > 0) {
+                            headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                        }
+                    }
+                    startPart(headers);
+                    return found + HEADERS_END.length;
+                }
+                case BODY: {
+                    int found = indexOf(delimiter, offset);
+                    int end = found >= 0 ? found : Math.max(offset, length - (delimiter.length - 1));
+                    if (end > offset && keepPart) {
+                        fileData(ByteBuffer.wrap(buffer, offset, end - offset));
+                    }
+                    if (found < 0)
+                        return end == offset ? -1 : end;
+                    if (keepPart) {
+                        endFile();
+                    }
+                    state = State.AFTER_BOUNDARY;
+                    return found + delimiter.length;
+                }
+                default:
+                    return -1;
+            }
+        }
+
+        private void startPart(Map<String, String> headers) throws IOException {
+            String filename = HTTPFileServer.extractOriginalFilename(headers);
+            String name = filename == null ? null : baseName(filename);
+            // Parts without a filename are ordinary form fields
+            keepPart = name != null && headers.containsKey("content-disposition");
+            if (keepPart) {
+                beginFile(name, UploadStore.expectedDigests(headers));
+            }
+            state = State.BODY;
+        }
+
+        private int indexOf(byte[] pattern, int from) {
+            outer:
+            for (int i = from; i <= length - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (buffer[i + j] != pattern[j])
+                        continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+}
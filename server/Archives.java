@@ -0,0 +1,315 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Several shared files as one tar or zip response body, generated as it is
+ * written rather than staged on disk. Each file is opened when the archive gets
+ * to it and closed once it has been sent.
+ *
+ * A tar's size follows from the file sizes, so it is sent with Content-Length
+ * and its file data goes out zero-copy like any download. A zip is deflated as
+ * it goes, which makes its length unknown, so it is sent chunked. In both, a
+ * file that shrinks while it is being sent ends the response early, as for a
+ * single download.
+ */
+final class Archives {
+    private static final int BLOCK_SIZE = 512;
+    // Largest size the ustar header's 11 octal digits can hold; larger files need a pax header
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private Archives() {
+    }
+
+    static ResponseBody tar(List<FileIndex.Entry> entries, BufferPool copyBuffers) {
+        return new TarBody(entries, copyBuffers);
+    }
+
+    /** A zip of the files, deflated at level; files that are already compressed are only stored. */
+    static ResponseBody zip(List<FileIndex.Entry> entries, int level) {
+        return new ZipBody(entries, level);
+    }
+
+    /**
+     * The tar header block(s) for a file: a ustar header, preceded by a pax
+     * extended header when the name or size doesn't fit in it.
+     */
+    static byte[] tarHeader(String name, long size, long lastModifiedMillis) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        StringBuilder pax = new StringBuilder();
+        if (nameBytes.length > 100) {
+            pax.append(paxRecord("path", name));
+        }
+        if (size > MAX_USTAR_SIZE) {
+            pax.append(paxRecord("size", Long.toString(size)));
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        if (pax.length() > 0) {
+            byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+            header.write(ustarBlock("PaxHeaders/" + truncate(name, 80), records.length, lastModifiedMillis, 'x'),
+                    0, BLOCK_SIZE);
+            header.write(records, 0, records.length);
+            header.write(new byte[padding(records.length)], 0, padding(records.length));
+        }
+        header.write(ustarBlock(name, Math.min(size, MAX_USTAR_SIZE), lastModifiedMillis, '0'), 0, BLOCK_SIZE);
+        return header.toByteArray();
+    }
+
+    /** Zero bytes that round a file's data up to whole 512-byte blocks. */
+    static int padding(long size) {
+        return (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    private static byte[] ustarBlock(String name, long size, long lastModifiedMillis, char type) {
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] nameBytes = truncate(name, 100).getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, block, 0, Math.min(100, nameBytes.length));
+        octal(block, 100, 8, 0644);
+        octal(block, 108, 8, 0);
+        octal(block, 116, 8, 0);
+        octal(block, 124, 12, size);
+        octal(block, 136, 12, Math.max(0, lastModifiedMillis / 1000));
+        Arrays.fill(block, 148, 156, (byte) ' ');
+        block[156] = (byte) type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.ISO_8859_1), 0, block, 257, 6);
+        block[263] = '0';
+        block[264] = '0';
+        long checksum = 0;
+        for (byte b : block) {
+            checksum += b & 0xff;
+        }
+        octal(block, 148, 7, checksum);
+        return block;
+    }
+
+    /** Writes value as zero-padded octal digits and a NUL into the field. */
+    private static void octal(byte[] block, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int width = length - 1;
+        for (int i = 0; i < width; i++) {
+            int from = digits.length() - width + i;
+            block[offset + i] = (byte) (from >= 0 ? digits.charAt(from) : '0');
+        }
+        block[offset + width] = 0;
+    }
+
+    /** One "length key=value\n" record, where length counts the whole record including itself. */
+    private static String paxRecord(String key, String value) {
+        int body = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int length = body + Integer.toString(body).length();
+        if (Integer.toString(length).length() != Integer.toString(body).length()) {
+            length++;
+        }
+        return length + " " + key + "=" + value + "\n";
+    }
+
+    /** Cuts a name to at most max UTF-8 bytes without splitting a character. */
+    private static String truncate(String name, int max) {
+        while (name.getBytes(StandardCharsets.UTF_8).length > max) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return name;
+    }
+
+    /** Each file as header, data and padding, then the two zero blocks that end an archive. */
+    static final class TarBody implements ResponseBody {
+        private final List<FileIndex.Entry> entries;
+        private final BufferPool copyBuffers;
+        private final long length;
+        private int next;
+        private ResponseBody current;
+        private FileChannel source;
+        private boolean trailerQueued;
+
+        TarBody(List<FileIndex.Entry> entries, BufferPool copyBuffers) {
+            this.entries = entries;
+            this.copyBuffers = copyBuffers;
+            long total = 2 * BLOCK_SIZE;
+            for (FileIndex.Entry entry : entries) {
+                total += tarHeader(entry.name, entry.length, entry.lastModified).length + entry.length
+                        + padding(entry.length);
+            }
+            this.length = total;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel target) throws IOException {
+            while (true) {
+                if (current == null && !nextPart()) {
+                    return true;
+                }
+                if (!current.writeTo(target))
+                    return false;
+                closeCurrent();
+            }
+        }
+
+        private boolean nextPart() throws IOException {
+            if (next < entries.size()) {
+                FileIndex.Entry entry = entries.get(next++);
+                source = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+                current = ResponseBody.sequence(Arrays.asList(
+                        ResponseBody.bytes(tarHeader(entry.name, entry.length, entry.lastModified)),
+                        ResponseBody.fileRegion(source, 0, entry.length, copyBuffers),
+                        ResponseBody.bytes(new byte[padding(entry.length)])));
+                return true;
+            }
+            if (!trailerQueued) {
+                trailerQueued = true;
+                current = ResponseBody.bytes(new byte[2 * BLOCK_SIZE]);
+                return true;
+            }
+            return false;
+        }
+
+        private void closeCurrent() throws IOException {
+            current.close();
+            current = null;
+            if (source != null) {
+                source.close();
+                source = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (current != null) {
+                    closeCurrent();
+                }
+            } catch (IOException e) {
+                // Nothing more to send from it anyway
+            }
+        }
+    }
+
+    /**
+     * Feeds the files through a ZipOutputStream a block at a time and sends what
+     * comes out as chunks. Each chunk is complete before any of it is written, so
+     * a non-blocking channel that stalls resumes with the same chunk.
+     */
+    static final class ZipBody implements ResponseBody {
+        private static final int INPUT_SIZE = 64 * 1024;
+
+        /** Collects the zip stream's output until it is sent. */
+        private static final class Output extends ByteArrayOutputStream {
+            byte[] buffer() {
+                return buf;
+            }
+        }
+
+        private final List<FileIndex.Entry> entries;
+        private final int level;
+        private final Output output = new Output();
+        private final ZipOutputStream zip = new ZipOutputStream(output);
+        private final byte[] input = new byte[INPUT_SIZE];
+        private int next;
+        private FileChannel source;
+        private long position;
+        private long remaining;
+        private boolean finished;
+        private ByteBuffer chunk;
+
+        ZipBody(List<FileIndex.Entry> entries, int level) {
+            this.entries = entries;
+            this.level = level;
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel target) throws IOException {
+            while (true) {
+                if (chunk != null && chunk.hasRemaining()) {
+                    target.write(chunk);
+                    if (chunk.hasRemaining())
+                        return false;
+                }
+                if (finished && chunk != null) {
+                    close();
+                    return true;
+                }
+                nextChunk();
+            }
+        }
+
+        /** Runs the zip stream until it has produced a chunk's worth of output, or ended. */
+        private void nextChunk() throws IOException {
+            output.reset();
+            while (output.size() < INPUT_SIZE && !finished) {
+                step();
+            }
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(output.size() + 32);
+            if (output.size() > 0) {
+                framed.write((Integer.toHexString(output.size()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                framed.write(output.buffer(), 0, output.size());
+                framed.write('\r');
+                framed.write('\n');
+            }
+            if (finished) {
+                framed.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            chunk = ByteBuffer.wrap(framed.toByteArray());
+        }
+
+        private void step() throws IOException {
+            if (source == null) {
+                if (next == entries.size()) {
+                    zip.finish();
+                    finished = true;
+                    return;
+                }
+                FileIndex.Entry entry = entries.get(next++);
+                source = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+                position = 0;
+                remaining = entry.length;
+                ZipEntry zipEntry = new ZipEntry(entry.name);
+                zipEntry.setTime(entry.lastModified);
+                zip.setLevel(Compression.isCompressible(entry.name) ? level : Deflater.NO_COMPRESSION);
+                zip.putNextEntry(zipEntry);
+            }
+            if (remaining > 0) {
+                int read = source.read(ByteBuffer.wrap(input, 0, (int) Math.min(input.length, remaining)), position);
+                if (read == -1) {
+                    throw new EOFException("File shrank while it was being sent");
+                }
+                zip.write(input, 0, read);
+                position += read;
+                remaining -= read;
+            }
+            if (remaining == 0) {
+                zip.closeEntry();
+                source.close();
+                source = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (source != null) {
+                    source.close();
+                    source = null;
+                }
+                zip.close(); // Ends its deflater; what it still writes only goes to the buffer
+            } catch (IOException e) {
+                // Nothing more to send from it anyway
+            }
+        }
+    }
+}
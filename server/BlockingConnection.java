@@ -0,0 +1,334 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection in blocking serving mode: a task on the executor that reads
+ * requests with blocking socket I/O and answers them in order.
+ *
+ * A connection keeps its worker thread while nothing else is waiting for one.
+ * Once connections queue up, it takes turns instead: after moving a quantum of
+ * bytes (--fair-share-quantum) it goes to the back of the queue, and picks up
+ * its transfer where it left off when a worker next runs it. A small download
+ * then waits for one quantum of each bulk transfer ahead of it rather than for
+ * the transfers to finish. A rate-limited connection gives up its worker while
+ * it waits for its limit in the same way, and an idle keep-alive connection is
+ * closed rather than held for the whole keep-alive timeout.
+ *
+ * On the HTTPS port the connection reads and writes through a TlsChannel,
+ * which takes its ciphertext from the socket's stream so the read timeouts
+ * still apply; the handshake happens as the first request is read.
+ *
+ * A deferred response, a body handler that has fallen behind or a response
+ * body waiting for more data is simply waited for: the worker thread has
+ * nothing else to do meanwhile.
+ */
+final class BlockingConnection implements Runnable {
+    // How often a connection waiting for its next request checks whether others want its worker
+    private static final int IDLE_CHECK_MS = 100;
+    // run() is finished with the connection and closes it
+    private static final long DONE = -1;
+
+    private final HTTPFileServer server;
+    private final Socket socket;
+    private final ConnectionChannel output;
+    private final InetAddress client;
+    private final InputStream in;
+    private final HTTPRequestParser parser;
+    // Bytes read past the current request head stay here: the start of an upload
+    // body, or pipelined requests that follow
+    private final ByteBuffer input;
+    private int requestsServed;
+    private boolean keepAlive = true;
+
+    // The request being answered, null for a request that couldn't be parsed, and when it started
+    private HTTPFileServer.HTTPRequest request;
+    private long requestStart;
+
+    // Request body in progress
+    private Route route;
+
+    // Response in progress: the encoded head first, then its body
+    private Response response;
+    private ByteBuffer responseHead;
+    private long sentBefore;
+
+    /** tls is null for a plain HTTP connection. */
+    BlockingConnection(HTTPFileServer server, SocketChannel channel, TlsContext tls) throws IOException {
+        this.server = server;
+        this.socket = channel.socket();
+        this.client = socket.getInetAddress();
+        TlsChannel tlsChannel = tls != null ? tls.open(channel, socket.getInputStream()) : null;
+        this.output = new ConnectionChannel(channel, tlsChannel, server.metrics.bytesSent, server.throttle, client);
+        this.in = tlsChannel != null ? Channels.newInputStream(tlsChannel) : socket.getInputStream();
+        socket.setTcpNoDelay(true);
+        this.parser = new HTTPRequestParser(server.maxHeaderSize);
+        this.input = server.requestBuffers.acquire();
+        input.flip();
+        server.metrics.connectionsActive.increment();
+    }
+
+    @Override
+    public void run() {
+        long resumeAfter = DONE;
+        try {
+            resumeAfter = serve();
+        } catch (IOException e) {
+            server.metrics.connectionErrors.increment();
+            System.err.println("Error handling client: " + e.getMessage());
+        } finally {
+            if (resumeAfter == DONE) {
+                close();
+            }
+        }
+        if (resumeAfter != DONE) {
+            // Nothing here touches the connection after this, since another worker may pick it up at once
+            server.reschedule(this, resumeAfter);
+        }
+    }
+
+    /**
+     * Serves requests until the connection is done, returning DONE, or should
+     * give up its worker, returning how many nanoseconds to wait before it is
+     * queued again.
+     */
+    private long serve() throws IOException {
+        output.newTurn(server.fairShareQuantum);
+        while (true) {
+            if (route != null) {
+                while (!receiveBody()) {
+                    long wait = stalled();
+                    if (wait != DONE)
+                        return wait;
+                }
+            }
+            if (response != null) {
+                while (!sendResponse()) {
+                    long wait = stalled();
+                    if (wait != DONE)
+                        return wait;
+                }
+                if (!keepAlive)
+                    return DONE;
+            }
+            if (!nextRequest())
+                return DONE;
+        }
+    }
+
+    /**
+     * Called when a transfer has stopped short of its limit or the end of its
+     * turn. With other connections waiting it returns how long to wait before
+     * queueing again; otherwise it sleeps out any limit, starts a new turn and
+     * returns DONE to carry on.
+     */
+    private long stalled() throws IOException {
+        long throttled = output.throttledNanos();
+        if (throttled > 0) {
+            server.metrics.transfersThrottled.increment();
+        }
+        if (server.connectionsWaiting()) {
+            server.metrics.transfersRequeued.increment();
+            return throttled;
+        }
+        if (throttled > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(throttled);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rate limited");
+            }
+        }
+        output.newTurn(server.fairShareQuantum);
+        return DONE;
+    }
+
+    /** Reads and routes the next request; returns false if the connection should close instead. */
+    private boolean nextRequest() throws IOException {
+        HTTPFileServer.HTTPRequest next;
+        try {
+            next = readRequest();
+        } catch (HTTPRequestParser.HTTPParseException e) {
+            request = null;
+            requestStart = System.nanoTime();
+            beginResponse(Response.error(e.statusCode, e.getMessage()));
+            return true;
+        }
+        if (next == null)
+            return false;
+        request = next;
+        requestStart = System.nanoTime();
+        server.metrics.requests.increment();
+        requestsServed++;
+        request.keepAlive = HTTPFileServer.wantsKeepAlive(request) && requestsServed < server.maxKeepAliveRequests;
+
+        Route route = server.route(request);
+        if (route.hasBody()) {
+            this.route = route;
+        } else {
+            beginResponse(route.response);
+        }
+        return true;
+    }
+
+    /**
+     * Reads until a whole request head is buffered in input and parses it, leaving
+     * input positioned just past the head. Returns null if the client closed the
+     * connection before starting another request, if it sat idle for the
+     * keep-alive timeout, or if it is idle while other connections want a worker.
+     */
+    private HTTPFileServer.HTTPRequest readRequest() throws IOException {
+        int timeout = server.keepAliveTimeoutMs;
+        socket.setSoTimeout(timeout > 0 ? Math.min(timeout, IDLE_CHECK_MS) : IDLE_CHECK_MS);
+        long idleSince = System.currentTimeMillis();
+        while (true) {
+            int headLength = parser.parse(input.array(), input.position(), input.limit());
+            if (headLength > 0) {
+                input.position(input.position() + headLength);
+                // The body can take as long as the client needs
+                socket.setSoTimeout(0);
+                return parser.request();
+            }
+
+            input.compact();
+            int bytesRead;
+            try {
+                bytesRead = in.read(input.array(), input.position(), input.remaining());
+            } catch (SocketTimeoutException e) {
+                bytesRead = 0;
+            }
+            input.flip();
+            if (bytesRead == -1) {
+                if (!input.hasRemaining())
+                    return null;
+                throw new EOFException("Connection closed in the middle of a request header");
+            }
+            if (bytesRead > 0) {
+                server.metrics.bytesReceived.add(bytesRead);
+                input.limit(input.limit() + bytesRead);
+                idleSince = System.currentTimeMillis();
+            } else if ((timeout > 0 && System.currentTimeMillis() - idleSince >= timeout)
+                    || (!input.hasRemaining() && server.connectionsWaiting())) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads the request body through the route's decoder and handler: first the
+     * part that arrived with the head, then the rest from the socket. Bytes past
+     * the end of the body stay in input for the next request. Returns false if
+     * the body is unfinished but the connection may not read any more for now.
+     */
+    private boolean receiveBody() throws IOException {
+        boolean complete;
+        try {
+            while (!(complete = route.decoder.decode(input, route.handler))) {
+                CompletableFuture<Void> ready = route.handler.ready();
+                if (ready != null) {
+                    await(ready);
+                }
+                input.compact();
+                int bytesRead = output.read(in, input.array(), input.position(), input.remaining());
+                input.flip();
+                if (bytesRead == -1)
+                    break;
+                if (bytesRead == 0)
+                    return false;
+                server.metrics.bytesReceived.add(bytesRead);
+                input.limit(input.limit() + bytesRead);
+            }
+        } catch (HTTPRequestParser.HTTPParseException e) {
+            route.handler.abort();
+            route = null;
+            request.keepAlive = false;
+            beginResponse(Response.error(e.statusCode, e.getMessage()));
+            return true;
+        } catch (IOException | RuntimeException e) {
+            route.handler.abort();
+            route = null;
+            throw e;
+        }
+        if (!complete) {
+            // The client went away mid-body; the handler decides what to keep
+            request.keepAlive = false;
+        }
+        BodyHandler handler = route.handler;
+        route = null;
+        beginResponse(handler.finish(complete));
+        return true;
+    }
+
+    private void beginResponse(Response response) throws IOException {
+        if (response.pending != null) {
+            response = await(response.pending);
+        }
+        keepAlive = request != null && request.keepAlive;
+        server.addConnectionHeaders(response.head, keepAlive);
+        this.response = response;
+        responseHead = ByteBuffer.wrap(response.encodeHead());
+        sentBefore = output.count();
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+        }
+    }
+
+    /** Writes the response in progress; returns false if the connection may not write any more for now. */
+    private boolean sendResponse() throws IOException {
+        if (responseHead.hasRemaining()) {
+            while (responseHead.hasRemaining()) {
+                if (output.write(responseHead) == 0)
+                    return false;
+            }
+            server.metrics.timeToFirstByte.record(System.nanoTime() - requestStart);
+        }
+        while (!response.body.writeTo(output)) {
+            CompletableFuture<Void> more = response.body.ready();
+            if (more == null)
+                return false;
+            await(more);
+        }
+
+        response.close();
+        server.exchangeFinished(client, request, response, requestStart, output.count() - sentBefore, true);
+        response = null;
+        request = null;
+        return true;
+    }
+
+    /** Closes the connection, recording a response cut off partway. Safe to call more than once. */
+    void close() {
+        if (response != null) {
+            response.close();
+            server.exchangeFinished(client, request, response, requestStart, output.count() - sentBefore, false);
+            response = null;
+        }
+        if (route != null) {
+            route.handler.abort();
+            route = null;
+        }
+        if (!output.isOpen())
+            return;
+        server.metrics.connectionsActive.decrement();
+        server.requestBuffers.release(input);
+        try {
+            output.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
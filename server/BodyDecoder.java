@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Request body framing: a fixed Content-Length or Transfer-Encoding: chunked.
+ * The decoder is fed whatever input the connection has buffered and passes the
+ * body bytes on to a handler, stopping exactly at the end of the body so any
+ * bytes after it stay in the buffer for the next pipelined request.
+ */
+abstract class BodyDecoder {
+    protected long bytesDecoded;
+
+    /**
+     * Passes body bytes from input to handler, advancing input's position.
+     * Returns true once the whole body has been decoded.
+     */
+    abstract boolean decode(ByteBuffer input, BodyHandler handler) throws IOException;
+
+    /** Body bytes still expected, or -1 if the framing doesn't say (chunked). */
+    abstract long remaining();
+
+    long bytesDecoded() {
+        return bytesDecoded;
+    }
+
+    /**
+     * Picks the framing declared by the request. Throws if the request gives
+     * neither a Content-Length nor chunked encoding, since the body could then
+     * only end with the connection.
+     */
+    static BodyDecoder forRequest(HTTPFileServer.HTTPRequest request)
+            throws HTTPRequestParser.HTTPParseException {
+        String transferEncoding = request.headers.get("transfer-encoding");
+        if (transferEncoding != null) {
+            if (!transferEncoding.trim().equalsIgnoreCase("chunked")) {
+                throw new HTTPRequestParser.HTTPParseException(501, "Not Implemented: Transfer-Encoding "
+                        + transferEncoding);
+            }
+            return new Chunked();
+        }
+
+        String contentLength = request.headers.get("content-length");
+        if (contentLength == null) {
+            throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: Content-Length header required");
+        }
+        try {
+            long length = Long.parseLong(contentLength.trim());
+            if (length < 0)
+                throw new NumberFormatException();
+            return new FixedLength(length);
+        } catch (NumberFormatException e) {
+            throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: Invalid Content-Length");
+        }
+    }
+
+    static final class FixedLength extends BodyDecoder {
+        private long remaining;
+
+        FixedLength(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        boolean decode(ByteBuffer input, BodyHandler handler) throws IOException {
+            if (remaining > 0 && input.hasRemaining()) {
+                int count = (int) Math.min(input.remaining(), remaining);
+                ByteBuffer slice = input.duplicate();
+                slice.limit(slice.position() + count);
+                handler.write(slice);
+                input.position(input.position() + count);
+                remaining -= count;
+                bytesDecoded += count;
+            }
+            return remaining == 0;
+        }
+
+        @Override
+        long remaining() {
+            return remaining;
+        }
+    }
+
+    /** Incremental chunked decoder; chunk extensions and trailers are read and ignored. */
+    static final class Chunked extends BodyDecoder {
+        private static final int MAX_LINE_LENGTH = 4096;
+
+        private enum State {
+            SIZE, DATA, DATA_END, TRAILER, DONE
+        }
+
+        private State state = State.SIZE;
+        private final StringBuilder line = new StringBuilder();
+        private long chunkRemaining;
+
+        @Override
+        boolean decode(ByteBuffer input, BodyHandler handler) throws IOException {
+            while (state != State.DONE && input.hasRemaining()) {
+                switch (state) {
+                    case SIZE:
+                        if (readLine(input)) {
+                            chunkRemaining = parseChunkSize(line);
+                            line.setLength(0);
+                            state = chunkRemaining == 0 ? State.TRAILER : State.DATA;
+                        }
+                        break;
+                    case DATA:
+                        int count = (int) Math.min(input.remaining(), chunkRemaining);
+                        ByteBuffer slice = input.duplicate();
+                        slice.limit(slice.position() + count);
+                        handler.write(slice);
+                        input.position(input.position() + count);
+                        chunkRemaining -= count;
+                        bytesDecoded += count;
+                        if (chunkRemaining == 0) {
+                            state = State.DATA_END;
+                        }
+                        break;
+                    case DATA_END:
+                        if (readLine(input)) {
+                            if (line.length() != 0) {
+                                throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: malformed chunk");
+                            }
+                            state = State.SIZE;
+                        }
+                        break;
+                    case TRAILER:
+                        if (readLine(input)) {
+                            // Trailer fields are ignored; an empty line ends the body
+                            boolean end = line.length() == 0;
+                            line.setLength(0);
+                            if (end) {
+                                state = State.DONE;
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return state == State.DONE;
+        }
+
+        @Override
+        long remaining() {
+            return -1;
+        }
+
+        /** Accumulates one CRLF- or LF-terminated line; returns true once it is complete. */
+        private boolean readLine(ByteBuffer input) throws HTTPRequestParser.HTTPParseException {
+            while (input.hasRemaining()) {
+                byte b = input.get();
+                if (b == '\n') {
+                    int last = line.length() - 1;
+                    if (last >= 0 && line.charAt(last) == '\r') {
+                        line.setLength(last);
+                    }
+                    return true;
+                }
+                if (line.length() >= MAX_LINE_LENGTH) {
+                    throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: chunk header too long");
+                }
+                line.append((char) (b & 0xff));
+            }
+            return false;
+        }
+
+        private static long parseChunkSize(CharSequence line) throws HTTPRequestParser.HTTPParseException {
+            int end = 0;
+            while (end < line.length() && Character.digit(line.charAt(end), 16) >= 0) {
+                end++;
+            }
+            if (end == 0 || end > 15) {
+                throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: malformed chunk size");
+            }
+            return Long.parseLong(line.subSequence(0, end).toString(), 16);
+        }
+    }
+}
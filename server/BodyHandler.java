@@ -0,0 +1,35 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Receives a request body as the engine decodes it, then produces the response.
+ * Both serving modes drive handlers the same way: write for every slice of body,
+ * then finish once the body is complete or the client has gone away.
+ *
+ * A handler that writes somewhere slower than the client sends, such as a disk,
+ * says so through ready; the engine stops reading the socket until it catches
+ * up. A handler whose response needs slow work returns a deferred Response from
+ * finish rather than doing the work there.
+ */
+interface BodyHandler {
+    /** Consumes all remaining bytes of data. */
+    void write(ByteBuffer data) throws IOException;
+
+    /**
+     * Null if the handler can take more body now; otherwise a future that
+     * completes once it can. Asked after every slice of body has been written.
+     */
+    default CompletableFuture<Void> ready() throws IOException {
+        return null;
+    }
+
+    /**
+     * Called once after the last write. complete is false if the connection ended
+     * before the whole body arrived.
+     */
+    Response finish(boolean complete) throws IOException;
+
+    /** Called instead of finish when handling fails; releases whatever the handler holds. */
+    void abort();
+}
@@ -0,0 +1,73 @@
+import java.util.*;
+
+/** One inclusive byte range of a Range: bytes=... request header, resolved against a file size. */
+final class ByteRange {
+    // More ranges than this is treated as abuse and answered with the whole file
+    private static final int MAX_RANGES = 32;
+
+    final long start;
+    final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Parses a Range header value for a resource of the given size. Returns null if
+     * the header is malformed or not in bytes (the range is then ignored), or an
+     * empty list if it is well formed but no range overlaps the file (416).
+     */
+    static List<ByteRange> parse(String header, long size) {
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6))
+            return null;
+
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES)
+            return null;
+
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0)
+                return null;
+
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // Suffix range: the last N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0)
+                        continue;
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        end = size - 1;
+                    } else {
+                        end = Long.parseLong(spec.substring(dash + 1));
+                        if (end < start)
+                            return null;
+                        end = Math.min(end, size - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < 0)
+                return null;
+            if (start < size) {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+        return ranges;
+    }
+}
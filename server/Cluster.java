@@ -0,0 +1,1078 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cluster mode: several servers, each with its own shared_files and uploads,
+ * splitting one collection of files between them by consistent hashing of the
+ * file name (see HashRing).
+ *
+ *   --cluster-nodes=host:port,...   every node's plain HTTP address, this one included
+ *   --cluster-self=host:port        this node as it appears in that list (localhost:<port> by default)
+ *   --cluster-replicas=N            nodes that keep each uploaded file, its owner included (1)
+ *   --cluster-virtual-nodes=N       points on the ring per node (128)
+ *   --cluster-peer-timeout=ms       connect and read timeout towards other nodes (5000)
+ *   --cluster-peer-threads=N        proxied downloads and forwarded uploads in progress at once (64)
+ *   --cluster-peer-queue=N          more that may wait for a peer worker before the rest get 503 (256)
+ *   --cluster-cache-ttl=s           how long a copy fetched from another node is served before
+ *                                   it is checked with that node again (60)
+ *
+ * A download of a file this node doesn't have is proxied from the first of its
+ * owners that has it, and the bytes are saved into shared_files on the way
+ * through, so the next request for it is served locally. Such a copy is
+ * revalidated with If-None-Match once the TTL has passed; its mtime is set to
+ * the owner's, so the two ETags agree while the content does.
+ *
+ * An upload that arrives at a node that doesn't own its name is streamed on to
+ * the owner (or, if that can't be reached, the next node holding replicas) and
+ * the owner's answer is relayed. The owner then pushes the stored file to the
+ * replica nodes in the background, retrying with backoff, with its SHA-256 in a
+ * Digest header so every copy is verified. Besides its upload_<timestamp> name,
+ * every node that keeps the upload gives it its own name in shared_files, so
+ * the name it was placed by is also the name it is downloaded by. A name is
+ * published once: an upload whose name shared_files already has with other
+ * content is kept under its upload name only and answered with 409, and the
+ * shared file is left as it was; uploading the same content again is fine.
+ * Nameless uploads, archive uploads and upload sessions stay on the node that
+ * receives them, under their upload names only.
+ *
+ * Requests between nodes carry X-Cluster-Role, so a node never passes on a
+ * request another node sent it. Peers are reached over plain HTTP, reusing idle
+ * connections for downloads. Those calls block, so they run on peer worker
+ * threads, never on the thread serving the connection: a proxied download or
+ * forwarded upload passes its body through a small queue of blocks, and the
+ * connection's response is deferred until the worker has one. The workers are
+ * a fixed number with a bounded queue, so slow or dead peers can't pile up
+ * threads; once the queue is full, requests that need a peer are answered 503
+ * with Retry-After, as connections are once --queue-size of them are waiting.
+ */
+class Cluster {
+    static final String PATH = "/cluster";
+    // "fetch" on a download from another node, "owner" or "replica" on an upload
+    static final String ROLE_HEADER = "X-Cluster-Role";
+    private static final String INCOMING_FOLDER = ".peer-incoming";
+    // Below the servers' default keep-alive timeout, so a reused connection is rarely already closed
+    private static final long MAX_IDLE_MS = 4000;
+    private static final int MAX_IDLE_PER_NODE = 8;
+    private static final int REPLICATION_ATTEMPTS = 4;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // Blocks of a proxied body held between the peer worker and the connection
+    private static final int PIPE_BLOCKS = 4;
+
+    private final HTTPFileServer server;
+    private final HashRing ring;
+    final String self;
+    private final int virtualNodes;
+    private final int replicas;
+    private final int peerTimeoutMs;
+    private final long cacheTtlNanos;
+    private final File incoming;
+    // When each copy fetched from another node was last known to match its owner's
+    private final Map<String, Long> validated = new ConcurrentHashMap<>();
+    private final Map<String, ArrayDeque<PeerConnection>> idle = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService replicator;
+    // One thread per proxied download or forwarded upload while it talks to the other node
+    private final ThreadPoolExecutor peerWork;
+
+    final LongAdder peerFetches = new LongAdder();
+    final LongAdder peerRevalidations = new LongAdder();
+    final LongAdder peerFailures = new LongAdder();
+    // Requests answered 503 because every peer worker was busy and the queue was full
+    final LongAdder peerRejections = new LongAdder();
+    final LongAdder uploadsForwarded = new LongAdder();
+    final LongAdder replications = new LongAdder();
+    final LongAdder replicationFailures = new LongAdder();
+
+    Cluster(HTTPFileServer server, ServerOptions options, int port) {
+        this.server = server;
+        List<String> nodes = new ArrayList<>();
+        for (String node : options.get("cluster-nodes", "").split(",")) {
+            node = node.trim();
+            if (node.isEmpty())
+                continue;
+            address(node); // Rejects anything that isn't host:port
+            if (!nodes.contains(node)) {
+                nodes.add(node);
+            }
+        }
+        self = options.get("cluster-self", "localhost:" + port);
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException("--cluster-nodes must include this node, " + self
+                    + " (set --cluster-self if it is listed under another name)");
+        }
+        virtualNodes = options.getInt("cluster-virtual-nodes", 128);
+        ring = new HashRing(nodes, virtualNodes);
+        replicas = Math.max(1, Math.min(options.getInt("cluster-replicas", 1), nodes.size()));
+        peerTimeoutMs = options.getInt("cluster-peer-timeout", 5000);
+        cacheTtlNanos = TimeUnit.SECONDS.toNanos(options.getLong("cluster-cache-ttl", 60));
+        incoming = new File(HTTPFileServer.SHARED_FOLDER, INCOMING_FOLDER);
+        replicator = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "replicator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int peerThreads = Math.max(1, options.getInt("cluster-peer-threads", 64));
+        peerWork = new ThreadPoolExecutor(peerThreads, peerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, options.getInt("cluster-peer-queue", 256))), task -> {
+                    Thread thread = new Thread(task, "cluster-peer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        peerWork.allowCoreThreadTimeOut(true);
+    }
+
+    int peerQueued() {
+        return peerWork.getQueue().size();
+    }
+
+    String describe() {
+        return "node " + self + " of " + ring.nodes().size() + ", " + replicas + " cop"
+                + (replicas == 1 ? "y" : "ies") + " of each upload";
+    }
+
+    static boolean fromPeer(HTTPFileServer.HTTPRequest request) {
+        return request.headers.containsKey(ROLE_HEADER.toLowerCase());
+    }
+
+    /** GET /cluster: the membership and ring settings, from which a client finds a file's owner itself. */
+    Response describeResponse() {
+        StringBuilder json = new StringBuilder("{\"self\":").append(Listing.quote(self)).append(",\"nodes\":[");
+        for (int i = 0; i < ring.nodes().size(); i++) {
+            json.append(i > 0 ? "," : "").append(Listing.quote(ring.nodes().get(i)));
+        }
+        json.append("],\"virtualNodes\":").append(virtualNodes)
+                .append(",\"replicas\":").append(replicas).append("}\n");
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        ResponseHead head = new ResponseHead(200, "OK")
+                .header("Content-Type", "application/json")
+                .header("Content-Length", body.length);
+        return new Response(200, head, ResponseBody.bytes(body), null, null);
+    }
+
+    /**
+     * Answers a download from another node if it should be, or returns null to
+     * serve it from shared_files: when this node owns the file, or when its copy
+     * of someone else's file is recent enough. Otherwise the owners are asked on
+     * a peer worker and the response is deferred until one answers; it is still
+     * served from shared_files if the owner says the copy here is current, or
+     * if no owner has anything better.
+     */
+    Response download(HTTPFileServer.HTTPRequest request, String name, FileIndex.Entry local) {
+        if (fromPeer(request) || !cacheable(name))
+            return null;
+        List<String> owners = ring.owners(name, replicas);
+        if (local != null) {
+            if (owners.contains(self))
+                return null;
+            Long checked = validated.get(name);
+            if (checked != null && System.nanoTime() - checked < cacheTtlNanos)
+                return null;
+        }
+        if (owners.size() == 1 && owners.contains(self))
+            return null;
+        CompletableFuture<Response> response = new CompletableFuture<>();
+        try {
+            peerWork.execute(() -> {
+                try {
+                    fetch(request, name, local, owners, response);
+                } catch (IOException | RuntimeException e) {
+                    response.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return busy();
+        }
+        return Response.deferred(response);
+    }
+
+    /** The 503 for a request that needs a peer worker when they are all busy and the queue is full. */
+    private Response busy() {
+        peerRejections.increment();
+        Response response = Response.error(503, "Service Unavailable: too many requests waiting for other nodes");
+        response.head.header("Retry-After", server.retryAfterSeconds);
+        return response;
+    }
+
+    /**
+     * Runs on a peer worker: asks the owners in turn and completes response with
+     * the first one's file, which it then goes on streaming, or with the local
+     * answer.
+     */
+    private void fetch(HTTPFileServer.HTTPRequest request, String name, FileIndex.Entry local, List<String> owners,
+            CompletableFuture<Response> response) throws IOException {
+        boolean unreachable = false;
+        for (String node : owners) {
+            if (node.equals(self))
+                continue;
+            try {
+                String head = "GET /download?filename=" + URLEncoder.encode(name, "UTF-8") + " HTTP/1.1\r\n"
+                        + "Host: " + node + "\r\n"
+                        + ROLE_HEADER + ": fetch\r\n"
+                        + (local != null ? "If-None-Match: " + local.etag + "\r\n" : "")
+                        + "\r\n";
+                PeerConnection connection = send(node, head);
+                PeerResponse peerResponse = connection.response;
+                if (peerResponse.status == 304) {
+                    release(connection, peerResponse);
+                    validated.put(name, System.nanoTime());
+                    peerRevalidations.increment();
+                    break;
+                }
+                if (peerResponse.status == 200 && peerResponse.contentLength >= 0
+                        && !peerResponse.headers.containsKey("content-encoding")) {
+                    PeerBody body = new PeerBody(connection, peerResponse, name);
+                    response.complete(proxy(node, name, body, peerResponse));
+                    body.pump();
+                    return;
+                }
+                connection.skipBody(peerResponse);
+                release(connection, peerResponse);
+                if (peerResponse.status != 404) {
+                    throw new IOException("node answered " + peerResponse.status + " " + peerResponse.reason);
+                }
+            } catch (IOException e) {
+                peerFailures.increment();
+                unreachable = true;
+                System.err.println("Could not fetch " + name + " from " + node + ": " + e.getMessage());
+            }
+        }
+        if (local == null && unreachable) {
+            response.complete(Response.error(502, "Bad Gateway: the nodes holding this file could not be reached"));
+            return;
+        }
+        response.complete(server.localDownload(request, name, server.fileIndex.lookup(name)));
+    }
+
+    /** Only plain names are fetched and placed; they are stored under the same name here. */
+    private static boolean cacheable(String name) {
+        return !name.isEmpty() && !name.startsWith(".") && name.indexOf('/') < 0 && name.indexOf('\\') < 0;
+    }
+
+    /**
+     * Sends a request without a body on an idle connection to the node, or a new
+     * one if the idle one turns out to have been closed, and reads the response
+     * head into the returned connection.
+     */
+    private PeerConnection send(String node, String head) throws IOException {
+        PeerConnection connection = borrow(node);
+        try {
+            connection.exchange(head);
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            if (!connection.reused)
+                throw e;
+        }
+        connection = connect(node);
+        try {
+            connection.exchange(head);
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /** The 200 for a file the node is sending, passed on as it arrives. */
+    private Response proxy(String node, String name, PeerBody body, PeerResponse response) {
+        peerFetches.increment();
+        ResponseHead responseHead = new ResponseHead(200, "OK")
+                .header("Content-Type", response.headers.getOrDefault("content-type", FileIndex.mimeType(name)))
+                .header("Content-Disposition", "attachment; filename=\"" + name + "\"")
+                .header("Content-Length", response.contentLength)
+                .header("X-Cluster-Node", node);
+        for (String header : new String[] { "ETag", "Last-Modified" }) {
+            String value = response.headers.get(header.toLowerCase());
+            if (value != null) {
+                responseHead.header(header, value);
+            }
+        }
+        return new Response(200, responseHead, body, null, "Proxied from " + node + ": " + name);
+    }
+
+    /**
+     * Sends an upload on to the node that should keep it, or returns null to
+     * store it here: when this node comes first among the file's owners, the
+     * upload came from another node, or its name isn't one the ring places.
+     */
+    Route upload(HTTPFileServer.HTTPRequest request, String name, BodyDecoder decoder) {
+        if (fromPeer(request) || name == null || !cacheable(name))
+            return null;
+        List<String> owners = ring.owners(name, replicas);
+        List<String> targets = new ArrayList<>();
+        for (String node : owners) {
+            if (node.equals(self))
+                break;
+            targets.add(node);
+        }
+        if (targets.isEmpty())
+            return null;
+        ForwardingHandler handler = new ForwardingHandler(request, name, targets, owners.contains(self));
+        try {
+            peerWork.execute(handler::forward);
+        } catch (RejectedExecutionException e) {
+            // Answered without reading the body, so the connection closes after it
+            return Route.respond(busy());
+        }
+        return Route.receive(decoder, handler);
+    }
+
+    /**
+     * Called once an upload has been stored here, on a disk thread. An upload the
+     * ring placed is also given its name in shared_files, so it is downloaded by
+     * the name it was placed by, and unless it is a copy itself it is copied to
+     * the file's other owners. Returns the 409 to send instead of the usual
+     * answer if shared_files already has the name with other content, else null.
+     */
+    Response stored(HTTPFileServer.HTTPRequest request, String name, UploadStore.Result result) {
+        if (name == null || !cacheable(name))
+            return null;
+        try {
+            if (!publish(name, result)) {
+                return Response.text(409, "Conflict", "A different file is already shared as " + name
+                        + "; the upload was kept as " + result.file.getName())
+                        .withLogMessage("Upload not published, " + name + " already shared: " + result.file.getName());
+            }
+        } catch (IOException e) {
+            System.err.println("Could not publish " + name + " in " + HTTPFileServer.SHARED_FOLDER + ": "
+                    + e.getMessage());
+        }
+        if ("replica".equals(request.headers.get(ROLE_HEADER.toLowerCase())))
+            return null;
+        for (String node : ring.owners(name, replicas)) {
+            if (!node.equals(self)) {
+                replicate(node, name, result, 1, 0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts a stored upload in shared_files under name, as a hard link to the
+     * stored copy where possible. Never replaces a file: returns false if the
+     * name is taken by other content, true if it is now, or already was, this
+     * upload's.
+     */
+    private boolean publish(String name, UploadStore.Result result) throws IOException {
+        Path target = new File(HTTPFileServer.SHARED_FOLDER, name).toPath();
+        try {
+            link(target, result.file);
+        } catch (FileAlreadyExistsException e) {
+            return sameContent(target, result);
+        }
+        validated.remove(name);
+        server.fileIndex.refresh(name);
+        return true;
+    }
+
+    /**
+     * Makes target a hard link to file, or to a copy of it where file can't be
+     * linked. Creating a link fails if the name exists, so of two uploads racing
+     * for a name only one can win.
+     */
+    private void link(Path target, File file) throws IOException {
+        try {
+            Files.createLink(target, file.toPath());
+            return;
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (IOException | UnsupportedOperationException e) {
+            // Copied in instead
+        }
+        incoming.mkdirs();
+        File temp = File.createTempFile("publish-", ".tmp", incoming);
+        try {
+            Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.createLink(target, temp.toPath());
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private boolean sameContent(Path target, UploadStore.Result result) throws IOException {
+        try {
+            if (Files.isSameFile(target, result.file.toPath()))
+                return true;
+            return Files.size(target) == result.length
+                    && Arrays.equals(server.uploadStore.verify(target.toFile(), Collections.emptyMap()), result.sha256);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private void replicate(String node, String name, UploadStore.Result result, int attempt, long delaySeconds) {
+        replicator.schedule(() -> {
+            try {
+                push(node, name, result);
+                replications.increment();
+            } catch (IOException e) {
+                if (attempt < REPLICATION_ATTEMPTS) {
+                    replicate(node, name, result, attempt + 1, 1L << attempt);
+                } else {
+                    replicationFailures.increment();
+                    System.err.println("Gave up replicating " + name + " to " + node + ": " + e.getMessage());
+                }
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    private void push(String node, String name, UploadStore.Result result) throws IOException {
+        try (PeerConnection connection = connect(node);
+                FileInputStream in = new FileInputStream(result.file)) {
+            long length = result.file.length();
+            connection.out.write(("POST /upload HTTP/1.1\r\n"
+                    + "Host: " + node + "\r\n"
+                    + ROLE_HEADER + ": replica\r\n"
+                    + "Content-Disposition: attachment; filename=\"" + name + "\"\r\n"
+                    + "Content-Length: " + length + "\r\n"
+                    + "Digest: " + UploadStore.digestHeader(result.sha256) + "\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long sent = 0;
+            int read;
+            while (sent < length && (read = in.read(buffer, 0, (int) Math.min(buffer.length, length - sent))) != -1) {
+                connection.out.write(buffer, 0, read);
+                sent += read;
+            }
+            if (sent < length) {
+                throw new EOFException(result.file.getName() + " shrank while it was being replicated");
+            }
+            connection.out.flush();
+            PeerResponse response = connection.readResponseHead();
+            String message = connection.readText(response);
+            if (response.status != 200) {
+                throw new IOException("node answered " + response.status + ": " + message);
+            }
+        }
+    }
+
+    /**
+     * An upload passed on to the first of targets that can be reached. The
+     * connection's thread only queues the body; a peer worker connects, streams
+     * it with chunked framing and reads the owner's answer, which is relayed.
+     * If no target can be reached and this node is an owner too, the worker
+     * stores the upload here instead.
+     */
+    private final class ForwardingHandler implements BodyHandler {
+        private final HTTPFileServer.HTTPRequest request;
+        private final String name;
+        private final List<String> targets;
+        private final boolean selfOwns;
+        private final Pipe body = new Pipe();
+        private final CompletableFuture<Response> answer = new CompletableFuture<>();
+
+        ForwardingHandler(HTTPFileServer.HTTPRequest request, String name, List<String> targets, boolean selfOwns) {
+            this.request = request;
+            this.name = name;
+            this.targets = targets;
+            this.selfOwns = selfOwns;
+        }
+
+        @Override
+        public void write(ByteBuffer data) {
+            if (!data.hasRemaining())
+                return;
+            ByteBuffer block = ByteBuffer.allocate(data.remaining());
+            block.put(data).flip();
+            body.add(block);
+        }
+
+        @Override
+        public CompletableFuture<Void> ready() {
+            return body.whenWritable();
+        }
+
+        @Override
+        public Response finish(boolean complete) {
+            // A body cut short is passed on as far as it got, for the owner to keep as it would its own
+            body.end(null);
+            return Response.deferred(answer);
+        }
+
+        @Override
+        public void abort() {
+            body.close();
+        }
+
+        /** Runs on a peer worker. */
+        void forward() {
+            try {
+                for (String node : targets) {
+                    PeerConnection connection;
+                    try {
+                        connection = connect(node);
+                        connection.out.write(head(node).getBytes(StandardCharsets.ISO_8859_1));
+                    } catch (IOException e) {
+                        peerFailures.increment();
+                        System.err.println("Could not forward upload of " + name + " to " + node + ": "
+                                + e.getMessage());
+                        continue;
+                    }
+                    answer.complete(relay(connection, node));
+                    return;
+                }
+                if (!selfOwns) {
+                    body.close();
+                    answer.complete(Response.error(503,
+                            "Service Unavailable: none of the nodes for this file can be reached"));
+                    return;
+                }
+                storeHere().whenComplete((response, failure) -> {
+                    if (failure != null) {
+                        answer.completeExceptionally(failure);
+                    } else {
+                        answer.complete(response);
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                body.close();
+                answer.completeExceptionally(e);
+            }
+        }
+
+        private String head(String node) {
+            StringBuilder head = new StringBuilder("POST /upload HTTP/1.1\r\n")
+                    .append("Host: ").append(node).append("\r\n")
+                    .append(ROLE_HEADER).append(": owner\r\n")
+                    .append("Transfer-Encoding: chunked\r\n");
+            // The owner checks the client's digests itself
+            for (String header : new String[] { "Content-Disposition", "X-Filename", "Content-Type", "Digest",
+                    "Content-Digest", "Content-MD5" }) {
+                String value = request.headers.get(header.toLowerCase());
+                if (value != null) {
+                    head.append(header).append(": ").append(value).append("\r\n");
+                }
+            }
+            return head.append("\r\n").toString();
+        }
+
+        /** Streams the body to the node and turns its answer into the client's. */
+        private Response relay(PeerConnection connection, String node) throws IOException {
+            PeerResponse response;
+            String message;
+            try {
+                OutputStream out = connection.out;
+                ByteBuffer block;
+                while ((block = body.take()) != null) {
+                    out.write((Integer.toHexString(block.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(block.array(), block.arrayOffset() + block.position(), block.remaining());
+                    out.write('\r');
+                    out.write('\n');
+                }
+                out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                response = connection.readResponseHead();
+                message = connection.readText(response);
+            } catch (IOException e) {
+                connection.close();
+                if (body.closed())
+                    throw e; // The client went away; nobody is waiting for an answer
+                // The rest of the body is read and dropped, then the client hears what happened
+                body.close();
+                peerFailures.increment();
+                return Response.error(502, "Bad Gateway: " + node + " failed while storing the upload");
+            }
+            release(connection, response);
+            uploadsForwarded.increment();
+            Response relayed = Response.text(response.status, response.reason, message);
+            String digest = response.headers.get("digest");
+            if (digest != null) {
+                relayed.head.header("Digest", digest);
+            }
+            relayed.head.header("X-Cluster-Node", node);
+            return relayed.withLogMessage("Forwarded upload of " + name + " to " + node);
+        }
+
+        /** Writes the body into this node's upload store, as if the upload had never been forwarded. */
+        private CompletableFuture<Response> storeHere() throws IOException {
+            BodyHandler local = server.uploadHandler(request, name, UploadStore.expectedDigests(request.headers));
+            try {
+                ByteBuffer block;
+                while ((block = body.take()) != null) {
+                    local.write(block);
+                    CompletableFuture<Void> ready = local.ready();
+                    if (ready != null) {
+                        ready.join();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                local.abort();
+                throw e;
+            }
+            Response response = local.finish(true);
+            return response.pending != null ? response.pending : CompletableFuture.completedFuture(response);
+        }
+    }
+
+    /**
+     * A file coming from another node. A peer worker reads it from the node a
+     * block at a time, writes each block to a temporary file and queues it for
+     * the client; the connection's thread only takes queued blocks. Once all of
+     * it has arrived the copy is moved into shared_files under the file's name
+     * and indexed.
+     */
+    private final class PeerBody implements ResponseBody {
+        private final PeerConnection connection;
+        private final PeerResponse response;
+        private final String name;
+        private final Pipe blocks = new Pipe();
+        private ByteBuffer block;
+        // True if writeTo last stopped because no block had arrived yet
+        private boolean starved;
+
+        PeerBody(PeerConnection connection, PeerResponse response, String name) {
+            this.connection = connection;
+            this.response = response;
+            this.name = name;
+        }
+
+        @Override
+        public long length() {
+            return response.contentLength;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel target) throws IOException {
+            starved = false;
+            while (true) {
+                if (block != null && block.hasRemaining()) {
+                    target.write(block);
+                    if (block.hasRemaining())
+                        return false;
+                }
+                block = blocks.poll();
+                if (block == null) {
+                    if (blocks.ended())
+                        return true;
+                    starved = true;
+                    return false;
+                }
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> ready() {
+            return starved ? blocks.whenReadable() : null;
+        }
+
+        /** Runs on the peer worker until the whole file has been read, or the client has gone away. */
+        void pump() {
+            File temp = null;
+            FileChannel copy = null;
+            try {
+                incoming.mkdirs();
+                temp = File.createTempFile("fetch-", ".tmp", incoming);
+                copy = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                // Still worth passing on, just not keeping
+                System.err.println("Could not keep a copy of " + name + ": " + e.getMessage());
+                temp = discard(temp, copy);
+                copy = null;
+            }
+            try {
+                long remaining = response.contentLength;
+                while (remaining > 0) {
+                    byte[] data = new byte[(int) Math.min(COPY_BUFFER_SIZE, remaining)];
+                    int read = connection.in.read(data);
+                    if (read == -1) {
+                        throw new EOFException("Node closed the connection partway through " + name);
+                    }
+                    remaining -= read;
+                    ByteBuffer next = ByteBuffer.wrap(data, 0, read);
+                    if (copy != null) {
+                        try {
+                            ByteBuffer written = next.duplicate();
+                            while (written.hasRemaining()) {
+                                copy.write(written);
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Could not keep a copy of " + name + ": " + e.getMessage());
+                            temp = discard(temp, copy);
+                            copy = null;
+                        }
+                    }
+                    blocks.put(next);
+                }
+                release(connection, response);
+            } catch (IOException e) {
+                // The client went away, or the node did; what came so far is no use
+                connection.close();
+                discard(temp, copy);
+                blocks.end(e);
+                return;
+            }
+            if (copy != null) {
+                keep(temp, copy);
+            }
+            blocks.end(null);
+        }
+
+        /** Moves the finished copy into shared_files. */
+        private void keep(File temp, FileChannel copy) {
+            try {
+                copy.close();
+                long lastModified = parseHttpDate(response.headers.get("last-modified"));
+                if (lastModified > 0) {
+                    Files.setLastModifiedTime(temp.toPath(), FileTime.fromMillis(lastModified));
+                }
+                Files.move(temp.toPath(), new File(HTTPFileServer.SHARED_FOLDER, name).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                validated.put(name, System.nanoTime());
+                server.fileIndex.refresh(name);
+            } catch (IOException e) {
+                System.err.println("Could not keep a copy of " + name + ": " + e.getMessage());
+                discard(temp, null);
+            }
+        }
+
+        /** Closes and deletes a copy that won't be kept; returns null for the caller's reference. */
+        private File discard(File temp, FileChannel copy) {
+            if (copy != null) {
+                try {
+                    copy.close();
+                } catch (IOException e) {
+                    // Deleted next anyway
+                }
+            }
+            if (temp != null) {
+                temp.delete();
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            // Stops the worker if the client went away before the end
+            blocks.close();
+        }
+    }
+
+    /**
+     * Blocks of a body passed between a connection's thread and a peer worker.
+     * The worker blocks while it waits for the other side; the connection's
+     * thread, which may be an event loop, never does, and takes a future that
+     * completes when something has changed instead. Holds about PIPE_BLOCKS
+     * blocks at a time.
+     */
+    private static final class Pipe {
+        private final ArrayDeque<ByteBuffer> blocks = new ArrayDeque<>();
+        // No more blocks will be added, and why not if the writer failed
+        private boolean ended;
+        private IOException failure;
+        // The reader or writer has given up; nothing more is passed through
+        private boolean closed;
+        private CompletableFuture<Void> waiting;
+
+        /** Worker: adds a block, waiting while the pipe is full; fails if the pipe has been closed. */
+        synchronized void put(ByteBuffer block) throws IOException {
+            while (blocks.size() >= PIPE_BLOCKS && !closed) {
+                await();
+            }
+            if (closed)
+                throw new IOException("Transfer abandoned");
+            blocks.add(block);
+            changed();
+        }
+
+        /** Worker: the next block, waiting for one; null once the pipe has ended and been emptied. */
+        synchronized ByteBuffer take() throws IOException {
+            while (blocks.isEmpty() && !ended && !closed) {
+                await();
+            }
+            if (closed)
+                throw new IOException("Transfer abandoned");
+            ByteBuffer block = blocks.poll();
+            changed();
+            return block;
+        }
+
+        /** Connection: adds a block, however full the pipe is; dropped if the pipe has been closed. */
+        synchronized void add(ByteBuffer block) {
+            if (!closed) {
+                blocks.add(block);
+                changed();
+            }
+        }
+
+        /** Connection: the next block, or null if none has arrived; fails as the worker did once it is empty. */
+        synchronized ByteBuffer poll() throws IOException {
+            ByteBuffer block = blocks.poll();
+            if (block != null) {
+                changed();
+            } else if (failure != null) {
+                throw failure;
+            }
+            return block;
+        }
+
+        /** True once the pipe has ended and been emptied. */
+        synchronized boolean ended() {
+            return ended && blocks.isEmpty();
+        }
+
+        synchronized boolean closed() {
+            return closed;
+        }
+
+        /** Connection: a future that completes once there is a block to poll, or the pipe has ended. */
+        synchronized CompletableFuture<Void> whenReadable() {
+            return !blocks.isEmpty() || ended || closed ? CompletableFuture.completedFuture(null) : waitForChange();
+        }
+
+        /** Connection: null while there is room to add, otherwise a future that completes once there is. */
+        synchronized CompletableFuture<Void> whenWritable() {
+            return blocks.size() < PIPE_BLOCKS || closed ? null : waitForChange();
+        }
+
+        synchronized void end(IOException failure) {
+            ended = true;
+            this.failure = failure;
+            changed();
+        }
+
+        synchronized void close() {
+            closed = true;
+            blocks.clear();
+            changed();
+        }
+
+        private CompletableFuture<Void> waitForChange() {
+            if (waiting == null) {
+                waiting = new CompletableFuture<>();
+            }
+            return waiting;
+        }
+
+        private void changed() {
+            notifyAll();
+            if (waiting != null) {
+                CompletableFuture<Void> woken = waiting;
+                waiting = null;
+                woken.complete(null);
+            }
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while passing a body between nodes");
+            }
+        }
+    }
+
+    private static long parseHttpDate(String value) {
+        if (value == null)
+            return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static InetSocketAddress address(String node) {
+        int colon = node.lastIndexOf(':');
+        try {
+            if (colon > 0) {
+                return InetSocketAddress.createUnresolved(node.substring(0, colon),
+                        Integer.parseInt(node.substring(colon + 1)));
+            }
+        } catch (IllegalArgumentException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Cluster nodes are given as host:port, not " + node);
+    }
+
+    private PeerConnection connect(String node) throws IOException {
+        InetSocketAddress unresolved = address(node);
+        return new PeerConnection(node, new InetSocketAddress(unresolved.getHostString(), unresolved.getPort()),
+                peerTimeoutMs);
+    }
+
+    /** An idle connection to the node if there is a recent one, otherwise a new one. */
+    private PeerConnection borrow(String node) throws IOException {
+        ArrayDeque<PeerConnection> connections = idle.get(node);
+        if (connections != null) {
+            while (true) {
+                PeerConnection connection;
+                synchronized (connections) {
+                    connection = connections.pollLast();
+                }
+                if (connection == null)
+                    break;
+                if (System.currentTimeMillis() - connection.idleSince < MAX_IDLE_MS) {
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return connect(node);
+    }
+
+    /** Keeps a connection whose response has been read in full for reuse, if the node will keep it open. */
+    private void release(PeerConnection connection, PeerResponse response) {
+        if (!response.keepAlive) {
+            connection.close();
+            return;
+        }
+        ArrayDeque<PeerConnection> connections = idle.computeIfAbsent(connection.node, node -> new ArrayDeque<>());
+        connection.idleSince = System.currentTimeMillis();
+        synchronized (connections) {
+            if (connections.size() < MAX_IDLE_PER_NODE) {
+                connections.addLast(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    private static final class PeerResponse {
+        int status;
+        String reason;
+        final Map<String, String> headers = new HashMap<>();
+        long contentLength = -1;
+        boolean keepAlive;
+    }
+
+    /** One HTTP/1.1 connection to another node, with blocking reads bounded by the peer timeout. */
+    private static final class PeerConnection implements Closeable {
+        private static final int MAX_LINE = 8192;
+
+        final String node;
+        private final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long idleSince;
+        boolean reused;
+
+        PeerConnection(String node, InetSocketAddress address, int timeoutMs) throws IOException {
+            this.node = node;
+            socket = new Socket();
+            try {
+                socket.connect(address, timeoutMs);
+                socket.setSoTimeout(timeoutMs);
+                socket.setTcpNoDelay(true);
+                in = new BufferedInputStream(socket.getInputStream(), COPY_BUFFER_SIZE);
+                out = new BufferedOutputStream(socket.getOutputStream(), COPY_BUFFER_SIZE);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        // The head of the last response exchange read
+        PeerResponse response;
+
+        void exchange(String head) throws IOException {
+            out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            response = readResponseHead();
+        }
+
+        PeerResponse readResponseHead() throws IOException {
+            String statusLine = readLine();
+            if (statusLine == null) {
+                throw new EOFException("Connection closed before a response");
+            }
+            PeerResponse response = new PeerResponse();
+            String[] parts = statusLine.split(" ", 3);
+            try {
+                response.status = Integer.parseInt(parts[1]);
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+            response.reason = parts.length > 2 ? parts[2] : "";
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    response.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            String contentLength = response.headers.get("content-length");
+            if (response.status == 304 || response.status == 204) {
+                response.contentLength = 0;
+            } else if (contentLength != null) {
+                try {
+                    response.contentLength = Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed Content-Length: " + contentLength);
+                }
+            }
+            // Only a response whose end is known leaves the connection usable
+            response.keepAlive = response.contentLength >= 0
+                    && !"close".equalsIgnoreCase(response.headers.getOrDefault("connection", ""));
+            return response;
+        }
+
+        String readText(PeerResponse response) throws IOException {
+            if (response.contentLength < 0) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+            }
+            byte[] body = in.readNBytes((int) Math.min(response.contentLength, 1 << 20));
+            skip(response.contentLength - body.length);
+            return new String(body, StandardCharsets.UTF_8).trim();
+        }
+
+        void skipBody(PeerResponse response) throws IOException {
+            if (response.contentLength >= 0) {
+                skip(response.contentLength);
+            }
+        }
+
+        private void skip(long count) throws IOException {
+            while (count > 0) {
+                long skipped = in.skip(count);
+                if (skipped <= 0) {
+                    if (in.read() == -1)
+                        throw new EOFException("Response body cut short");
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                if (line.length() >= MAX_LINE) {
+                    throw new IOException("Response header line too long");
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing to do about it
+            }
+        }
+    }
+}
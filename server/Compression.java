@@ -0,0 +1,187 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Response compression for text-like shared files. The encoding is negotiated
+ * from Accept-Encoding (gzip or deflate). A file is compressed on the fly while
+ * it is sent, until it has been asked for often enough; then a compressed copy is
+ * written once in the background to shared_files/.compressed and later requests
+ * are served from that copy with sendfile. A copy is only used while its mtime
+ * matches the original's, so editing a file retires its compressed copies.
+ */
+class Compression {
+    static final String SIDECAR_FOLDER = ".compressed";
+
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "txt", "text", "log", "md", "csv", "tsv", "html", "htm", "css", "js", "mjs", "json", "xml", "svg",
+            "yaml", "yml", "ini", "conf", "properties", "java", "c", "h", "cpp", "py", "sh", "sql"));
+
+    final int level;
+    private final int sidecarLevel;
+    private final long minSize;
+    private final int sidecarAfter;
+    private final File sidecarDirectory;
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "compressed-copy-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final LongAdder onTheFly = new LongAdder();
+    final LongAdder sidecarHits = new LongAdder();
+    final LongAdder sidecarsWritten = new LongAdder();
+    final LongAdder sidecarsStale = new LongAdder();
+
+    Compression(ServerOptions options, File sharedDirectory) {
+        level = options.getInt("compression-level", 1);
+        sidecarLevel = options.getInt("compression-sidecar-level", 9);
+        minSize = options.getLong("compression-min-size", 256);
+        sidecarAfter = options.getInt("compression-sidecar-after", 2);
+        if (level < 1 || level > 9 || sidecarLevel < 1 || sidecarLevel > 9) {
+            throw new IllegalArgumentException("Compression levels must be between 1 and 9");
+        }
+        sidecarDirectory = new File(sharedDirectory, SIDECAR_FOLDER);
+    }
+
+    static boolean isCompressible(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot >= 0 && COMPRESSIBLE_EXTENSIONS.contains(filename.substring(dot + 1).toLowerCase());
+    }
+
+    boolean worthCompressing(long length) {
+        return length >= minSize;
+    }
+
+    /**
+     * Picks the coding the client prefers among gzip and deflate, or null if it
+     * accepts neither. A q of 0 rules a coding out; "*" stands for any coding not
+     * named. Ties go to gzip.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = q;
+            } else if (coding.equals("deflate")) {
+                deflate = q;
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip < 0)
+            gzip = any;
+        if (deflate < 0)
+            deflate = any;
+        if (gzip <= 0 && deflate <= 0)
+            return null;
+        return gzip >= deflate ? "gzip" : "deflate";
+    }
+
+    /** The file extension a compressed copy in this encoding gets. */
+    private static String suffix(String encoding) {
+        return "gzip".equals(encoding) ? ".gz" : ".zz";
+    }
+
+    private File sidecarFile(String filename, String encoding) {
+        return new File(sidecarDirectory, filename + suffix(encoding));
+    }
+
+    /**
+     * Returns the compressed copy of a file in this encoding if there is one and it
+     * was made from the version last modified at lastModified. A copy left over
+     * from an older version is deleted.
+     */
+    File sidecar(String filename, long lastModified, String encoding) {
+        File sidecar = sidecarFile(filename, encoding);
+        long modified = sidecar.lastModified();
+        if (modified == 0L)
+            return null;
+        if (modified != lastModified) {
+            if (!pending.contains(sidecar.getPath()) && sidecar.delete()) {
+                sidecarsStale.increment();
+            }
+            return null;
+        }
+        sidecarHits.increment();
+        return sidecar;
+    }
+
+    /**
+     * Counts an on-the-fly compression of original; once a file has been compressed
+     * that way often enough, a copy is written in the background for next time.
+     */
+    void compressedOnTheFly(File original, String filename, String encoding) {
+        onTheFly.increment();
+        if (filename.indexOf('/') >= 0 || filename.indexOf('\\') >= 0)
+            return; // Copies are only kept for files directly in shared_files
+        String key = filename + suffix(encoding);
+        int count = requestCounts.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        File sidecar = sidecarFile(filename, encoding);
+        if (count >= sidecarAfter && pending.add(sidecar.getPath())) {
+            requestCounts.remove(key);
+            writer.submit(() -> {
+                try {
+                    writeSidecar(original, sidecar, encoding);
+                } catch (IOException e) {
+                    System.err.println("Could not write compressed copy of " + filename + ": " + e.getMessage());
+                } finally {
+                    pending.remove(sidecar.getPath());
+                }
+            });
+        }
+    }
+
+    /**
+     * Compresses original to a temporary file and renames it into place, stamped
+     * with the original's mtime. If the original changes meanwhile the copy is
+     * thrown away rather than published with a matching mtime.
+     */
+    private void writeSidecar(File original, File sidecar, String encoding) throws IOException {
+        sidecar.getParentFile().mkdirs();
+        long modified = original.lastModified();
+        File temp = new File(sidecar.getPath() + ".tmp");
+        try (FileChannel source = FileChannel.open(original.toPath(), StandardOpenOption.READ);
+                FileChannel target = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ResponseBody body = ResponseBody.compressed(source, 0, source.size(), encoding, sidecarLevel, false);
+            try {
+                body.writeTo(target);
+            } finally {
+                body.close();
+            }
+        }
+        if (original.lastModified() != modified || !temp.setLastModified(modified)) {
+            temp.delete();
+            return;
+        }
+        Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        sidecarsWritten.increment();
+        System.out.println("Wrote compressed copy: " + sidecar.getName() + " (" + sidecar.length() + " of "
+                + original.length() + " bytes)");
+    }
+}
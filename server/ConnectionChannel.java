@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A connection's socket channel as both serving modes use it. It counts what is
+ * written, in total and into the sent-bytes counter, and decides how many bytes
+ * the connection may move right now: no more than its bandwidth limits allow
+ * (see Throttle), and no more than is left of its turn, a quantum of bytes after
+ * which it should let other connections have a go.
+ *
+ * It never waits. When either runs out a write or read moves nothing and returns
+ * 0, as a full socket would, and throttledNanos() and turnUsed() tell the engine
+ * which it was. File regions go through transferFrom so they are still sent with
+ * sendfile rather than copied through the wrapper.
+ *
+ * On an HTTPS connection everything goes through the connection's TlsChannel
+ * instead, and file regions are read into the buffer they are encrypted from,
+ * since sendfile can't encrypt.
+ */
+final class ConnectionChannel implements WritableByteChannel {
+    private final SocketChannel socket;
+    // The socket itself, or its TlsChannel on an HTTPS connection
+    private final ByteChannel channel;
+    // Null for plain HTTP
+    private final TlsChannel tls;
+    private final LongAdder counter;
+    // Null when no bandwidth limit is set
+    private final Throttle.Limiter downloads;
+    private final Throttle.Limiter uploads;
+    private long count;
+    private long turnRemaining = Long.MAX_VALUE;
+    private long throttledNanos;
+    private boolean released;
+
+    ConnectionChannel(SocketChannel socket, TlsChannel tls, LongAdder counter, Throttle throttle,
+            InetAddress client) {
+        this.socket = socket;
+        this.tls = tls;
+        this.channel = tls != null ? tls : socket;
+        this.counter = counter;
+        boolean limited = throttle != null && throttle.enabled();
+        this.downloads = limited ? throttle.downloadLimiter(client) : null;
+        this.uploads = limited ? throttle.uploadLimiter(client) : null;
+    }
+
+    /** Bytes written so far, over the whole connection. */
+    long count() {
+        return count;
+    }
+
+    /** Starts a turn of quantum bytes, read and written together; 0 or less means no limit. */
+    void newTurn(long quantum) {
+        turnRemaining = quantum > 0 ? quantum : Long.MAX_VALUE;
+        throttledNanos = 0;
+    }
+
+    /** True if the last write or read moved nothing because the turn was over. */
+    boolean turnUsed() {
+        return turnRemaining == 0;
+    }
+
+    /**
+     * How long until the bandwidth limits let the connection go on, if the last
+     * write or read moved nothing because of them; 0 otherwise.
+     */
+    long throttledNanos() {
+        return throttledNanos;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int allowed = (int) permit(downloads, source.remaining());
+        if (allowed == 0)
+            return 0;
+        int written;
+        if (allowed < source.remaining()) {
+            int limit = source.limit();
+            source.limit(source.position() + allowed);
+            try {
+                written = channel.write(source);
+            } finally {
+                source.limit(limit);
+            }
+        } else {
+            written = channel.write(source);
+        }
+        moved(downloads, allowed, written);
+        count += written;
+        counter.add(written);
+        return written;
+    }
+
+    long transferFrom(FileChannel source, long position, long length) throws IOException {
+        long allowed = permit(downloads, length);
+        if (allowed == 0)
+            return 0;
+        long written = tls != null ? tls.transferFrom(source, position, allowed)
+                : source.transferTo(position, allowed, socket);
+        moved(downloads, allowed, written);
+        count += written;
+        counter.add(written);
+        return written;
+    }
+
+    /** Reads request head bytes from the non-blocking channel; bandwidth limits and turns don't apply to these. */
+    int readHead(ByteBuffer target) throws IOException {
+        return channel.read(target);
+    }
+
+    /** Reads request body bytes from the non-blocking channel; 0 if none arrived or none are allowed yet. */
+    int read(ByteBuffer target) throws IOException {
+        int allowed = (int) permit(uploads, target.remaining());
+        if (allowed == 0)
+            return 0;
+        int limit = target.limit();
+        target.limit(target.position() + allowed);
+        int read;
+        try {
+            read = channel.read(target);
+        } finally {
+            target.limit(limit);
+        }
+        moved(uploads, allowed, Math.max(read, 0));
+        return read;
+    }
+
+    /** Reads request body bytes from the blocking socket's stream; 0 if none are allowed yet. */
+    int read(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int allowed = (int) permit(uploads, length);
+        if (allowed == 0)
+            return 0;
+        int read = in.read(buffer, offset, allowed);
+        moved(uploads, allowed, Math.max(read, 0));
+        return read;
+    }
+
+    /**
+     * Sends anything a write has taken but not yet put on the wire, which only an
+     * HTTPS connection has; returns true once nothing is left.
+     */
+    boolean flush() throws IOException {
+        return tls == null || tls.flush();
+    }
+
+    /** True if an HTTPS connection has decrypted request bytes waiting, which no selector will report. */
+    boolean hasBufferedInput() {
+        return tls != null && tls.hasBufferedInput();
+    }
+
+    private long permit(Throttle.Limiter limiter, long wanted) {
+        throttledNanos = 0;
+        long allowed = Math.min(wanted, turnRemaining);
+        if (allowed <= 0 || limiter == null)
+            return allowed;
+        allowed = limiter.take(allowed);
+        if (allowed == 0) {
+            throttledNanos = limiter.waitNanos();
+        }
+        return allowed;
+    }
+
+    private void moved(Throttle.Limiter limiter, long allowed, long moved) {
+        if (limiter != null && moved < allowed) {
+            limiter.refund(allowed - moved);
+        }
+        turnRemaining -= moved;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /** Closes the socket and gives up the connection's share of the client's bandwidth. */
+    @Override
+    public void close() throws IOException {
+        if (!released && downloads != null) {
+            downloads.release();
+            uploads.release();
+        }
+        released = true;
+        channel.close();
+    }
+}
@@ -0,0 +1,247 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps popular small and medium shared files in direct buffers so a download
+ * is served without opening or reading the file: the cached bytes are written
+ * straight to the socket. The cache is bounded by total bytes and evicts the
+ * least recently used file. With the "tinylfu" policy a file only gets in if it
+ * has been asked for more often than the files it would push out, so a scan of
+ * one-off downloads can't flush the popular ones.
+ *
+ * The file index's WatchService drops an entry as soon as its file is changed,
+ * replaced or deleted, so hits need no filesystem check at all.
+ */
+class FileCache {
+    private final long capacity;
+    private final long maxFileSize;
+    private final boolean admissionFilter;
+    private final FrequencySketch sketch;
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+
+    // Bumped on every invalidation; a load that raced with one is not inserted
+    private final AtomicLong generation = new AtomicLong();
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder rejections = new LongAdder();
+    final LongAdder invalidations = new LongAdder();
+
+    /** A cached file: its contents and the validators its responses carry. */
+    static final class Entry {
+        final ByteBuffer data;
+        final long length;
+        final long lastModified;
+
+        Entry(ByteBuffer data, long lastModified) {
+            this.data = data;
+            this.length = data.capacity();
+            this.lastModified = lastModified;
+        }
+
+        /** A body over part of the cached bytes; each response gets its own view of the buffer. */
+        ResponseBody region(long position, long count) {
+            ByteBuffer view = data.duplicate();
+            view.limit((int) (position + count));
+            view.position((int) position);
+            return ResponseBody.buffer(view);
+        }
+    }
+
+    FileCache(long capacity, long maxFileSize, String policy) {
+        if (!"lru".equals(policy) && !"tinylfu".equals(policy)) {
+            throw new IllegalArgumentException("Unknown cache policy: " + policy + " (expected lru or tinylfu)");
+        }
+        this.capacity = capacity;
+        this.maxFileSize = Math.min(maxFileSize, Math.min(capacity, Integer.MAX_VALUE));
+        this.admissionFilter = "tinylfu".equals(policy);
+        this.sketch = admissionFilter ? new FrequencySketch(4096) : null;
+    }
+
+    /** Returns the cached file, or null on a miss. Every lookup counts towards the file's popularity. */
+    Entry get(String filename) {
+        Entry entry;
+        synchronized (this) {
+            if (sketch != null) {
+                sketch.increment(filename);
+            }
+            entry = entries.get(filename);
+        }
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Reads a file that missed into the cache if it is small enough and wins
+     * admission. Returns the new entry, or null if the file should be streamed
+     * from disk instead.
+     */
+    Entry load(String filename, FileChannel source, long lastModified) throws IOException {
+        long length = source.size();
+        if (length > maxFileSize || !cacheable(filename))
+            return null;
+        synchronized (this) {
+            if (!admit(filename, length)) {
+                rejections.increment();
+                return null;
+            }
+        }
+
+        long startGeneration = generation.get();
+        ByteBuffer data = ByteBuffer.allocateDirect((int) length);
+        while (data.hasRemaining()) {
+            if (source.read(data, data.position()) == -1) {
+                // Shrank while being read; let the disk path deal with it
+                return null;
+            }
+        }
+        data.flip();
+        Entry entry = new Entry(data.asReadOnlyBuffer(), lastModified);
+
+        synchronized (this) {
+            if (generation.get() != startGeneration || entries.containsKey(filename)) {
+                return entry; // Serve this copy but don't keep it
+            }
+            makeRoom(length);
+            entries.put(filename, entry);
+            size += length;
+        }
+        return entry;
+    }
+
+    /** Only files directly in shared_files are cached, since those are the ones being watched. */
+    private static boolean cacheable(String filename) {
+        return filename.indexOf('/') < 0 && filename.indexOf('\\') < 0 && !filename.equals("..");
+    }
+
+    /** With the admission filter, a new file has to be more popular than everything it would evict. */
+    private boolean admit(String filename, long length) {
+        if (!admissionFilter || size + length <= capacity)
+            return true;
+        int candidate = sketch.frequency(filename);
+        long freed = capacity - size;
+        for (Map.Entry<String, Entry> victim : entries.entrySet()) {
+            if (freed >= length)
+                break;
+            if (sketch.frequency(victim.getKey()) >= candidate)
+                return false;
+            freed += victim.getValue().length;
+        }
+        return true;
+    }
+
+    private void makeRoom(long length) {
+        Iterator<Entry> lru = entries.values().iterator();
+        while (size + length > capacity && lru.hasNext()) {
+            size -= lru.next().length;
+            lru.remove();
+            evictions.increment();
+        }
+    }
+
+    void invalidate(String filename) {
+        generation.incrementAndGet();
+        Entry removed;
+        synchronized (this) {
+            removed = entries.remove(filename);
+            if (removed != null) {
+                size -= removed.length;
+            }
+        }
+        if (removed != null) {
+            invalidations.increment();
+        }
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet();
+        synchronized (this) {
+            invalidations.add(entries.size());
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    synchronized int entryCount() {
+        return entries.size();
+    }
+
+    synchronized long sizeInBytes() {
+        return size;
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Approximate per-file request counts for the admission filter: a count-min
+     * sketch of 4-bit counters, halved every so often so that yesterday's popular
+     * files gradually lose their advantage.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int resetAfter;
+        private int additions;
+
+        FrequencySketch(int width) {
+            int tableWidth = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+            counters = new byte[DEPTH][tableWidth];
+            mask = tableWidth - 1;
+            resetAfter = tableWidth * 10;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(hash, row);
+                if (counters[row][index] < MAX_COUNT) {
+                    counters[row][index]++;
+                }
+            }
+            if (++additions >= resetAfter) {
+                age();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int min = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, counters[row][index(hash, row)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private void age() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.*;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * In-memory metadata for the files in a directory, shared_files or uploads:
+ * size, mtime, MIME type and an ETag, which is a hash of the content for files
+ * up to a size limit and is otherwise derived from size and mtime. Downloads
+ * look files up here instead of stat-ing them. The index is built at startup, hashing files in parallel, and a
+ * WatchService keeps it current; listeners such as the file cache hear about
+ * every change as it happens.
+ *
+ * Besides the map for lookups by name, the entries are kept in skip lists
+ * sorted by name, size and mtime, each updated along with the map. A listing
+ * walks one of them from wherever the previous page ended, so no request sorts
+ * or rescans the directory however many files it holds.
+ */
+class FileIndex {
+    // Changes usually come as a burst of events while a file is written; wait for a quiet moment
+    private static final long SETTLE_MS = 200;
+    private static final int HASH_BUFFER_SIZE = 256 * 1024;
+
+    private final File directory;
+    private final long hashLimit;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final NavigableSet<Entry> byName = new ConcurrentSkipListSet<>(Order.NAME.comparator);
+    private final NavigableSet<Entry> bySize = new ConcurrentSkipListSet<>(Order.SIZE.comparator);
+    private final NavigableSet<Entry> byModified = new ConcurrentSkipListSet<>(Order.MODIFIED.comparator);
+    private final List<Consumer<String>> listeners = new ArrayList<>();
+
+    /** The orders entries can be listed in; ties, and the name order itself, go by name. */
+    enum Order {
+        NAME(Comparator.comparing((Entry entry) -> entry.name)),
+        SIZE(Comparator.comparingLong((Entry entry) -> entry.length).thenComparing(entry -> entry.name)),
+        MODIFIED(Comparator.comparingLong((Entry entry) -> entry.lastModified).thenComparing(entry -> entry.name));
+
+        final Comparator<Entry> comparator;
+
+        Order(Comparator<Entry> comparator) {
+            this.comparator = comparator;
+        }
+    }
+
+    /** What the server knows about one shared file. */
+    static final class Entry {
+        final String name;
+        final File file;
+        final long length;
+        final long lastModified;
+        final String etag;
+        final String mimeType;
+
+        Entry(String name, File file, long length, long lastModified, String etag, String mimeType) {
+            this.name = name;
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.mimeType = mimeType;
+        }
+
+        /** A stand-in with just the fields the orders compare, for positioning within them. */
+        static Entry position(String name, long length, long lastModified) {
+            return new Entry(name, null, length, lastModified, null, null);
+        }
+
+        /** True if an If-None-Match header names this file's current content, compressed or not. */
+        boolean matches(String ifNoneMatch) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2); // Weak comparison, as RFC 9110 asks for here
+                }
+                if (candidate.equals("*") || candidate.equals(etag)
+                        || candidate.equals(HTTPFileServer.variantTag(etag, "gzip"))
+                        || candidate.equals(HTTPFileServer.variantTag(etag, "deflate"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    FileIndex(File directory, long hashLimit) {
+        this.directory = directory;
+        this.hashLimit = hashLimit;
+    }
+
+    /**
+     * Called with the name of each file that was added, changed or removed, as
+     * soon as the change is seen, and again once the index has caught up with it;
+     * null means any file may have changed.
+     */
+    void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /** Indexes every file in the directory, hashing them in parallel. */
+    void build() {
+        long start = System.nanoTime();
+        File[] files = directory.listFiles(File::isFile);
+        if (files == null)
+            return;
+        Arrays.stream(files).parallel().forEach(file -> {
+            Entry entry = scan(file.getName(), true);
+            if (entry != null) {
+                store(entry.name, entry);
+            }
+        });
+        long bytes = 0;
+        for (Entry entry : entries.values()) {
+            bytes += entry.length;
+        }
+        System.out.println("Indexed " + entries.size() + " files in " + directory.getName() + " (" + bytes + " bytes) in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Returns the file's metadata, or null if there is no such file. Only files
+     * straight in the directory are indexed, so a name with a path in it is never
+     * found, whatever it points at on disk.
+     */
+    Entry lookup(String name) {
+        if (HTTPFileServer.hasPath(name))
+            return null;
+        return entries.get(name);
+    }
+
+    /**
+     * Re-reads a file's metadata right away, for a download that found the file no
+     * longer matches its entry. The content hash is left to the watcher, so the
+     * new entry has a size-and-mtime ETag until then.
+     */
+    Entry refresh(String name) {
+        if (HTTPFileServer.hasPath(name))
+            return null;
+        Entry entry = scan(name, false);
+        update(name, entry);
+        return entry;
+    }
+
+    /** Every indexed file, sorted by name. */
+    List<Entry> list() {
+        return new ArrayList<>(byName);
+    }
+
+    /**
+     * The indexed files in order, starting from position (an entry or a stand-in
+     * for one) if it is given, and including it only if inclusive is set. The
+     * view is live: a change made while it is walked may or may not show up, but
+     * nothing is returned twice.
+     */
+    NavigableSet<Entry> sorted(Order order, boolean descending, Entry position, boolean inclusive) {
+        NavigableSet<Entry> set = order == Order.SIZE ? bySize : order == Order.MODIFIED ? byModified : byName;
+        if (descending) {
+            set = set.descendingSet();
+        }
+        return position == null ? set : set.tailSet(position, inclusive);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long totalBytes() {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.length;
+        }
+        return total;
+    }
+
+    private void update(String name, Entry entry) {
+        store(name, entry);
+        notifyListeners(name);
+    }
+
+    /** Replaces a file's entry, or removes it if entry is null, in the map and the sorted sets alike. */
+    private synchronized void store(String name, Entry entry) {
+        Entry previous = entry == null ? entries.remove(name) : entries.put(name, entry);
+        if (previous != null) {
+            byName.remove(previous);
+            bySize.remove(previous);
+            byModified.remove(previous);
+        }
+        if (entry != null) {
+            byName.add(entry);
+            bySize.add(entry);
+            byModified.add(entry);
+        }
+    }
+
+    private void notifyListeners(String name) {
+        for (Consumer<String> listener : listeners) {
+            listener.accept(name);
+        }
+    }
+
+    private Entry scan(String name, boolean hash) {
+        File file = new File(directory, name);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (!attributes.isRegularFile())
+                return null;
+            long length = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            String etag = hash && length <= hashLimit ? contentTag(file)
+                    : HTTPFileServer.entityTag(length, lastModified);
+            return new Entry(name, file, length, lastModified, etag, mimeType(name));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Could not index " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** A strong ETag from the first 128 bits of the content's SHA-256. */
+    private static String contentTag(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        byte[] hash = digest.digest();
+        StringBuilder tag = new StringBuilder("\"");
+        for (int i = 0; i < 16; i++) {
+            tag.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return tag.append('"').toString();
+    }
+
+    static String mimeType(String name) {
+        String type = URLConnection.guessContentTypeFromName(name);
+        return type != null ? type : "application/octet-stream";
+    }
+
+    /** Starts the daemon thread that keeps the index current. */
+    void watch() throws IOException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Set<String> changed = new HashSet<>();
+                    boolean overflow = false;
+                    WatchKey key = watcher.take();
+                    while (key != null) {
+                        // Listeners hear about each event at once; the index catches up once things settle
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                overflow = true;
+                                notifyListeners(null);
+                            } else {
+                                String name = event.context().toString();
+                                changed.add(name);
+                                notifyListeners(name);
+                            }
+                        }
+                        if (!key.reset()) {
+                            notifyListeners(null);
+                            return; // The directory itself went away
+                        }
+                        key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS);
+                    }
+
+                    if (overflow) {
+                        // Events were lost, so every file has to be looked at again
+                        for (String name : entries.keySet()) {
+                            changed.add(name);
+                        }
+                        File[] files = directory.listFiles(File::isFile);
+                        for (File file : files != null ? files : new File[0]) {
+                            changed.add(file.getName());
+                        }
+                    }
+                    for (String name : changed) {
+                        Entry current = entries.get(name);
+                        Entry scanned = scan(name, true);
+                        if (current == null && scanned == null)
+                            continue;
+                        update(name, scanned);
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Server shutting down
+            }
+        }, "file-index-watcher-" + directory.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
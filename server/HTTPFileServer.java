@@ -1,27 +1,186 @@
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.concurrent.*;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 public class HTTPFileServer {
     private static final int PORT = 8080;
-    private static final String SHARED_FOLDER = "shared_files";
-    private static final String UPLOAD_FOLDER = "uploads";
-    private ServerSocket serverSocket;
+    private static final int DEFAULT_POOL_SIZE = 10;
+    private static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+    private static final int DEFAULT_MAX_HEADER_SIZE = 16 * 1024;
+    private static final long DEFAULT_CACHE_MAX_FILE = 4 * 1024 * 1024;
+    private static final long DEFAULT_MMAP_THRESHOLD = 64 * 1024 * 1024;
+    private static final long DEFAULT_INDEX_HASH_MAX = 256 * 1024 * 1024;
+    private static final long DEFAULT_FAIR_SHARE_QUANTUM = 1024 * 1024;
+    private static final int DEFAULT_QUEUE_SIZE = 512;
+    static final String SHARED_FOLDER = "shared_files";
+    static final String UPLOAD_FOLDER = "uploads";
+    private final int port;
+    // 0 when there is no HTTPS listener
+    private final int tlsPort;
+    // Null without an HTTPS listener
+    final TlsContext tls;
+    private final String mode;
+    private final int ioThreads;
+    private final String executorKind;
+    private final boolean zeroCopy;
+    final int keepAliveTimeoutMs;
+    // How long the nio mode lets a request body or response go without moving a byte; 0 or less for no limit
+    final int idleTimeoutMs;
+    final int maxKeepAliveRequests;
+    private final BufferPool transferBuffers = new BufferPool(TRANSFER_BUFFER_SIZE, 64);
+    // Per-connection request input; sized to hold the largest head we accept
+    final BufferPool requestBuffers;
+    final int maxHeaderSize;
+    final UploadStore uploadStore;
+    private final UploadSessions uploadSessions;
+    // Null unless --cluster-nodes is given
+    final Cluster cluster;
+    final FileIndex fileIndex;
+    // Uploads are only listed, so their ETags aren't content hashes
+    final FileIndex uploadIndex;
+    // Null unless --cache-size is set
+    private final FileCache fileCache;
+    // Null when --mmap-threshold is 0 or less
+    private final MappedFiles mappedFiles;
+    // Null when --compression=false
+    private final Compression compression;
+    private final LongAdder notModified = new LongAdder();
+    final Metrics metrics = new Metrics();
+    final Throttle throttle;
+    // Bytes a connection moves before it lets waiting connections go first; 0 or less for no turns
+    final long fairShareQuantum;
+    // Connections allowed to wait for a worker before new ones get 503; 0 or less for no limit
+    private final int queueSize;
+    final int retryAfterSeconds;
+    // Null when --access-log=off
+    private final AccessLog accessLog;
+    private ServerSocketChannel serverChannel;
+    private ServerSocketChannel tlsServerChannel;
+    private NioFileServerEngine nioEngine;
     private ExecutorService threadPool;
-    private boolean running = false;
+    // Puts blocking-mode connections back on the executor when they have given up their worker
+    private ScheduledExecutorService rescheduler;
+    private volatile boolean running = false;
 
     public HTTPFileServer() {
+        this(new ServerOptions());
+    }
+
+    public HTTPFileServer(ServerOptions options) {
+        port = options.getInt("port", PORT);
+        tlsPort = options.getInt("tls-port", 0);
+        tls = tlsPort > 0 ? new TlsContext(options) : null;
+        mode = options.get("mode", "blocking");
+        if (!"blocking".equals(mode) && !"nio".equals(mode)) {
+            throw new IllegalArgumentException("Unknown mode: " + mode + " (expected blocking or nio)");
+        }
+        ioThreads = options.getInt("io-threads", Math.max(1, Runtime.getRuntime().availableProcessors()));
+        executorKind = options.get("executor", "fixed");
+        zeroCopy = options.getBoolean("zero-copy", true);
+        keepAliveTimeoutMs = options.getInt("keep-alive-timeout", 5000);
+        idleTimeoutMs = options.getInt("idle-timeout", 30000);
+        maxKeepAliveRequests = options.getInt("max-requests", 100);
+        maxHeaderSize = options.getInt("max-header-size", DEFAULT_MAX_HEADER_SIZE);
+        requestBuffers = new BufferPool(maxHeaderSize, 256, false);
+        throttle = new Throttle(options);
+        fairShareQuantum = options.getLong("fair-share-quantum", DEFAULT_FAIR_SHARE_QUANTUM);
+        queueSize = options.getInt("queue-size", DEFAULT_QUEUE_SIZE);
+        retryAfterSeconds = options.getInt("retry-after", 1);
         createDirectories();
-        threadPool = Executors.newFixedThreadPool(10);
+        uploadStore = new UploadStore(new File(UPLOAD_FOLDER), new UploadWriter(options));
+        uploadSessions = new UploadSessions(this, new File(UPLOAD_FOLDER, ".sessions"));
+        cluster = options.get("cluster-nodes", null) != null ? new Cluster(this, options, port) : null;
+        long cacheSize = options.getLong("cache-size", 0);
+        fileCache = cacheSize > 0 ? new FileCache(cacheSize, options.getLong("cache-max-file", DEFAULT_CACHE_MAX_FILE),
+                options.get("cache-policy", "tinylfu")) : null;
+        long mmapThreshold = options.getLong("mmap-threshold", DEFAULT_MMAP_THRESHOLD);
+        mappedFiles = mmapThreshold > 0 ? new MappedFiles(mmapThreshold) : null;
+        compression = options.getBoolean("compression", true)
+                ? new Compression(options, new File(SHARED_FOLDER)) : null;
+        try {
+            accessLog = AccessLog.open(options.get("access-log", "stdout"));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not open access log: " + e.getMessage());
+        }
+        fileIndex = new FileIndex(new File(SHARED_FOLDER), options.getLong("index-hash-max", DEFAULT_INDEX_HASH_MAX));
+        uploadIndex = new FileIndex(new File(UPLOAD_FOLDER), 0);
+        if (fileCache != null) {
+            fileIndex.addListener(name -> {
+                if (name == null) {
+                    fileCache.invalidateAll();
+                } else {
+                    fileCache.invalidate(name);
+                }
+            });
+        }
+        if ("blocking".equals(mode)) {
+            threadPool = createExecutor(executorKind, options.getInt("threads", DEFAULT_POOL_SIZE));
+            rescheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "rescheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 
-    private static class HTTPRequest {
+    /**
+     * Builds the executor that runs connections in blocking mode:
+     * "fixed" is a bounded platform-thread pool, "work-stealing" a ForkJoinPool
+     * with the given parallelism, and "virtual" one virtual thread per connection.
+     * Their queues are unbounded, but start() turns connections away once
+     * --queue-size of them are waiting.
+     */
+    static ExecutorService createExecutor(String kind, int threads) {
+        switch (kind) {
+            case "fixed":
+                return Executors.newFixedThreadPool(threads);
+            case "work-stealing":
+                return Executors.newWorkStealingPool(threads);
+            case "virtual":
+                return newVirtualThreadPerTaskExecutor();
+            default:
+                throw new IllegalArgumentException("Unknown executor: " + kind
+                        + " (expected fixed, work-stealing or virtual)");
+        }
+    }
+
+    // Looked up reflectively so the server still compiles and runs on Java 17
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("The virtual executor needs Java 21 or newer");
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Could not create virtual thread executor", e);
+        }
+    }
+
+    static class HTTPRequest {
         String method;
         String path;
         String version;
         Map<String, String> headers;
+        // Cleared by handlers that end the connection, e.g. when a body is left unread
+        boolean keepAlive;
     }
 
     private void createDirectories() {
@@ -40,18 +199,52 @@ public class HTTPFileServer {
     }
 
     public void start() throws IOException {
-        serverSocket = new ServerSocket(PORT);
+        fileIndex.build();
+        fileIndex.watch();
+        uploadIndex.build();
+        uploadIndex.watch();
+        if ("nio".equals(mode)) {
+            nioEngine = new NioFileServerEngine(this, port, tlsPort, ioThreads);
+            running = true;
+            printBanner();
+            nioEngine.start();
+            return;
+        }
+
+        // Accept through a channel so each socket has a SocketChannel for transferTo
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        if (tls != null) {
+            tlsServerChannel = ServerSocketChannel.open();
+            tlsServerChannel.bind(new InetSocketAddress(tlsPort));
+        }
         running = true;
-        System.out.println("HTTP File Server started on port " + PORT);
-        System.out.println("Endpoints:");
-        System.out.println("  GET  /download?filename=<filename> - Download a file");
-        System.out.println("  POST /upload - Upload a file");
+        printBanner();
 
+        if (tls != null) {
+            Thread tlsAcceptor = new Thread(() -> acceptConnections(tlsServerChannel, tls), "tls-acceptor");
+            tlsAcceptor.setDaemon(true);
+            tlsAcceptor.start();
+        }
+        acceptConnections(serverChannel, null);
+    }
+
+    /** Hands connections from one listener to the executor until the server stops; tls is null for HTTP. */
+    private void acceptConnections(ServerSocketChannel listener, TlsContext tls) {
         while (running) {
             try {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected: " + clientSocket.getInetAddress());
-                threadPool.submit(() -> handleClient(clientSocket));
+                SocketChannel clientChannel = listener.accept();
+                metrics.connectionsAccepted.increment();
+                if (queueSize > 0 && waitingConnections() >= queueSize) {
+                    reject(clientChannel, tls != null);
+                    continue;
+                }
+                try {
+                    threadPool.execute(new BlockingConnection(this, clientChannel, tls));
+                } catch (IOException e) {
+                    clientChannel.close();
+                    throw e;
+                }
             } catch (IOException e) {
                 if (running) {
                     System.err.println("Error accepting client connection: " + e.getMessage());
@@ -60,131 +253,787 @@ public class HTTPFileServer {
         }
     }
 
-    private void handleClient(Socket clientSocket) {
-        try (InputStream rawInput = clientSocket.getInputStream();
-                OutputStream out = clientSocket.getOutputStream()) {
-
-            BufferedReader headerReader = new BufferedReader(new InputStreamReader(rawInput));
-            HTTPRequest request = parseHTTPRequest(headerReader);
+    private void printBanner() {
+        String details = "nio".equals(mode) ? ioThreads + " event loops" : executorKind + " executor";
+        System.out.println("HTTP File Server started on port " + port + " (" + mode + " mode, " + details + ")");
+        if (tls != null) {
+            System.out.println("HTTPS on port " + tlsPort + " (" + tls.describe() + ")");
+        }
+        if (fileCache != null) {
+            System.out.println("File cache: " + fileCache.capacity() + " bytes");
+        }
+        if (mappedFiles != null) {
+            System.out.println("Memory-mapping files of " + mappedFiles.threshold() + " bytes or more");
+        }
+        if (cluster != null) {
+            System.out.println("Cluster: " + cluster.describe());
+        }
+        System.out.println("Endpoints:");
+        System.out.println("  GET  /download?filename=<filename> - Download a file (If-None-Match/If-Modified-Since give 304)");
+        System.out.println("  POST /upload - Upload a file (Content-Length or chunked; Digest or Content-MD5 is verified)");
+        System.out.println("  GET  /archive?files=<a,b,...>|glob=<pattern>[&format=tar|zip] - Download several files as one archive");
+        System.out.println("  POST /upload/archive - Upload several files as a tar or multipart/form-data body");
+        System.out.println("  GET  /list[?dir=shared|uploads&sort=name|size|modified&order=asc|desc&prefix=&glob=&limit=&cursor=]"
+                + " - List files as JSON, a page at a time");
+        if (cluster != null) {
+            System.out.println("  GET  /cluster - The cluster's nodes and ring settings, as JSON");
+        }
+        System.out.println("  GET  /metrics - Server metrics in Prometheus text format (also at /stats)");
+        System.out.println("  POST /upload/sessions - Start a resumable upload, then PUT .../parts/<n> and POST .../commit");
+    }
 
-            if (request == null) {
-                sendErrorResponse(out, 400, "Bad Request");
-                return;
-            }
+    /** Connections queued for a worker thread in blocking mode; a virtual-thread executor never queues any. */
+    int waitingConnections() {
+        if (threadPool instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor) threadPool).getQueue().size();
+        if (threadPool instanceof ForkJoinPool)
+            return ((ForkJoinPool) threadPool).getQueuedSubmissionCount();
+        return 0;
+    }
 
-            System.out.println("Received " + request.method + " " + request.path);
+    boolean connectionsWaiting() {
+        return waitingConnections() > 0;
+    }
 
-            if (request.path.startsWith("/download")) {
-                handleDownloadRequest(request, out);
-            } else if (request.path.equals("/upload")) {
+    /**
+     * Queues a connection that gave up its worker again, after delayNanos. It
+     * always goes through the rescheduler thread: a ForkJoinPool worker that
+     * submitted it itself would put it on its own queue, ahead of the waiting
+     * connections it stepped aside for.
+     */
+    void reschedule(BlockingConnection connection, long delayNanos) {
+        try {
+            rescheduler.schedule(() -> {
+                try {
+                    threadPool.execute(connection);
+                } catch (RejectedExecutionException e) {
+                    connection.close();
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            connection.close();
+        }
+    }
 
-                handleUploadRequest(request, rawInput, out);
-            } else {
-                sendErrorResponse(out, 404, "Not Found");
+    /**
+     * Answers a connection with 503 and closes it, without reading its request,
+     * when too many are already waiting for a worker. Done on the accepting
+     * thread: the response is small enough for a new socket's send buffer. An
+     * HTTPS connection is just closed, since answering would take a handshake.
+     */
+    private void reject(SocketChannel channel, boolean https) {
+        long started = System.nanoTime();
+        metrics.connectionsRejected.increment();
+        if (https) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        Response response = Response.error(503, "Service Unavailable");
+        response.head.header("Retry-After", retryAfterSeconds);
+        addConnectionHeaders(response.head, false);
+        ByteBuffer bytes = ByteBuffer.wrap(response.encodeHead());
+        InetAddress client = channel.socket().getInetAddress();
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            // Read what has arrived of the request so closing doesn't reset the connection under the response
+            channel.shutdownOutput();
+            channel.configureBlocking(false);
+            ByteBuffer discard = ByteBuffer.allocate(4096);
+            while (channel.read(discard) > 0) {
+                discard.clear();
             }
-
         } catch (IOException e) {
-            System.err.println("Error handling client: " + e.getMessage());
+            // The client is gone already
         } finally {
             try {
-                clientSocket.close();
+                channel.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+        exchangeFinished(client, null, response, started, bytes.position(), !bytes.hasRemaining());
+    }
+
+    static boolean wantsKeepAlive(HTTPRequest request) {
+        String connection = request.headers.get("connection");
+        if (connection != null) {
+            connection = connection.toLowerCase();
+            if (connection.contains("close"))
+                return false;
+            if (connection.contains("keep-alive"))
+                return true;
+        }
+        // Persistent by default from HTTP/1.1 on
+        return !"HTTP/1.0".equals(request.version);
+    }
+
+    /**
+     * Picks how to answer a request, for either serving mode. A request whose
+     * body no handler reads ends the connection, since the body can't be skipped
+     * reliably.
+     */
+    Route route(HTTPRequest request) throws IOException {
+        Route route;
+        try {
+            route = dispatch(request);
+        } catch (HTTPRequestParser.HTTPParseException e) {
+            // Such as a malformed query string
+            route = Route.respond(Response.error(e.statusCode, e.getMessage()));
+        }
+        if (!route.hasBody()) {
+            request.keepAlive &= !hasBody(request);
+        }
+        return route;
+    }
+
+    private Route dispatch(HTTPRequest request) throws IOException {
+        Route route;
+        if (request.path.startsWith("/download")) {
+            route = Route.respond(handleDownloadRequest(request));
+        } else if (request.path.equals(Listing.PATH) || request.path.startsWith(Listing.PATH + "?")) {
+            route = Route.respond(Listing.handle(request, fileIndex, uploadIndex));
+        } else if (request.path.equals(Cluster.PATH) && cluster != null) {
+            route = Route.respond(cluster.describeResponse());
+        } else if (request.path.equals("/metrics") || request.path.equals("/stats")) {
+            route = Route.respond(metricsResponse());
+        } else if (request.path.equals("/archive") || request.path.startsWith("/archive?")) {
+            route = Route.respond(handleArchiveRequest(request));
+        } else if (request.path.equals("/upload")) {
+            route = handleUploadRequest(request);
+        } else if (request.path.equals("/upload/archive")) {
+            route = handleArchiveUpload(request);
+        } else if (request.path.equals(UploadSessions.PATH) || request.path.startsWith(UploadSessions.PATH + "/")) {
+            route = uploadSessions.route(request);
+        } else {
+            route = Route.respond(Response.error(404, "Not Found"));
+        }
+        return route;
+    }
+
+    /** True if the request carries a body that a handler not expecting one would leave unread. */
+    static boolean hasBody(HTTPRequest request) {
+        String contentLength = request.headers.get("content-length");
+        return request.headers.containsKey("transfer-encoding")
+                || (contentLength != null && !contentLength.trim().equals("0"));
+    }
+
+    /**
+     * Records a response that has been sent, or cut off partway, in the metrics
+     * and the access log. request is null when the request couldn't be parsed.
+     */
+    void exchangeFinished(InetAddress client, HTTPRequest request, Response response, long startNanos,
+            long bytesSent, boolean complete) {
+        long duration = System.nanoTime() - startNanos;
+        metrics.responseSent(response.statusCode);
+        if (complete) {
+            metrics.requestDuration.record(duration);
+        } else {
+            metrics.responsesAborted.increment();
+        }
+        if (accessLog != null) {
+            String requestLine = request != null ? request.method + " " + request.path + " " + request.version : null;
+            accessLog.log(client, requestLine, response.statusCode, bytesSent, duration,
+                    complete ? response.logMessage : "aborted");
+        }
+    }
+
+    void addConnectionHeaders(ResponseHead head, boolean keepAlive) {
+        if (keepAlive) {
+            head.header("Connection", "keep-alive")
+                    .header("Keep-Alive", "timeout=" + (keepAliveTimeoutMs / 1000) + ", max=" + maxKeepAliveRequests);
+        } else {
+            head.header("Connection", "close");
+        }
+    }
+
+    Response handleDownloadRequest(HTTPRequest request) throws IOException {
+        if (!"GET".equals(request.method)) {
+            return Response.error(405, "Method Not Allowed");
+        }
+
+        String filename = extractFilename(request.path);
+        if (filename == null) {
+            return Response.error(400, "Bad Request: filename parameter required");
+        }
+        // Only files straight in shared_files are served
+        if (hasPath(filename)) {
+            return Response.error(400, "Bad Request: file names may not contain a path");
+        }
+
+        FileIndex.Entry entry = fileIndex.lookup(filename);
+        if (cluster != null) {
+            Response proxied = cluster.download(request, filename, entry);
+            if (proxied != null)
+                return proxied;
+        }
+        return localDownload(request, filename, entry);
+    }
+
+    /** A download served from shared_files; entry is the file's index entry, null if it isn't there. */
+    Response localDownload(HTTPRequest request, String filename, FileIndex.Entry entry) throws IOException {
+        if (entry == null) {
+            return Response.error(404, "File Not Found");
+        }
+
+        // Ranges always refer to the uncompressed file, so only whole-file responses are compressed
+        String encoding = compression != null && Compression.isCompressible(filename)
+                && !request.headers.containsKey("range") ? Compression.negotiate(request.headers.get("accept-encoding"))
+                : null;
+        Response unchanged = notModifiedResponse(request, entry, encoding);
+        if (unchanged != null)
+            return unchanged;
+        if (encoding != null) {
+            Response compressed = compressedResponse(request, entry, encoding);
+            if (compressed != null)
+                return compressed;
+        }
+
+        if (fileCache != null) {
+            FileCache.Entry cached = fileCache.get(filename);
+            if (cached != null && cached.length == entry.length && cached.lastModified == entry.lastModified) {
+                return fileResponse(request, entry, cached::region, null);
+            }
+        }
+
+        FileChannel source;
+        try {
+            source = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return Response.error(404, "File Not Found");
+        }
+        try {
+            if (source.size() != entry.length) {
+                // Changed since it was indexed and the watcher hasn't caught up yet
+                entry = fileIndex.refresh(filename);
+                if (entry == null) {
+                    source.close();
+                    return Response.error(404, "File Not Found");
+                }
+            }
+            FileCache.Entry loaded = fileCache != null ? fileCache.load(filename, source, entry.lastModified) : null;
+            if (loaded != null) {
+                source.close();
+                return fileResponse(request, entry, loaded::region, null);
+            }
+            if (mappedFiles != null && mappedFiles.shouldMap(entry.length)) {
+                MappedFiles.Mapping mapping = mappedFiles.acquire(entry.file, source, entry.lastModified);
+                Closeable lease = mapping.lease();
+                source.close();
+                try {
+                    return fileResponse(request, entry, mapping::region, lease);
+                } catch (IOException | RuntimeException e) {
+                    lease.close();
+                    throw e;
+                }
+            }
+            BufferPool copyBuffers = zeroCopy ? null : transferBuffers;
+            return fileResponse(request, entry,
+                    (position, count) -> ResponseBody.fileRegion(source, position, count, copyBuffers), source);
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
     }
 
-    private HTTPRequest parseHTTPRequest(BufferedReader in) throws IOException {
-        String requestLine = in.readLine();
-        if (requestLine == null)
+    /**
+     * 304 Not Modified if the request's validators show the client already has the
+     * file as it is now, otherwise null. If-None-Match takes precedence; the
+     * If-Modified-Since date is only looked at without it, to the second.
+     */
+    private Response notModifiedResponse(HTTPRequest request, FileIndex.Entry entry, String encoding) {
+        String ifNoneMatch = request.headers.get("if-none-match");
+        String ifModifiedSince = request.headers.get("if-modified-since");
+        if (ifNoneMatch != null) {
+            if (!entry.matches(ifNoneMatch))
+                return null;
+        } else if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli();
+                if (entry.lastModified / 1000 > since / 1000)
+                    return null;
+            } catch (DateTimeParseException e) {
+                return null; // An unparseable date is ignored, as if it weren't there
+            }
+        } else {
             return null;
+        }
+
+        notModified.increment();
+        boolean encoded = encoding != null && compression.worthCompressing(entry.length);
+        ResponseHead head = new ResponseHead(304, "Not Modified")
+                .header("ETag", encoded ? variantTag(entry.etag, encoding) : entry.etag)
+                .header("Last-Modified", httpDate(entry.lastModified));
+        if (compression != null && Compression.isCompressible(entry.name)) {
+            head.header("Vary", "Accept-Encoding");
+        }
+        return new Response(304, head, ResponseBody.EMPTY, null, "Not modified: " + entry.name);
+    }
 
-        String[] parts = requestLine.split(" ");
-        if (parts.length != 3)
+    /**
+     * A whole shared file in a content coding: its stored compressed copy if that
+     * is current, otherwise compressed while it is sent with chunked framing.
+     * Returns null to fall back to the uncompressed response, e.g. for a tiny file
+     * or an HTTP/1.0 client that can't take a chunked body.
+     */
+    private Response compressedResponse(HTTPRequest request, FileIndex.Entry entry, String encoding)
+            throws IOException {
+        String filename = entry.name;
+        long length = entry.length;
+        if (!compression.worthCompressing(length))
             return null;
 
-        HTTPRequest request = new HTTPRequest();
-        request.method = parts[0];
-        request.path = parts[1];
-        request.version = parts[2];
-        request.headers = new HashMap<>();
-
-        String line;
-        while ((line = in.readLine()) != null && !line.isEmpty()) {
-            String[] headerParts = line.split(": ", 2);
-            if (headerParts.length == 2) {
-                request.headers.put(headerParts[0].toLowerCase(), headerParts[1]);
+        ResponseHead head = new ResponseHead(200, "OK")
+                .header("Content-Type", entry.mimeType)
+                .header("Content-Disposition", "attachment; filename=\"" + filename + "\"")
+                .header("Content-Encoding", encoding)
+                .header("Vary", "Accept-Encoding")
+                .header("ETag", variantTag(entry.etag, encoding))
+                .header("Last-Modified", httpDate(entry.lastModified));
+
+        File sidecar = compression.sidecar(filename, entry.lastModified, encoding);
+        if (sidecar != null) {
+            FileChannel source;
+            try {
+                source = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                return null; // Retired between the check and the open
             }
+            long compressedLength = source.size();
+            head.header("Content-Length", compressedLength);
+            return new Response(200, head,
+                    ResponseBody.fileRegion(source, 0, compressedLength, zeroCopy ? null : transferBuffers), source,
+                    "Sent file: " + filename + " (" + encoding + ", " + compressedLength + " of " + length + " bytes)");
         }
 
-        return request;
+        if ("HTTP/1.0".equals(request.version))
+            return null;
+        FileChannel source;
+        try {
+            source = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        compression.compressedOnTheFly(entry.file, filename, encoding);
+        head.header("Transfer-Encoding", "chunked");
+        return new Response(200, head, ResponseBody.compressed(source, 0, length, encoding, compression.level, true),
+                source, "Sent file: " + filename + " (" + encoding + " on the fly, " + length + " bytes before compression)");
     }
 
-    private void handleDownloadRequest(HTTPRequest request, OutputStream out) throws IOException {
+    /**
+     * Several shared files as one tar or zip, named with files=a,b,... or matched
+     * by glob=pattern. Every named file must exist; the archive is streamed from
+     * the files as they are, see Archives.
+     */
+    private Response handleArchiveRequest(HTTPRequest request) throws HTTPRequestParser.HTTPParseException {
         if (!"GET".equals(request.method)) {
-            sendErrorResponse(out, 405, "Method Not Allowed");
-            return;
+            return Response.error(405, "Method Not Allowed");
+        }
+        String format = queryParameter(request.path, "format");
+        if (format == null) {
+            format = "tar";
+        }
+        if (!format.equals("tar") && !format.equals("zip")) {
+            return Response.error(400, "Bad Request: format must be tar or zip");
+        }
+        String files = queryParameter(request.path, "files");
+        String glob = queryParameter(request.path, "glob");
+        if (files == null && glob == null) {
+            return Response.error(400, "Bad Request: files or glob parameter required");
         }
 
-        String filename = extractFilename(request.path);
-        if (filename == null) {
-            sendErrorResponse(out, 400, "Bad Request: filename parameter required");
-            return;
+        List<FileIndex.Entry> entries = new ArrayList<>();
+        if (files != null) {
+            Set<String> seen = new HashSet<>();
+            for (String name : files.split(",")) {
+                name = name.trim();
+                if (name.isEmpty() || !seen.add(name))
+                    continue;
+                // Only files straight in shared_files, as glob= serves; the names also go into the archive as they are
+                if (hasPath(name)) {
+                    return Response.error(400, "Bad Request: archive file names may not contain a path: " + name);
+                }
+                FileIndex.Entry entry = fileIndex.lookup(name);
+                if (entry == null) {
+                    return Response.error(404, "File Not Found: " + name);
+                }
+                entries.add(entry);
+            }
+        }
+        if (glob != null) {
+            PathMatcher matcher;
+            try {
+                matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            } catch (IllegalArgumentException e) {
+                return Response.error(400, "Bad Request: invalid glob");
+            }
+            for (FileIndex.Entry entry : fileIndex.list()) {
+                if (matcher.matches(Paths.get(entry.name)) && !entries.contains(entry)) {
+                    entries.add(entry);
+                }
+            }
+        }
+        if (entries.isEmpty()) {
+            return Response.error(404, "No files match");
         }
 
-        File fileToSend = new File(SHARED_FOLDER, filename);
+        boolean zip = format.equals("zip");
+        if (zip && "HTTP/1.0".equals(request.version)) {
+            return Response.error(400, "Bad Request: zip archives are sent chunked, which needs HTTP/1.1; use tar");
+        }
+        ResponseHead head = new ResponseHead(200, "OK")
+                .header("Content-Type", zip ? "application/zip" : "application/x-tar")
+                .header("Content-Disposition", "attachment; filename=\"shared_files." + format + "\"")
+                .header("X-Archive-Files", entries.size());
+        ResponseBody body;
+        if (zip) {
+            body = Archives.zip(entries, compression != null ? compression.level : 1);
+            head.header("Transfer-Encoding", "chunked");
+        } else {
+            body = Archives.tar(entries, zeroCopy ? null : transferBuffers);
+            head.header("Content-Length", body.length());
+        }
+        return new Response(200, head, body, null, "Sent archive: " + entries.size() + " files (" + format + ")");
+    }
 
-        if (!fileToSend.exists() || !fileToSend.isFile()) {
-            sendErrorResponse(out, 404, "File Not Found");
-            System.out.println("File not found: " + filename);
-            return;
+    /** The ETag of a compressed variant, which must differ from the uncompressed file's. */
+    static String variantTag(String etag, String encoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /** Where the bytes of a shared file come from: the file itself or its cached copy. */
+    private interface FileRegions {
+        ResponseBody region(long position, long count);
+    }
+
+    /**
+     * Builds the response for a shared file: the whole file, a single range (206),
+     * several ranges as multipart/byteranges (206), or 416 if no range fits. The
+     * Range header is ignored when an If-Range validator no longer matches.
+     * resource, if given, is closed once the response has been sent.
+     */
+    private Response fileResponse(HTTPRequest request, FileIndex.Entry entry, FileRegions regions, Closeable resource)
+            throws IOException {
+        String filename = entry.name;
+        long length = entry.length;
+        String etag = entry.etag;
+        String lastModified = httpDate(entry.lastModified);
+
+        List<ByteRange> ranges = null;
+        String rangeHeader = request.headers.get("range");
+        String ifRange = request.headers.get("if-range");
+        if (rangeHeader != null && (ifRange == null || ifRange.equals(etag) || ifRange.equals(lastModified))) {
+            ranges = ByteRange.parse(rangeHeader, length);
+        }
+
+        if (ranges != null && ranges.isEmpty()) {
+            if (resource != null) {
+                resource.close();
+            }
+            Response response = Response.error(416, "Range Not Satisfiable");
+            response.head.header("Content-Range", "bytes */" + length);
+            return response;
         }
 
-        sendFileResponse(out, fileToSend, filename);
-        System.out.println("Sent file: " + filename + " (" + fileToSend.length() + " bytes)");
+        boolean varies = compression != null && Compression.isCompressible(filename);
+        if (ranges == null) {
+            ResponseHead head = new ResponseHead(200, "OK")
+                    .header("Content-Type", entry.mimeType)
+                    .header("Content-Disposition", "attachment; filename=\"" + filename + "\"")
+                    .header("Content-Length", length)
+                    .header("Accept-Ranges", "bytes")
+                    .header("ETag", etag)
+                    .header("Last-Modified", lastModified);
+            if (varies) {
+                head.header("Vary", "Accept-Encoding");
+            }
+            return new Response(200, head, regions.region(0, length), resource,
+                    "Sent file: " + filename + " (" + length + " bytes)");
+        }
+
+        ResponseHead head = new ResponseHead(206, "Partial Content")
+                .header("Content-Disposition", "attachment; filename=\"" + filename + "\"")
+                .header("Accept-Ranges", "bytes")
+                .header("ETag", etag)
+                .header("Last-Modified", lastModified);
+
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            head.header("Content-Type", entry.mimeType)
+                    .header("Content-Range", "bytes " + range.start + "-" + range.end + "/" + length)
+                    .header("Content-Length", range.length());
+            return new Response(206, head, regions.region(range.start, range.length()),
+                    resource, "Sent bytes " + range.start + "-" + range.end + " of " + filename);
+        }
+
+        // Every part gets its own small header; the file data between them is still sent zero-copy
+        String boundary = "httpfs-" + Long.toHexString(System.nanoTime());
+        List<ResponseBody> parts = new ArrayList<>(ranges.size() * 2 + 1);
+        long sent = 0;
+        for (ByteRange range : ranges) {
+            String partHead = "\r\n--" + boundary + "\r\n" +
+                    "Content-Type: " + entry.mimeType + "\r\n" +
+                    "Content-Range: bytes " + range.start + "-" + range.end + "/" + length + "\r\n\r\n";
+            parts.add(ResponseBody.bytes(partHead.getBytes(StandardCharsets.ISO_8859_1)));
+            parts.add(regions.region(range.start, range.length()));
+            sent += range.length();
+        }
+        parts.add(ResponseBody.bytes(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+        ResponseBody body = ResponseBody.sequence(parts);
+
+        head.header("Content-Type", "multipart/byteranges; boundary=" + boundary)
+                .header("Content-Length", body.length());
+        return new Response(206, head, body, resource,
+                "Sent " + ranges.size() + " ranges of " + filename + " (" + sent + " bytes)");
+    }
+
+    /**
+     * Everything the server counts, in the Prometheus text format: the request
+     * path's counters and histograms, then the executor, index, cache,
+     * compression, mmap and upload figures. Parts that are switched off are left out.
+     */
+    private Response metricsResponse() {
+        Metrics.Exposition out = new Metrics.Exposition();
+        metrics.writeTo(out);
+        if (accessLog != null) {
+            out.counter("httpfs_access_log_dropped_total", "Access log lines dropped because output fell behind",
+                    accessLog.dropped.sum());
+        }
+        if (tls != null) {
+            out.counter("httpfs_tls_handshakes_total", "TLS handshakes completed", tls.handshakes.sum())
+                    .counter("httpfs_tls_handshakes_resumed_total", "TLS handshakes that resumed an earlier session",
+                            tls.handshakesResumed.sum())
+                    .counter("httpfs_tls_handshake_failures_total", "TLS handshakes that failed",
+                            tls.handshakeFailures.sum())
+                    .type("httpfs_tls_handshake_seconds_total", "Time spent completing TLS handshakes", "counter")
+                    .sample("httpfs_tls_handshake_seconds_total", tls.handshakeNanos.sum() / 1e9);
+        }
+        if (cluster != null) {
+            out.counter("httpfs_cluster_peer_fetches_total", "Downloads fetched from the owning node",
+                    cluster.peerFetches.sum())
+                    .counter("httpfs_cluster_peer_revalidations_total",
+                            "Local copies the owning node confirmed were current", cluster.peerRevalidations.sum())
+                    .counter("httpfs_cluster_peer_failures_total", "Requests to another node that failed",
+                            cluster.peerFailures.sum())
+                    .counter("httpfs_cluster_peer_rejections_total",
+                            "Requests answered 503 because every peer worker was busy", cluster.peerRejections.sum())
+                    .gauge("httpfs_cluster_peer_queued", "Requests waiting for a peer worker",
+                            cluster.peerQueued())
+                    .counter("httpfs_cluster_uploads_forwarded_total", "Uploads passed on to the owning node",
+                            cluster.uploadsForwarded.sum())
+                    .counter("httpfs_cluster_replications_total", "Stored files copied to a replica",
+                            cluster.replications.sum())
+                    .counter("httpfs_cluster_replication_failures_total",
+                            "Replica copies given up on after every retry", cluster.replicationFailures.sum());
+        }
+        if (threadPool instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) threadPool;
+            out.gauge("httpfs_executor_queued_tasks", "Connections waiting for a worker thread", pool.getQueue().size());
+            out.gauge("httpfs_executor_active_threads", "Worker threads serving a connection", pool.getActiveCount());
+        } else if (threadPool instanceof ForkJoinPool) {
+            ForkJoinPool pool = (ForkJoinPool) threadPool;
+            out.gauge("httpfs_executor_queued_tasks", "Connections waiting for a worker thread",
+                    pool.getQueuedSubmissionCount());
+            out.gauge("httpfs_executor_active_threads", "Worker threads serving a connection",
+                    pool.getActiveThreadCount());
+        }
+
+        out.gauge("httpfs_index_files", "Shared files in the index", fileIndex.size())
+                .gauge("httpfs_index_bytes", "Total size of the shared files", fileIndex.totalBytes())
+                .gauge("httpfs_upload_index_files", "Uploaded files in the index", uploadIndex.size())
+                .counter("httpfs_download_not_modified_total", "Downloads answered with 304 Not Modified",
+                        notModified.sum());
+        if (fileCache != null) {
+            out.gauge("httpfs_cache_capacity_bytes", "File cache capacity", fileCache.capacity())
+                    .gauge("httpfs_cache_size_bytes", "Bytes held in the file cache", fileCache.sizeInBytes())
+                    .gauge("httpfs_cache_entries", "Files held in the file cache", fileCache.entryCount())
+                    .counter("httpfs_cache_hits_total", "Downloads served from the file cache", fileCache.hits.sum())
+                    .counter("httpfs_cache_misses_total", "Cacheable downloads not in the file cache",
+                            fileCache.misses.sum())
+                    .counter("httpfs_cache_evictions_total", "Files evicted from the file cache",
+                            fileCache.evictions.sum())
+                    .counter("httpfs_cache_rejections_total", "Files the admission policy kept out of the cache",
+                            fileCache.rejections.sum())
+                    .counter("httpfs_cache_invalidations_total", "Cached files dropped because they changed",
+                            fileCache.invalidations.sum());
+        }
+        if (compression != null) {
+            out.counter("httpfs_compression_on_the_fly_total", "Downloads compressed while being sent",
+                    compression.onTheFly.sum())
+                    .counter("httpfs_compression_sidecar_hits_total", "Downloads sent from a stored compressed copy",
+                            compression.sidecarHits.sum())
+                    .counter("httpfs_compression_sidecars_written_total", "Compressed copies written",
+                            compression.sidecarsWritten.sum())
+                    .counter("httpfs_compression_sidecars_stale_total", "Compressed copies deleted as out of date",
+                            compression.sidecarsStale.sum());
+        }
+        if (mappedFiles != null) {
+            out.gauge("httpfs_mmap_threshold_bytes", "Smallest file that is memory-mapped", mappedFiles.threshold())
+                    .gauge("httpfs_mmap_files", "Files currently mapped", mappedFiles.mappedFileCount())
+                    .gauge("httpfs_mmap_bytes", "Bytes currently mapped", mappedFiles.mappedBytes())
+                    .gauge("httpfs_mmap_active_downloads", "Downloads using a mapping",
+                            mappedFiles.activeReferences());
+        }
+        out.counter("httpfs_uploads_stored_total", "Uploads stored as new content", uploadStore.stored.sum())
+                .counter("httpfs_uploads_deduplicated_total", "Uploads whose content was already stored",
+                        uploadStore.deduplicated.sum())
+                .counter("httpfs_uploads_deduplicated_bytes_total", "Bytes not stored again thanks to deduplication",
+                        uploadStore.bytesDeduplicated.sum())
+                .counter("httpfs_uploads_digest_mismatches_total", "Uploads rejected because a digest didn't match",
+                        uploadStore.digestMismatches.sum())
+                .counter("httpfs_upload_write_stalls_total", "Times an upload waited for the disk before reading more",
+                        uploadStore.writer.writeStalls.sum())
+                .counter("httpfs_upload_syncs_total", "Uploads fsynced before being stored",
+                        uploadStore.writer.syncs.sum())
+                .counter("httpfs_upload_sync_groups_total", "Groups of uploads fsynced together with --upload-sync=group",
+                        uploadStore.writer.syncGroups.sum());
+
+        byte[] text = out.toString().getBytes(StandardCharsets.UTF_8);
+        ResponseHead head = new ResponseHead(200, "OK")
+                .header("Content-Type", Metrics.Exposition.CONTENT_TYPE)
+                .header("Content-Length", text.length);
+        return new Response(200, head, ResponseBody.bytes(text), null, null);
+    }
+
+    /** A validator that changes whenever the file's size or modification time does. */
+    static String entityTag(long length, long lastModifiedMillis) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModifiedMillis) + "\"";
+    }
+
+    static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC));
     }
 
-    private void handleUploadRequest(HTTPRequest request, InputStream clientIn, OutputStream out) throws IOException {
+    private Route handleUploadRequest(HTTPRequest request) throws IOException {
         if (!"POST".equals(request.method)) {
-            sendErrorResponse(out, 405, "Method Not Allowed");
-            return;
+            return Route.respond(Response.error(405, "Method Not Allowed"));
         }
 
-        String contentLengthStr = request.headers.get("content-length");
-        if (contentLengthStr == null) {
-            sendErrorResponse(out, 400, "Bad Request: Content-Length header required");
-            return;
+        BodyDecoder decoder;
+        try {
+            decoder = BodyDecoder.forRequest(request);
+        } catch (HTTPRequestParser.HTTPParseException e) {
+            // Without usable framing the body can't be skipped, so the connection can't be reused
+            request.keepAlive = false;
+            return Route.respond(Response.error(e.statusCode, e.getMessage()));
         }
 
-        long contentLength;
+        Map<String, byte[]> expectedDigests;
         try {
-            contentLength = Long.parseLong(contentLengthStr);
-        } catch (NumberFormatException e) {
-            sendErrorResponse(out, 400, "Bad Request: Invalid Content-Length");
-            return;
+            expectedDigests = UploadStore.expectedDigests(request.headers);
+        } catch (HTTPRequestParser.HTTPParseException e) {
+            return Route.respond(Response.error(e.statusCode, e.getMessage()));
         }
 
-        // Create filename using upload_<timestamp> format as specified
-        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        String filename = "upload_" + timestamp;
+        String filename = extractOriginalFilename(request.headers);
+        if (cluster != null) {
+            Route forwarded = cluster.upload(request, filename, decoder);
+            if (forwarded != null)
+                return forwarded;
+        }
+        return Route.receive(decoder, uploadHandler(request, filename, expectedDigests));
+    }
+
+    /** Stores an upload on this node, telling the cluster, if any, once it is stored. */
+    BodyHandler uploadHandler(HTTPRequest request, String filename, Map<String, byte[]> expectedDigests)
+            throws IOException {
+        Function<UploadStore.Result, Response> onStored = cluster != null
+                ? result -> cluster.stored(request, filename, result) : null;
+        return new FileUploadHandler(uploadStore.begin(filename, expectedDigests), onStored);
+    }
+
+    private Route handleArchiveUpload(HTTPRequest request) throws IOException {
+        if (!"POST".equals(request.method)) {
+            return Route.respond(Response.error(405, "Method Not Allowed"));
+        }
+        BodyDecoder decoder;
+        ArchiveUpload handler;
+        try {
+            decoder = BodyDecoder.forRequest(request);
+            handler = ArchiveUpload.forRequest(request.headers, uploadStore);
+        } catch (HTTPRequestParser.HTTPParseException e) {
+            return Route.respond(Response.error(e.statusCode, e.getMessage()));
+        }
+        return Route.receive(decoder, handler);
+    }
+
+    /**
+     * Streams an upload body into the upload store, which hashes and verifies it.
+     * onStored, if set, hears about the stored file before the client does, and
+     * may return a response to send instead of the usual 200.
+     */
+    private static final class FileUploadHandler implements BodyHandler {
+        private final UploadStore.Upload upload;
+        private final Function<UploadStore.Result, Response> onStored;
+
+        FileUploadHandler(UploadStore.Upload upload, Function<UploadStore.Result, Response> onStored) {
+            this.upload = upload;
+            this.onStored = onStored;
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            upload.write(data);
+        }
+
+        @Override
+        public CompletableFuture<Void> ready() throws IOException {
+            return upload.ready();
+        }
+
+        @Override
+        public Response finish(boolean complete) {
+            // A body cut short is kept as far as it got, as uploads always have been
+            return Response.deferred(upload.commit().handle((result, failure) -> {
+                if (failure != null) {
+                    Throwable cause = Response.cause(failure);
+                    if (cause instanceof HTTPRequestParser.HTTPParseException) {
+                        return Response.error(((HTTPRequestParser.HTTPParseException) cause).statusCode,
+                                cause.getMessage()).withLogMessage("Upload rejected: " + cause.getMessage());
+                    }
+                    throw new CompletionException(cause);
+                }
+                Response instead = onStored != null ? onStored.apply(result) : null;
+                return instead != null ? instead : uploadedResponse(result);
+            }));
+        }
 
-        // Try to preserve original extension if available
-        String originalFilename = extractOriginalFilename(request.headers);
-        if (originalFilename != null && originalFilename.contains(".")) {
-            String extension = originalFilename.substring(originalFilename.lastIndexOf("."));
-            filename += extension;
+        @Override
+        public void abort() {
+            upload.abort();
         }
+    }
 
-        File uploadFile = new File(UPLOAD_FOLDER, filename);
+    /** The 200 for a stored upload, with its SHA-256 in a Digest header. */
+    static Response uploadedResponse(UploadStore.Result result) {
+        String filename = result.file.getName();
+        String details = result.length + " bytes" + (result.duplicate ? ", same content as an earlier upload" : "");
+        Response response = Response.text(200, "OK", "File uploaded successfully: " + filename + " (" + details + ")");
+        response.head.header("Digest", UploadStore.digestHeader(result.sha256));
+        return response.withLogMessage("Received file: " + filename + " (" + details + ")");
+    }
 
-        long bytesReceived = saveUploadedFile(clientIn, uploadFile, contentLength);
+    /** True if a file name from a request would reach outside the folder it names a file in. */
+    static boolean hasPath(String name) {
+        return name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.equals("..") || name.equals(".");
+    }
 
-        String responseBody = "File uploaded successfully: " + filename + " (" + bytesReceived + " bytes)";
-        sendTextResponse(out, 200, "OK", responseBody);
-        System.out.println("Received file: " + filename + " (" + bytesReceived + " bytes)");
+    String extractFilename(String path) throws HTTPRequestParser.HTTPParseException {
+        return queryParameter(path, "filename");
     }
 
-    private String extractFilename(String path) {
+    /**
+     * The decoded value of a query parameter, or null if the path doesn't have it.
+     * Throws a 400 if the value has a malformed %-escape.
+     */
+    static String queryParameter(String path, String name) throws HTTPRequestParser.HTTPParseException {
         if (!path.contains("?"))
             return null;
 
@@ -193,18 +1042,20 @@ public class HTTPFileServer {
 
         for (String param : params) {
             String[] keyValue = param.split("=", 2);
-            if (keyValue.length == 2 && "filename".equals(keyValue[0])) {
+            if (keyValue.length == 2 && name.equals(keyValue[0])) {
                 try {
                     return URLDecoder.decode(keyValue[1], "UTF-8");
                 } catch (UnsupportedEncodingException e) {
                     return keyValue[1];
+                } catch (IllegalArgumentException e) {
+                    throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: malformed " + name + " parameter");
                 }
             }
         }
         return null;
     }
 
-    private String extractOriginalFilename(Map<String, String> headers) {
+    static String extractOriginalFilename(Map<String, String> headers) {
         String contentDisposition = headers.get("content-disposition");
         if (contentDisposition != null) {
             String[] parts = contentDisposition.split(";");
@@ -228,69 +1079,50 @@ public class HTTPFileServer {
         return null;
     }
 
-    private long saveUploadedFile(InputStream in, File outputFile, long contentLength) throws IOException {
-        long bytesReceived = 0;
-        byte[] buffer = new byte[8192];
-
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            while (bytesReceived < contentLength) {
-                int bytesToRead = (int) Math.min(buffer.length, contentLength - bytesReceived);
-                int bytesRead = in.read(buffer, 0, bytesToRead);
-                if (bytesRead == -1)
-                    break;
-
-                fos.write(buffer, 0, bytesRead);
-                bytesReceived += bytesRead;
-            }
-        }
-        return bytesReceived;
-    }
-
-    private void sendFileResponse(OutputStream out, File file, String filename) throws IOException {
-        PrintWriter writer = new PrintWriter(out);
-
-        writer.println("HTTP/1.1 200 OK");
-        writer.println("Content-Type: application/octet-stream");
-        writer.println("Content-Disposition: attachment; filename=\"" + filename + "\"");
-        writer.println("Content-Length: " + file.length());
-        writer.println();
-        writer.flush();
-
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-            }
-        }
-        out.flush();
-    }
-
-    private void sendTextResponse(OutputStream out, int statusCode, String statusText, String body) throws IOException {
-        PrintWriter writer = new PrintWriter(out);
-
-        writer.println("HTTP/1.1 " + statusCode + " " + statusText);
-        writer.println("Content-Type: text/plain");
-        writer.println("Content-Length: " + body.length());
-        writer.println();
-        writer.print(body);
-        writer.flush();
-    }
-
-    private void sendErrorResponse(OutputStream out, int statusCode, String message) throws IOException {
-        sendTextResponse(out, statusCode, message, message);
-    }
-
     public void stop() throws IOException {
         running = false;
-        if (serverSocket != null) {
-            serverSocket.close();
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        if (tlsServerChannel != null) {
+            tlsServerChannel.close();
+        }
+        if (nioEngine != null) {
+            nioEngine.stop();
+        }
+        if (threadPool != null) {
+            threadPool.shutdown();
+            rescheduler.shutdown();
         }
-        threadPool.shutdown();
     }
 
     public static void main(String[] args) {
-        HTTPFileServer server = new HTTPFileServer();
+        HTTPFileServer server;
+        try {
+            server = new HTTPFileServer(ServerOptions.parse(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java HTTPFileServer [--port=8080] [--mode=blocking|nio] [--io-threads=N]"
+                    + " [--tls-port=N --tls-keystore=file [--tls-keystore-password=pw]]"
+                    + " [--tls-protocols=TLSv1.3,TLSv1.2] [--tls-ciphers=a,b,...]"
+                    + " [--tls-session-cache=N] [--tls-session-timeout=seconds] [--tls-session-tickets=true|false]"
+                    + " [--executor=fixed|work-stealing|virtual] [--threads=N]"
+                    + " [--queue-size=N] [--retry-after=seconds] [--fair-share-quantum=bytes]"
+                    + " [--rate-limit-connection=bytes/s] [--rate-limit-client=bytes/s] [--rate-limit-global=bytes/s]"
+                    + " [--zero-copy=true|false]"
+                    + " [--keep-alive-timeout=ms] [--idle-timeout=ms] [--max-requests=N]"
+                    + " [--max-header-size=bytes]"
+                    + " [--upload-sync=none|complete|group] [--upload-sync-delay=ms]"
+                    + " [--cache-size=bytes] [--cache-max-file=bytes] [--cache-policy=lru|tinylfu]"
+                    + " [--mmap-threshold=bytes] [--index-hash-max=bytes]"
+                    + " [--compression=true|false] [--compression-level=1-9] [--compression-sidecar-level=1-9]"
+                    + " [--compression-min-size=bytes] [--compression-sidecar-after=N]"
+                    + " [--cluster-nodes=host:port,... [--cluster-self=host:port] [--cluster-replicas=N]"
+                    + " [--cluster-virtual-nodes=N] [--cluster-peer-timeout=ms] [--cluster-cache-ttl=seconds]"
+                    + " [--cluster-peer-threads=N] [--cluster-peer-queue=N]]"
+                    + " [--access-log=stdout|off|<file>]");
+            return;
+        }
         try {
             server.start();
         } catch (IOException e) {
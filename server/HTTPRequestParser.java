@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Parses request heads straight from the connection's input bytes. The parser and
+ * the HTTPRequest it fills are reused for every request on a connection, and the
+ * method, version and common header names map to shared constants, so a typical
+ * request costs one String for the path and one per header value.
+ *
+ * The parser never consumes body bytes: parse reports how long the head was and
+ * whatever follows it in the buffer belongs to the body or the next request.
+ */
+class HTTPRequestParser {
+    private static final int MAX_HEADER_COUNT = 100;
+
+    private static final String[] KNOWN_METHODS = {
+            "GET", "POST", "PUT", "HEAD", "DELETE", "OPTIONS"
+    };
+    private static final String[] KNOWN_VERSIONS = {
+            "HTTP/1.1", "HTTP/1.0"
+    };
+    // Lowercase names of the headers the server looks at, shared instead of allocated per request.
+    // A feature that reads a new header adds it here, next to its own.
+    private static final String[] KNOWN_HEADERS = {
+            // Every request, and plain uploads
+            "host", "connection", "content-length", "content-type", "content-disposition",
+            "x-filename", "transfer-encoding", "user-agent", "accept", "expect",
+            // Partial downloads
+            "range", "if-range",
+            // Upload sessions
+            "x-upload-length", "x-part-size",
+            // Compressed downloads
+            "accept-encoding",
+            // Conditional downloads
+            "if-none-match", "if-modified-since",
+            // Verified uploads
+            "digest", "content-digest", "content-md5",
+            // Cluster
+            "x-cluster-role"
+    };
+    private static final byte[][] KNOWN_METHOD_BYTES = toBytes(KNOWN_METHODS);
+    private static final byte[][] KNOWN_VERSION_BYTES = toBytes(KNOWN_VERSIONS);
+    private static final byte[][] KNOWN_HEADER_BYTES = toBytes(KNOWN_HEADERS);
+
+    /** A malformed or oversized head, carrying the status code to answer it with. */
+    static class HTTPParseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int statusCode;
+
+        HTTPParseException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+    }
+
+    private final int maxHeaderSize;
+    private final HTTPFileServer.HTTPRequest request = new HTTPFileServer.HTTPRequest();
+    // How far the previous call got looking for the end of the head, so a head
+    // arriving a few bytes at a time isn't rescanned from the start on every read
+    private int scanned;
+
+    HTTPRequestParser(int maxHeaderSize) {
+        this.maxHeaderSize = maxHeaderSize;
+        request.headers = new HashMap<>();
+    }
+
+    /**
+     * Tries to parse one request head from data[start, end). Returns the number of
+     * bytes the head occupied, or 0 if it is not complete yet; the parsed request is
+     * then available from request(). Throws if the head is malformed or too large.
+     */
+    int parse(byte[] data, int start, int end) throws HTTPParseException {
+        int headEnd = findHeadEnd(data, start, end);
+        if (headEnd < 0) {
+            if (end - start >= maxHeaderSize) {
+                throw new HTTPParseException(431, "Request Header Fields Too Large");
+            }
+            return 0;
+        }
+        if (headEnd - start > maxHeaderSize) {
+            throw new HTTPParseException(431, "Request Header Fields Too Large");
+        }
+        scanned = 0;
+
+        request.method = null;
+        request.path = null;
+        request.version = null;
+        request.headers.clear();
+        request.keepAlive = false;
+
+        int pos = start;
+        // Tolerate blank lines before the request line, as RFC 9112 allows
+        while (pos < headEnd && (data[pos] == '\r' || data[pos] == '\n')) {
+            pos++;
+        }
+        pos = parseRequestLine(data, pos, headEnd);
+
+        int headerCount = 0;
+        while (pos < headEnd) {
+            int lineEnd = indexOf(data, pos, headEnd, (byte) '\n');
+            int contentEnd = lineEnd > pos && data[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            if (contentEnd == pos)
+                break; // The blank line ending the head
+            if (++headerCount > MAX_HEADER_COUNT) {
+                throw new HTTPParseException(431, "Request Header Fields Too Large");
+            }
+            parseHeaderLine(data, pos, contentEnd);
+            pos = lineEnd + 1;
+        }
+        return headEnd - start;
+    }
+
+    HTTPFileServer.HTTPRequest request() {
+        return request;
+    }
+
+    /** Forgets any partial scan, e.g. when the connection's buffer has been reset. */
+    void reset() {
+        scanned = 0;
+    }
+
+    private int parseRequestLine(byte[] data, int pos, int headEnd) throws HTTPParseException {
+        int lineEnd = indexOf(data, pos, headEnd, (byte) '\n');
+        int contentEnd = lineEnd > pos && data[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+
+        int firstSpace = indexOf(data, pos, contentEnd, (byte) ' ');
+        int secondSpace = firstSpace < contentEnd ? indexOf(data, firstSpace + 1, contentEnd, (byte) ' ') : contentEnd;
+        if (firstSpace >= contentEnd || secondSpace >= contentEnd || firstSpace == pos
+                || secondSpace == firstSpace + 1 || indexOf(data, secondSpace + 1, contentEnd, (byte) ' ') != contentEnd) {
+            throw new HTTPParseException(400, "Bad Request");
+        }
+
+        request.method = lookup(data, pos, firstSpace, KNOWN_METHOD_BYTES, KNOWN_METHODS, false);
+        if (request.method == null) {
+            request.method = new String(data, pos, firstSpace - pos, StandardCharsets.ISO_8859_1);
+        }
+        request.path = new String(data, firstSpace + 1, secondSpace - firstSpace - 1, StandardCharsets.ISO_8859_1);
+        request.version = lookup(data, secondSpace + 1, contentEnd, KNOWN_VERSION_BYTES, KNOWN_VERSIONS, false);
+        if (request.version == null) {
+            request.version = new String(data, secondSpace + 1, contentEnd - secondSpace - 1,
+                    StandardCharsets.ISO_8859_1);
+        }
+        return lineEnd + 1;
+    }
+
+    private void parseHeaderLine(byte[] data, int pos, int end) {
+        int colon = indexOf(data, pos, end, (byte) ':');
+        if (colon == end || colon == pos)
+            return; // Not a header; ignored, as before
+
+        int nameEnd = colon;
+        while (nameEnd > pos && isWhitespace(data[nameEnd - 1])) {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(data[valueStart])) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(data[valueEnd - 1])) {
+            valueEnd--;
+        }
+
+        String name = lookup(data, pos, nameEnd, KNOWN_HEADER_BYTES, KNOWN_HEADERS, true);
+        if (name == null) {
+            name = lowercase(data, pos, nameEnd);
+        }
+        request.headers.put(name, new String(data, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1));
+    }
+
+    /** Returns the offset just past the blank line ending the head, or -1 if it hasn't arrived. */
+    private int findHeadEnd(byte[] data, int start, int end) {
+        int i = Math.max(start, start + scanned - 3);
+        // Leading blank lines are skipped rather than mistaken for the end of an empty head
+        if (i == start) {
+            while (i < end && (data[i] == '\r' || data[i] == '\n')) {
+                i++;
+            }
+            if (i == end)
+                return -1;
+        }
+        for (; i < end; i++) {
+            if (data[i] != '\n')
+                continue;
+            if (i + 1 < end && data[i + 1] == '\n')
+                return i + 2;
+            if (i + 2 < end && data[i + 1] == '\r' && data[i + 2] == '\n')
+                return i + 3;
+        }
+        scanned = end - start;
+        return -1;
+    }
+
+    private static String lookup(byte[] data, int start, int end, byte[][] candidates, String[] values,
+            boolean ignoreCase) {
+        int length = end - start;
+        for (int c = 0; c < candidates.length; c++) {
+            byte[] candidate = candidates[c];
+            if (candidate.length != length)
+                continue;
+            int i = 0;
+            while (i < length) {
+                byte b = data[start + i];
+                if (ignoreCase && b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != candidate[i])
+                    break;
+                i++;
+            }
+            if (i == length)
+                return values[c];
+        }
+        return null;
+    }
+
+    private static String lowercase(byte[] data, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            int b = data[i] & 0xff;
+            chars[i - start] = (char) (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b);
+        }
+        return new String(chars);
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte target) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == target)
+                return i;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte[][] toBytes(String[] values) {
+        byte[][] bytes = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = values[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,70 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Consistent hashing of file names onto cluster nodes. Each node is placed on a
+ * 64-bit ring at many points (virtual nodes) so files spread evenly and adding
+ * or removing a node only moves the files next to its points. A name's owners
+ * are the distinct nodes met walking clockwise from the name's own point: the
+ * first holds the file, the next ones its replicas.
+ *
+ * A point is the first 8 bytes of the MD5 of "node#i" or of the name. The
+ * client computes the same ring from GET /cluster, so both must hash alike.
+ */
+final class HashRing {
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    private final List<String> nodes;
+
+    HashRing(List<String> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    List<String> nodes() {
+        return nodes;
+    }
+
+    /** Up to count distinct nodes for a name, owner first. */
+    List<String> owners(String name, int count) {
+        List<String> owners = new ArrayList<>(count);
+        if (points.isEmpty())
+            return owners;
+        long point = hash(name);
+        Iterator<String> walk = points.tailMap(point, true).values().iterator();
+        boolean wrapped = false;
+        while (owners.size() < Math.min(count, nodes.size())) {
+            if (!walk.hasNext()) {
+                if (wrapped)
+                    break;
+                walk = points.values().iterator();
+                wrapped = true;
+            }
+            String node = walk.next();
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+        return owners;
+    }
+
+    static long hash(String key) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = md5.digest(key.getBytes(StandardCharsets.UTF_8));
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (digest[i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * GET /list: the files in shared_files or uploads as JSON, a page at a time,
+ * read from their FileIndex rather than the disk.
+ *
+ *   dir=shared|uploads        which folder (shared by default)
+ *   sort=name|size|modified   (name by default)
+ *   order=asc|desc            (asc by default)
+ *   prefix=abc                only names starting with this
+ *   glob=*.txt                only names matching this glob
+ *   limit=N                   files per page, 1000 by default; 0 for all of them
+ *   cursor=...                the "next" value of the previous page
+ *
+ * The answer looks like
+ *   {"dir":"shared","sort":"name","order":"asc","indexed":3,
+ *    "files":[{"name":"a.txt","size":12,"modified":1760652000000,"type":"text/plain","etag":"\"...\""},...],
+ *    "next":"..."}
+ * where modified is in milliseconds since the epoch, indexed counts every file
+ * in the folder whether it matched or not, and next is null on the last page.
+ *
+ * A page starts where the previous one ended in the index's sorted view, so
+ * paging costs the same at the end of a huge folder as at its start. In name
+ * order a prefix, or the literal start of a glob, also picks where to begin
+ * and end. The body is generated as it is sent, a chunk at a time, so even a
+ * listing of everything never sits in memory as a whole.
+ */
+final class Listing {
+    static final String PATH = "/list";
+    private static final int DEFAULT_LIMIT = 1000;
+
+    private Listing() {
+    }
+
+    static Response handle(HTTPFileServer.HTTPRequest request, FileIndex shared, FileIndex uploads)
+            throws HTTPRequestParser.HTTPParseException {
+        if (!"GET".equals(request.method)) {
+            return Response.error(405, "Method Not Allowed");
+        }
+        if ("HTTP/1.0".equals(request.version)) {
+            return Response.error(400, "Bad Request: listings are sent chunked, which needs HTTP/1.1");
+        }
+        String path = request.path;
+
+        String dir = parameter(path, "dir", "shared");
+        FileIndex index;
+        if (dir.equals("shared")) {
+            index = shared;
+        } else if (dir.equals("uploads")) {
+            index = uploads;
+        } else {
+            return Response.error(400, "Bad Request: dir must be shared or uploads");
+        }
+
+        String sort = parameter(path, "sort", "name");
+        FileIndex.Order order;
+        try {
+            order = FileIndex.Order.valueOf(sort.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Response.error(400, "Bad Request: sort must be name, size or modified");
+        }
+        String direction = parameter(path, "order", "asc");
+        if (!direction.equals("asc") && !direction.equals("desc")) {
+            return Response.error(400, "Bad Request: order must be asc or desc");
+        }
+        boolean descending = direction.equals("desc");
+
+        int limit;
+        try {
+            limit = Integer.parseInt(parameter(path, "limit", Integer.toString(DEFAULT_LIMIT)));
+        } catch (NumberFormatException e) {
+            limit = -1;
+        }
+        if (limit < 0) {
+            return Response.error(400, "Bad Request: limit must be a number, 0 for no limit");
+        }
+
+        String prefix = parameter(path, "prefix", "");
+        String glob = HTTPFileServer.queryParameter(path, "glob");
+        PathMatcher matcher = null;
+        if (glob != null) {
+            try {
+                matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            } catch (IllegalArgumentException e) {
+                return Response.error(400, "Bad Request: invalid glob");
+            }
+            // Whatever the glob starts with literally narrows the range just like a prefix
+            String literal = literalPrefix(glob);
+            if (literal.startsWith(prefix)) {
+                prefix = literal;
+            } else if (!prefix.startsWith(literal)) {
+                prefix = null; // The two can't both match anything
+            }
+        }
+
+        FileIndex.Entry position = null;
+        boolean inclusive = false;
+        String cursor = HTTPFileServer.queryParameter(path, "cursor");
+        if (cursor != null) {
+            position = parseCursor(order, cursor);
+            if (position == null) {
+                return Response.error(400, "Bad Request: cursor does not fit sort=" + sort);
+            }
+        } else if (order == FileIndex.Order.NAME && prefix != null && !prefix.isEmpty()) {
+            // Straight to the first name with the prefix, or the last one when going backwards
+            position = FileIndex.Entry.position(descending ? prefix + Character.MAX_VALUE : prefix, 0, 0);
+            inclusive = true;
+        }
+
+        Iterator<FileIndex.Entry> entries = prefix == null ? Collections.emptyIterator()
+                : index.sorted(order, descending, position, inclusive).iterator();
+        String opening = "{\"dir\":" + quote(dir) + ",\"sort\":" + quote(sort.toLowerCase())
+                + ",\"order\":" + quote(direction) + ",\"indexed\":" + index.size() + ",\"files\":[";
+        ListingBody body = new ListingBody(entries, order, prefix, matcher, limit, opening);
+        ResponseHead head = new ResponseHead(200, "OK")
+                .header("Content-Type", "application/json")
+                .header("Cache-Control", "no-cache")
+                .header("Transfer-Encoding", "chunked");
+        return new Response(200, head, body, null, "Sent listing of " + dir);
+    }
+
+    private static String parameter(String path, String name, String fallback)
+            throws HTTPRequestParser.HTTPParseException {
+        String value = HTTPFileServer.queryParameter(path, name);
+        return value == null || value.isEmpty() ? fallback : value;
+    }
+
+    /** The part of a glob before its first special character. */
+    static String literalPrefix(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            if ("*?[{\\".indexOf(glob.charAt(i)) >= 0) {
+                return glob.substring(0, i);
+            }
+        }
+        return glob;
+    }
+
+    /** Where an entry sits in an order, as the page after it asks for it. */
+    static String cursor(FileIndex.Order order, FileIndex.Entry entry) {
+        switch (order) {
+            case SIZE:
+                return entry.length + "/" + entry.name;
+            case MODIFIED:
+                return entry.lastModified + "/" + entry.name;
+            default:
+                return entry.name;
+        }
+    }
+
+    /** The stand-in for a cursor's entry, or null if the cursor came from another order. */
+    private static FileIndex.Entry parseCursor(FileIndex.Order order, String cursor) {
+        if (order == FileIndex.Order.NAME)
+            return FileIndex.Entry.position(cursor, 0, 0);
+        // Names can't contain a slash, so the first one ends the number
+        int slash = cursor.indexOf('/');
+        if (slash < 0)
+            return null;
+        long key;
+        try {
+            key = Long.parseLong(cursor.substring(0, slash));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String name = cursor.substring(slash + 1);
+        return order == FileIndex.Order.SIZE ? FileIndex.Entry.position(name, key, 0)
+                : FileIndex.Entry.position(name, 0, key);
+    }
+
+    static String quote(String value) {
+        StringBuilder out = new StringBuilder(value.length() + 2);
+        appendQuoted(out, value);
+        return out.toString();
+    }
+
+    private static void appendQuoted(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * The JSON, generated a chunk at a time while it is written. Each chunk is
+     * complete before any of it is written, so a non-blocking channel that stalls
+     * resumes with the same chunk.
+     */
+    static final class ListingBody implements ResponseBody {
+        private static final int CHUNK_SIZE = 32 * 1024;
+
+        private final Iterator<FileIndex.Entry> entries;
+        private final FileIndex.Order order;
+        // Matching names all start with this; in name order the first that doesn't ends the listing
+        private final String prefix;
+        private final PathMatcher matcher;
+        private final int limit;
+        private final StringBuilder text = new StringBuilder(CHUNK_SIZE + 1024);
+        private FileIndex.Entry last;
+        private int count;
+        private boolean finished;
+        private ByteBuffer chunk;
+
+        ListingBody(Iterator<FileIndex.Entry> entries, FileIndex.Order order, String prefix, PathMatcher matcher,
+                int limit, String opening) {
+            this.entries = entries;
+            this.order = order;
+            this.prefix = prefix;
+            this.matcher = matcher;
+            this.limit = limit;
+            text.append(opening);
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel target) throws IOException {
+            while (true) {
+                if (chunk != null && chunk.hasRemaining()) {
+                    target.write(chunk);
+                    if (chunk.hasRemaining())
+                        return false;
+                }
+                if (finished && chunk != null)
+                    return true;
+                nextChunk();
+            }
+        }
+
+        private void nextChunk() {
+            while (text.length() < CHUNK_SIZE && !finished) {
+                FileIndex.Entry entry = nextMatch();
+                if (entry == null) {
+                    end(null);
+                } else if (limit > 0 && count == limit) {
+                    // One more match means there is another page, which starts after the last one sent
+                    end(cursor(order, last));
+                } else {
+                    append(entry);
+                }
+            }
+            byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+            text.setLength(0);
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(data.length + 32);
+            if (data.length > 0) {
+                framed.writeBytes((Integer.toHexString(data.length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                framed.writeBytes(data);
+                framed.write('\r');
+                framed.write('\n');
+            }
+            if (finished) {
+                framed.writeBytes("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            chunk = ByteBuffer.wrap(framed.toByteArray());
+        }
+
+        private FileIndex.Entry nextMatch() {
+            while (entries.hasNext()) {
+                FileIndex.Entry entry = entries.next();
+                if (!entry.name.startsWith(prefix)) {
+                    if (order == FileIndex.Order.NAME)
+                        return null;
+                    continue;
+                }
+                if (matcher == null || matcher.matches(Paths.get(entry.name)))
+                    return entry;
+            }
+            return null;
+        }
+
+        private void append(FileIndex.Entry entry) {
+            if (count > 0) {
+                text.append(',');
+            }
+            text.append("\n{\"name\":");
+            appendQuoted(text, entry.name);
+            text.append(",\"size\":").append(entry.length)
+                    .append(",\"modified\":").append(entry.lastModified)
+                    .append(",\"type\":");
+            appendQuoted(text, entry.mimeType);
+            text.append(",\"etag\":");
+            appendQuoted(text, entry.etag);
+            text.append('}');
+            last = entry;
+            count++;
+        }
+
+        private void end(String next) {
+            text.append("\n],\"next\":");
+            if (next == null) {
+                text.append("null");
+            } else {
+                appendQuoted(text, next);
+            }
+            text.append("}\n");
+            finished = true;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Memory-mapped serving for large shared files. Concurrent downloads of the same
+ * file share one mapping, counted by reference: the first download maps the file,
+ * later ones borrow the same mapping, and it is dropped once the last of them has
+ * finished. Responses write slices of the mapping straight to the socket, which
+ * suits range requests and many readers of one big file.
+ *
+ * A file that changes while mapped gets a fresh mapping for new downloads; ones
+ * already running keep the old mapping until they finish. Mappings are released
+ * by the GC once dropped, as Java 17 has no way to unmap one explicitly.
+ */
+class MappedFiles {
+    // FileChannel.map is limited to 2 GB per mapping, so larger files are mapped in pieces
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    private final long threshold;
+    private final Map<Path, Mapping> mappings = new HashMap<>();
+
+    /** One mapping of a file, shared by every download that holds a reference to it. */
+    final class Mapping {
+        final Path path;
+        final long length;
+        final long lastModified;
+        private final MappedByteBuffer[] chunks;
+        private int references;
+
+        Mapping(Path path, FileChannel source, long lastModified) throws IOException {
+            this.path = path;
+            this.length = source.size();
+            this.lastModified = lastModified;
+            this.chunks = new MappedByteBuffer[(int) Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                long offset = i * CHUNK_SIZE;
+                chunks[i] = source.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK_SIZE, length - offset));
+            }
+        }
+
+        /** A body over part of the mapping, split where the range crosses from one chunk to the next. */
+        ResponseBody region(long position, long count) {
+            List<ResponseBody> parts = new ArrayList<>(2);
+            long end = position + count;
+            while (position < end) {
+                int chunk = (int) (position / CHUNK_SIZE);
+                long chunkStart = chunk * CHUNK_SIZE;
+                ByteBuffer view = chunks[chunk].duplicate();
+                view.limit((int) (Math.min(end, chunkStart + view.capacity()) - chunkStart));
+                view.position((int) (position - chunkStart));
+                parts.add(ResponseBody.buffer(view));
+                position = chunkStart + view.limit();
+            }
+            return parts.size() == 1 ? parts.get(0) : ResponseBody.sequence(parts);
+        }
+
+        /** Returns this download's reference; the response calls it once it has been sent. */
+        Closeable lease() {
+            return new Closeable() {
+                private boolean released;
+
+                @Override
+                public void close() {
+                    if (!released) {
+                        released = true;
+                        release(Mapping.this);
+                    }
+                }
+            };
+        }
+    }
+
+    MappedFiles(long threshold) {
+        this.threshold = threshold;
+    }
+
+    /** True if a file of this size should be served from a mapping rather than streamed. */
+    boolean shouldMap(long length) {
+        return length >= threshold;
+    }
+
+    /**
+     * Returns the shared mapping of file, mapping it now if no current one exists,
+     * and takes a reference to it. The caller's channel may be closed afterwards.
+     */
+    synchronized Mapping acquire(File file, FileChannel source, long lastModified) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        Mapping mapping = mappings.get(path);
+        if (mapping == null || mapping.length != source.size() || mapping.lastModified != lastModified) {
+            // A stale mapping stays alive for the downloads still using it
+            mapping = new Mapping(path, source, lastModified);
+            mappings.put(path, mapping);
+        }
+        mapping.references++;
+        return mapping;
+    }
+
+    private synchronized void release(Mapping mapping) {
+        if (--mapping.references == 0 && mappings.get(mapping.path) == mapping) {
+            mappings.remove(mapping.path);
+        }
+    }
+
+    long threshold() {
+        return threshold;
+    }
+
+    synchronized int mappedFileCount() {
+        return mappings.size();
+    }
+
+    synchronized long mappedBytes() {
+        long total = 0;
+        for (Mapping mapping : mappings.values()) {
+            total += mapping.length;
+        }
+        return total;
+    }
+
+    synchronized int activeReferences() {
+        int total = 0;
+        for (Mapping mapping : mappings.values()) {
+            total += mapping.references;
+        }
+        return total;
+    }
+}
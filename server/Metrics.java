@@ -0,0 +1,163 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the request path, kept cheap enough to
+ * update on every request: LongAdders, which threads update without contending,
+ * and histograms that are an array of them. /metrics renders these, together
+ * with the cache, compression, mmap and upload counters, in the Prometheus text
+ * format.
+ */
+class Metrics {
+    final LongAdder connectionsAccepted = new LongAdder();
+    // Incremented when a connection starts being served and decremented when it closes
+    final LongAdder connectionsActive = new LongAdder();
+    final LongAdder connectionErrors = new LongAdder();
+    // Turned away with 503 because too many connections were already waiting for a worker
+    final LongAdder connectionsRejected = new LongAdder();
+    // Times a transfer gave up its worker to connections waiting behind it
+    final LongAdder transfersRequeued = new LongAdder();
+    // Times a transfer had to wait for its bandwidth limit
+    final LongAdder transfersThrottled = new LongAdder();
+    final LongAdder requests = new LongAdder();
+    final LongAdder responsesAborted = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final Histogram timeToFirstByte = new Histogram();
+    final Histogram requestDuration = new Histogram();
+    private final Map<Integer, LongAdder> responsesByStatus = new ConcurrentHashMap<>();
+
+    void responseSent(int statusCode) {
+        responsesByStatus.computeIfAbsent(statusCode, code -> new LongAdder()).increment();
+    }
+
+    /** Writes the request-path metrics. */
+    void writeTo(Exposition out) {
+        out.counter("httpfs_connections_accepted_total", "Connections accepted", connectionsAccepted.sum());
+        out.gauge("httpfs_connections_active", "Connections currently open", connectionsActive.sum());
+        out.counter("httpfs_connection_errors_total", "Connections ended by an I/O error", connectionErrors.sum());
+        out.counter("httpfs_connections_rejected_total", "Connections answered 503 because the queue was full",
+                connectionsRejected.sum());
+        out.counter("httpfs_transfers_requeued_total", "Transfers that gave up their worker to waiting connections",
+                transfersRequeued.sum());
+        out.counter("httpfs_transfers_throttled_total", "Times a transfer waited for its bandwidth limit",
+                transfersThrottled.sum());
+        out.counter("httpfs_requests_total", "Requests received", requests.sum());
+        out.type("httpfs_responses_total", "Responses by status code", "counter");
+        for (Map.Entry<Integer, LongAdder> status : new ConcurrentSkipListMap<>(responsesByStatus).entrySet()) {
+            out.sample("httpfs_responses_total{code=\"" + status.getKey() + "\"}", status.getValue().sum());
+        }
+        out.counter("httpfs_responses_aborted_total", "Responses cut off before their body was sent",
+                responsesAborted.sum());
+        out.counter("httpfs_received_bytes_total", "Bytes read from clients", bytesReceived.sum());
+        out.counter("httpfs_sent_bytes_total", "Bytes written to clients", bytesSent.sum());
+        timeToFirstByte.writeTo(out, "httpfs_time_to_first_byte_seconds",
+                "From a request's head being read to its response head being written");
+        requestDuration.writeTo(out, "httpfs_request_duration_seconds",
+                "From a request's head being read to its response being completely written");
+    }
+
+    /**
+     * Durations in nanoseconds, counted in log-linear buckets as HdrHistogram
+     * does: each power of two from about 1 us to about 69 s is split into four
+     * buckets, so a recorded value is known to within 25%. Recording is an index
+     * computation and two LongAdder increments.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // Values up to 2^MIN_SHIFT ns go in the first bucket; above 2^MAX_SHIFT ns only in +Inf
+        private static final int MIN_SHIFT = 10;
+        private static final int MAX_SHIFT = 36;
+        private static final int BUCKETS = 1 + (MAX_SHIFT - MIN_SHIFT) * SUB_BUCKETS + 1;
+
+        private final LongAdder[] counts = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            counts[index(Math.max(0, nanos))].increment();
+            sum.add(nanos);
+        }
+
+        private static int index(long value) {
+            if (value <= 1L << MIN_SHIFT)
+                return 0;
+            // value is in (2^shift, 2^(shift+1)], split into quarters of 2^shift
+            int shift = 63 - Long.numberOfLeadingZeros(value - 1);
+            if (shift >= MAX_SHIFT)
+                return BUCKETS - 1;
+            long subBucketWidth = 1L << (shift - SUB_BUCKET_BITS);
+            int subBucket = (int) ((value - (1L << shift) - 1) / subBucketWidth);
+            return 1 + (shift - MIN_SHIFT) * SUB_BUCKETS + subBucket;
+        }
+
+        /** The largest value bucket i holds. */
+        private static long upperBound(int i) {
+            if (i == 0)
+                return 1L << MIN_SHIFT;
+            int shift = MIN_SHIFT + (i - 1) / SUB_BUCKETS;
+            int subBucket = (i - 1) % SUB_BUCKETS;
+            return (1L << shift) + (subBucket + 1) * (1L << (shift - SUB_BUCKET_BITS));
+        }
+
+        /** Writes the histogram in seconds, with Prometheus's cumulative buckets. */
+        void writeTo(Exposition out, String name, String help) {
+            out.type(name, help, "histogram");
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                cumulative += counts[i].sum();
+                out.sample(name + "_bucket{le=\"" + upperBound(i) / 1e9 + "\"}", cumulative);
+            }
+            cumulative += counts[BUCKETS - 1].sum();
+            out.sample(name + "_bucket{le=\"+Inf\"}", cumulative);
+            out.sample(name + "_sum", sum.sum() / 1e9);
+            out.sample(name + "_count", cumulative);
+        }
+    }
+
+    /** Builds a Prometheus text-format exposition. */
+    static final class Exposition {
+        static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+        private final StringBuilder text = new StringBuilder(16 * 1024);
+
+        Exposition counter(String name, String help, long value) {
+            type(name, help, "counter");
+            return sample(name, value);
+        }
+
+        Exposition gauge(String name, String help, long value) {
+            type(name, help, "gauge");
+            return sample(name, value);
+        }
+
+        Exposition type(String name, String help, String type) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            return this;
+        }
+
+        Exposition sample(String series, long value) {
+            text.append(series).append(' ').append(value).append('\n');
+            return this;
+        }
+
+        Exposition sample(String series, double value) {
+            text.append(series).append(' ').append(value).append('\n');
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+}
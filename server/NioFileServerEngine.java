@@ -0,0 +1,711 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Non-blocking serving mode. A handful of event-loop threads each own a Selector
+ * and drive every connection through a small state machine (read header, read
+ * request body, write response), so a slow client costs a buffer rather than a
+ * pooled thread. Loop 0 also accepts connections and hands them out round-robin.
+ * A client that stops sending its body or taking its response for longer than
+ * --idle-timeout is dropped, as one idle between requests is after the keep-alive
+ * timeout.
+ *
+ * Connections are persistent: after a response the connection goes back to reading
+ * a header, starting with any pipelined bytes already buffered. Requests are
+ * answered strictly in order because reading pauses while a response is written.
+ *
+ * Each readiness event moves at most --fair-share-quantum bytes before the loop
+ * goes on to the next connection, so a client that drains a large download as
+ * fast as the loop can send it doesn't hold up the rest. A connection over its
+ * bandwidth limit is taken off the selector until the limit allows more.
+ *
+ * With --tls-port set, loop 0 accepts HTTPS connections on that port as well.
+ * Their handshake runs on the event loop as part of reading the first request.
+ * Decrypted request bytes left over from a read don't make the socket readable,
+ * so such connections are run again on the next pass without waiting.
+ *
+ * Nothing that may block runs on a loop. A response that needs slow work is
+ * deferred: the connection leaves the selector until a worker has produced it,
+ * and picks it up on its loop. A body handler that falls behind, such as an
+ * upload waiting for the disk, stops the connection reading until it catches up,
+ * and a response body waiting for data, such as a file another node is sending,
+ * stops it writing until more arrives.
+ */
+class NioFileServerEngine {
+    private static final int ACCEPT_BACKLOG = 4096;
+    private static final int INITIAL_HEADER_BUFFER = 2048;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_SWEEP_INTERVAL_MS = 1000;
+
+    private enum State {
+        READ_HEADER, READ_BODY, AWAIT_RESPONSE, WRITE_RESPONSE
+    }
+
+    private final HTTPFileServer server;
+    private final int port;
+    // 0 for no HTTPS listener
+    private final int tlsPort;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private ServerSocketChannel tlsServerChannel;
+    private volatile boolean running;
+    private int nextLoop = 0;
+
+    NioFileServerEngine(HTTPFileServer server, int port, int tlsPort, int loopCount) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.tlsPort = tlsPort;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /** Binds the listening socket and runs loop 0 on the calling thread until stopped. */
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        if (tlsPort > 0) {
+            tlsServerChannel = ServerSocketChannel.open();
+            tlsServerChannel.configureBlocking(false);
+            tlsServerChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            tlsServerChannel.bind(new InetSocketAddress(tlsPort), ACCEPT_BACKLOG);
+            tlsServerChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        }
+        running = true;
+
+        for (int i = 1; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+        }
+        Thread.currentThread().setName("nio-loop-0");
+        loops[0].run();
+    }
+
+    void stop() throws IOException {
+        running = false;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        if (tlsServerChannel != null) {
+            tlsServerChannel.close();
+        }
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    private final class EventLoop implements Runnable, Executor {
+        private final int id;
+        private final Selector selector;
+        private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        // Work handed back by other threads, such as a deferred response that is ready
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Only ever touched by this loop's thread, so one buffer serves all its uploads
+        private final ByteBuffer ioBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        // Rate-limited connections, by when they may go on
+        private final PriorityQueue<Pause> pauses = new PriorityQueue<>();
+        // HTTPS connections holding decrypted request bytes, to be run again without waiting for the socket
+        private final Queue<Connection> buffered = new ArrayDeque<>();
+
+        private long lastSweep = System.currentTimeMillis();
+
+        EventLoop(int id) throws IOException {
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        void assign(Connection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        /** Runs task on this loop's thread. */
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    if (buffered.isEmpty()) {
+                        selector.select(selectTimeout());
+                    } else {
+                        selector.selectNow();
+                    }
+                    registerPending();
+                    resumePaused();
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid())
+                            continue;
+
+                        if (key.isAcceptable()) {
+                            acceptConnections((ServerSocketChannel) key.channel());
+                            continue;
+                        }
+
+                        handle((Connection) key.attachment(), key.isReadable(), key.isWritable());
+                    }
+                    for (int i = buffered.size(); i > 0; i--) {
+                        Connection connection = buffered.poll();
+                        connection.inputQueued = false;
+                        handle(connection, true, false);
+                    }
+                    closeIdleConnections();
+                }
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    System.err.println("Event loop " + id + " failed: " + e);
+                }
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void handle(Connection connection, boolean readable, boolean writable) {
+            connection.lastActivity = System.currentTimeMillis();
+            connection.output.newTurn(server.fairShareQuantum);
+            try {
+                if (readable) {
+                    connection.onReadable();
+                } else if (writable) {
+                    connection.onWritable();
+                }
+            } catch (IOException | RuntimeException e) {
+                // A bug or bad input in one request costs that connection, never the loop
+                connectionFailed(connection, e);
+            }
+            queueIfBuffered(connection);
+        }
+
+        private void connectionFailed(Connection connection, Exception e) {
+            server.metrics.connectionErrors.increment();
+            if (e instanceof RuntimeException) {
+                System.err.println("Error handling client: " + e);
+                e.printStackTrace();
+            } else {
+                System.err.println("Error handling client: " + e.getMessage());
+            }
+            connection.close();
+        }
+
+        private void runTasks() {
+            for (int i = tasks.size(); i > 0; i--) {
+                try {
+                    tasks.poll().run();
+                } catch (RuntimeException e) {
+                    System.err.println("Event loop " + id + " task failed: " + e);
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void queueIfBuffered(Connection connection) {
+            if (!connection.inputQueued && connection.hasBufferedInput()) {
+                connection.inputQueued = true;
+                buffered.add(connection);
+            }
+        }
+
+        /** Waits no longer than until the next paused connection may go on. */
+        private long selectTimeout() {
+            Pause next = pauses.peek();
+            if (next == null)
+                return IDLE_SWEEP_INTERVAL_MS;
+            long millis = TimeUnit.NANOSECONDS.toMillis(next.resumeAt - System.nanoTime());
+            return Math.max(1, Math.min(millis, IDLE_SWEEP_INTERVAL_MS));
+        }
+
+        /** Takes a rate-limited connection off the selector until it may go on with ops. */
+        void pause(Connection connection, int ops, long nanos) {
+            server.metrics.transfersThrottled.increment();
+            connection.key.interestOps(0);
+            pauses.add(new Pause(connection, ops, System.nanoTime() + nanos));
+        }
+
+        private void resumePaused() {
+            long now = System.nanoTime();
+            while (!pauses.isEmpty() && pauses.peek().resumeAt - now <= 0) {
+                Pause pause = pauses.poll();
+                if (!pause.connection.closed) {
+                    pause.connection.lastActivity = System.currentTimeMillis();
+                    pause.connection.key.interestOps(pause.ops);
+                    queueIfBuffered(pause.connection);
+                }
+            }
+        }
+
+        private void acceptConnections(ServerSocketChannel listener) throws IOException {
+            TlsContext tls = listener == tlsServerChannel ? server.tls : null;
+            SocketChannel channel;
+            while ((channel = listener.accept()) != null) {
+                server.metrics.connectionsAccepted.increment();
+                loops[nextLoop].assign(new Connection(loops[nextLoop], channel, tls));
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        }
+
+        private void registerPending() {
+            Connection connection;
+            while ((connection = pending.poll()) != null) {
+                try {
+                    connection.channel.configureBlocking(false);
+                    connection.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    server.metrics.connectionsActive.increment();
+                } catch (IOException e) {
+                    System.err.println("Error registering client: " + e.getMessage());
+                    closeQuietly(connection.output);
+                }
+            }
+        }
+
+        /**
+         * Closes connections that have sat between requests for longer than the
+         * keep-alive timeout, and those whose client has stopped sending the body or
+         * taking the response for longer than the idle timeout. A connection waiting
+         * on the server instead, off the selector, is left alone.
+         */
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < IDLE_SWEEP_INTERVAL_MS)
+                return;
+            lastSweep = now;
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    Connection connection = (Connection) key.attachment();
+                    long timeout;
+                    if (connection.state == State.READ_HEADER) {
+                        timeout = server.keepAliveTimeoutMs;
+                    } else if (connection.state != State.AWAIT_RESPONSE && key.isValid() && key.interestOps() != 0) {
+                        timeout = server.idleTimeoutMs;
+                    } else {
+                        continue;
+                    }
+                    if (timeout > 0 && now - connection.lastActivity > timeout) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** A connection waiting out its bandwidth limit, and what to watch for once it may go on. */
+    private static final class Pause implements Comparable<Pause> {
+        final Connection connection;
+        final int ops;
+        final long resumeAt;
+
+        Pause(Connection connection, int ops, long resumeAt) {
+            this.connection = connection;
+            this.ops = ops;
+            this.resumeAt = resumeAt;
+        }
+
+        @Override
+        public int compareTo(Pause other) {
+            return Long.compare(resumeAt - other.resumeAt, 0);
+        }
+    }
+
+    private final class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        // Responses and request bodies go through this, so bytes are counted and limits applied
+        private final ConnectionChannel output;
+        private final InetAddress client;
+        private SelectionKey key;
+        private boolean closed;
+        // True while the connection is in its loop's buffered queue
+        private boolean inputQueued;
+        private State state = State.READ_HEADER;
+        private long lastActivity = System.currentTimeMillis();
+        private int requestsServed;
+        private boolean keepAlive;
+        private final HTTPRequestParser parser = new HTTPRequestParser(server.maxHeaderSize);
+
+        // Bytes read from the socket but not yet consumed: the header being assembled,
+        // the start of an upload body, or pipelined requests that follow
+        private ByteBuffer input = ByteBuffer.allocate(INITIAL_HEADER_BUFFER);
+
+        // The request being answered, null for a request that couldn't be parsed, and when it started
+        private HTTPFileServer.HTTPRequest request;
+        private long requestStart;
+
+        // Request body in progress
+        private Route route;
+
+        // Response in progress: the encoded head first, then its body
+        private Response response;
+        private ByteBuffer responseHead;
+        private boolean bodyWritten;
+        private long sentBefore;
+
+        /** tls is null for a plain HTTP connection. */
+        Connection(EventLoop loop, SocketChannel channel, TlsContext tls) {
+            this.loop = loop;
+            this.channel = channel;
+            this.client = channel.socket().getInetAddress();
+            this.output = new ConnectionChannel(channel, tls != null ? tls.open(channel, null) : null,
+                    server.metrics.bytesSent, server.throttle, client);
+        }
+
+        /** True if decrypted request bytes are waiting that the connection is ready to read. */
+        boolean hasBufferedInput() {
+            return !closed && state != State.WRITE_RESPONSE && (key.interestOps() & SelectionKey.OP_READ) != 0
+                    && output.hasBufferedInput();
+        }
+
+        void onReadable() throws IOException {
+            if (state == State.READ_HEADER) {
+                readHeader();
+            } else if (state == State.READ_BODY) {
+                readBody();
+            }
+        }
+
+        void onWritable() throws IOException {
+            if (state == State.WRITE_RESPONSE) {
+                writeResponse();
+            } else if (output.flush()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void readHeader() throws IOException {
+            if (!input.hasRemaining()) {
+                if (input.capacity() >= server.maxHeaderSize) {
+                    keepAlive = false;
+                    respondWithText(431, "Request Header Fields Too Large");
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(input.capacity() * 2, server.maxHeaderSize));
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+
+            int read = output.readHead(input);
+            if (read == -1) {
+                close();
+                return;
+            }
+            if (read == 0) {
+                awaitReadable();
+                return;
+            }
+            server.metrics.bytesReceived.add(read);
+            processInput();
+        }
+
+        /** Starts the next request if its whole header is already buffered. */
+        private void processInput() throws IOException {
+            int headLength;
+            try {
+                headLength = parser.parse(input.array(), 0, input.position());
+            } catch (HTTPRequestParser.HTTPParseException e) {
+                request = null;
+                requestStart = System.nanoTime();
+                keepAlive = false;
+                respondWithText(e.statusCode, e.getMessage());
+                return;
+            }
+            if (headLength == 0)
+                return;
+
+            consumeInput(headLength);
+            dispatch(parser.request());
+        }
+
+        /** Drops the first count buffered bytes, keeping whatever follows them. */
+        private void consumeInput(int count) {
+            byte[] data = input.array();
+            int remaining = input.position() - count;
+            System.arraycopy(data, count, data, 0, remaining);
+            input.position(remaining);
+        }
+
+        private void dispatch(HTTPFileServer.HTTPRequest request) throws IOException {
+            this.request = request;
+            requestStart = System.nanoTime();
+            server.metrics.requests.increment();
+            requestsServed++;
+            request.keepAlive = HTTPFileServer.wantsKeepAlive(request) && requestsServed < server.maxKeepAliveRequests;
+
+            Route route = server.route(request);
+            keepAlive = request.keepAlive;
+            if (!route.hasBody()) {
+                beginResponse(route.response);
+                return;
+            }
+
+            this.route = route;
+            state = State.READ_BODY;
+            // Body bytes that arrived with the header; anything past the body is a pipelined request
+            ByteBuffer buffered = ByteBuffer.wrap(input.array(), 0, input.position());
+            boolean complete = decodeBody(buffered);
+            consumeInput(buffered.position());
+            if (complete) {
+                finishBody(true);
+            } else if (route != null) {
+                awaitHandler();
+            }
+        }
+
+        private void readBody() throws IOException {
+            // Read only as far as a sized body goes, so the direct buffer never holds the next request
+            ByteBuffer buffer = loop.ioBuffer;
+            buffer.clear();
+            long remaining = route.decoder.remaining();
+            if (remaining > 0) {
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            }
+
+            int read = output.read(buffer);
+            if (read == 0) {
+                long throttled = output.throttledNanos();
+                if (throttled > 0) {
+                    loop.pause(this, SelectionKey.OP_READ, throttled);
+                } else {
+                    awaitReadable();
+                }
+                return;
+            }
+            if (read == -1) {
+                // Client went away early; the handler keeps what arrived, as the blocking mode does
+                keepAlive = false;
+                finishBody(false);
+                return;
+            }
+            server.metrics.bytesReceived.add(read);
+            buffer.flip();
+            if (decodeBody(buffer)) {
+                // A chunked body can end partway through the read; keep what follows for the next request
+                if (buffer.hasRemaining()) {
+                    if (input.remaining() < buffer.remaining()) {
+                        ByteBuffer larger = ByteBuffer.allocate(input.position() + buffer.remaining());
+                        input.flip();
+                        larger.put(input);
+                        input = larger;
+                    }
+                    input.put(buffer);
+                }
+                finishBody(true);
+            } else if (route != null) {
+                awaitHandler();
+            }
+        }
+
+        /** Stops reading the body while the handler can't take more, and reads on once it can. */
+        private void awaitHandler() throws IOException {
+            CompletableFuture<Void> ready = route.handler.ready();
+            if (ready == null || ready.isDone())
+                return;
+            key.interestOps(0);
+            // A failed write shows up as the handler's next write fails
+            ready.whenCompleteAsync((done, failure) -> {
+                if (!closed && state == State.READ_BODY) {
+                    lastActivity = System.currentTimeMillis();
+                    key.interestOps(SelectionKey.OP_READ);
+                    loop.queueIfBuffered(this);
+                }
+            }, loop);
+        }
+
+        /** Waits for more request bytes, and for the socket to drain as well if a TLS handshake left some to send. */
+        private void awaitReadable() throws IOException {
+            key.interestOps(output.flush() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /** Feeds body bytes to the route's handler; returns true once the body is complete. */
+        private boolean decodeBody(ByteBuffer data) throws IOException {
+            try {
+                return route.decoder.decode(data, route.handler);
+            } catch (HTTPRequestParser.HTTPParseException e) {
+                route.handler.abort();
+                route = null;
+                keepAlive = false;
+                respondWithText(e.statusCode, e.getMessage());
+                return false;
+            }
+        }
+
+        private void finishBody(boolean complete) throws IOException {
+            BodyHandler handler = route.handler;
+            route = null;
+            beginResponse(handler.finish(complete));
+        }
+
+        private void respondWithText(int statusCode, String message) throws IOException {
+            beginResponse(Response.error(statusCode, message));
+        }
+
+        private void beginResponse(Response response) throws IOException {
+            if (response.pending != null) {
+                state = State.AWAIT_RESPONSE;
+                key.interestOps(0);
+                response.pending.whenCompleteAsync(this::responseReady, loop);
+                return;
+            }
+            server.addConnectionHeaders(response.head, keepAlive);
+            this.response = response;
+            responseHead = ByteBuffer.wrap(response.encodeHead());
+            bodyWritten = false;
+            sentBefore = output.count();
+            state = State.WRITE_RESPONSE;
+            // Stop watching for reads so unread request bytes can't spin the selector
+            key.interestOps(0);
+            writeResponse();
+        }
+
+        private void writeResponse() throws IOException {
+            if (responseHead.hasRemaining()) {
+                while (responseHead.hasRemaining()) {
+                    if (output.write(responseHead) == 0) {
+                        awaitWritable();
+                        return;
+                    }
+                }
+                server.metrics.timeToFirstByte.record(System.nanoTime() - requestStart);
+            }
+            if (!bodyWritten) {
+                if (!response.body.writeTo(output)) {
+                    CompletableFuture<Void> more = response.body.ready();
+                    if (more != null) {
+                        awaitBody(more);
+                    } else {
+                        awaitWritable();
+                    }
+                    return;
+                }
+                bodyWritten = true;
+            }
+            // On HTTPS the last records may not have gone out yet
+            if (!output.flush()) {
+                awaitWritable();
+                return;
+            }
+
+            response.close();
+            server.exchangeFinished(client, request, response, requestStart, output.count() - sentBefore, true);
+            response = null;
+            request = null;
+            finishExchange();
+        }
+
+        /** Takes the connection off the selector until the body has more to write. */
+        private void awaitBody(CompletableFuture<Void> more) {
+            key.interestOps(0);
+            more.whenCompleteAsync((done, failure) -> {
+                if (!closed && state == State.WRITE_RESPONSE) {
+                    lastActivity = System.currentTimeMillis();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }, loop);
+        }
+
+        /** Sends a deferred response once it is ready, on the connection's loop. */
+        private void responseReady(Response ready, Throwable failure) {
+            if (closed) {
+                if (ready != null) {
+                    ready.close();
+                }
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            output.newTurn(server.fairShareQuantum);
+            try {
+                if (failure != null) {
+                    Throwable cause = Response.cause(failure);
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+                beginResponse(ready);
+            } catch (IOException | RuntimeException e) {
+                loop.connectionFailed(this, e);
+            }
+            loop.queueIfBuffered(this);
+        }
+
+        /** Waits for the socket to drain, for the next turn, or for the bandwidth limit, whichever stopped the write. */
+        private void awaitWritable() {
+            long throttled = output.throttledNanos();
+            if (throttled > 0) {
+                loop.pause(this, SelectionKey.OP_WRITE, throttled);
+            } else {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void finishExchange() throws IOException {
+            if (!keepAlive) {
+                close();
+                return;
+            }
+
+            responseHead = null;
+            state = State.READ_HEADER;
+            key.interestOps(SelectionKey.OP_READ);
+            // A pipelined request may already be waiting in the buffer
+            processInput();
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            server.metrics.connectionsActive.decrement();
+            if (response != null) {
+                response.close();
+                server.exchangeFinished(client, request, response, requestStart, output.count() - sentBefore, false);
+                response = null;
+            }
+            if (route != null) {
+                route.handler.abort();
+                route = null;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(output);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing useful to do; the peer is already gone
+        }
+    }
+}
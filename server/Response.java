@@ -0,0 +1,89 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A response ready to be written by either serving mode: its head, its body and
+ * the file (if any) to close once it has been sent. The engine adds the
+ * Connection headers, since only it knows whether the connection stays open.
+ *
+ * A response that needs slow work first, such as an fsync or a peer's answer,
+ * is deferred: the work runs elsewhere and the engine sends what it produces.
+ * An event loop meanwhile gets on with its other connections.
+ */
+class Response implements Closeable {
+    final int statusCode;
+    final ResponseHead head;
+    final ResponseBody body;
+    // Small text bodies are encoded together with the head so they go out in one write
+    private final byte[] inlineBody;
+    private final Closeable resource;
+    // What the access log notes about the response, such as how a file was sent; may be null
+    final String logMessage;
+    // For a deferred response, the real one once it is ready; null otherwise
+    final CompletableFuture<Response> pending;
+
+    Response(int statusCode, ResponseHead head, ResponseBody body, Closeable resource, String logMessage) {
+        this(statusCode, head, null, body, resource, logMessage, null);
+    }
+
+    private Response(int statusCode, ResponseHead head, byte[] inlineBody, ResponseBody body, Closeable resource,
+            String logMessage, CompletableFuture<Response> pending) {
+        this.statusCode = statusCode;
+        this.head = head;
+        this.inlineBody = inlineBody;
+        this.body = body;
+        this.resource = resource;
+        this.logMessage = logMessage;
+        this.pending = pending;
+    }
+
+    /**
+     * A response that is sent once pending completes. If it fails, the connection
+     * is dropped as for an I/O error while handling the request.
+     */
+    static Response deferred(CompletableFuture<Response> pending) {
+        return new Response(0, null, null, ResponseBody.EMPTY, null, null, pending);
+    }
+
+    /** What a failed future failed with, without the CompletionException the future may have wrapped it in. */
+    static Throwable cause(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    static Response text(int statusCode, String statusText, String body) {
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        ResponseHead head = new ResponseHead(statusCode, statusText)
+                .header("Content-Type", "text/plain")
+                .header("Content-Length", bodyBytes.length);
+        return new Response(statusCode, head, bodyBytes, ResponseBody.EMPTY, null, null, null);
+    }
+
+    /** An error whose message doubles as the status text, as the server has always sent them. */
+    static Response error(int statusCode, String message) {
+        return text(statusCode, message, message);
+    }
+
+    /** The head, plus the body too when it is a small inline text body. */
+    byte[] encodeHead() {
+        return head.toBytes(inlineBody);
+    }
+
+    /** The same response with a note for the access log. */
+    Response withLogMessage(String message) {
+        return new Response(statusCode, head, inlineBody, body, resource, message, null);
+    }
+
+    @Override
+    public void close() {
+        body.close();
+        if (resource != null) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                // Read-only file; nothing left to flush
+            }
+        }
+    }
+}
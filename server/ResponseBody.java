@@ -0,0 +1,352 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The body of a response, written to a socket channel in as many calls as the
+ * channel needs. writeTo returns false when a non-blocking channel could not take
+ * everything yet; on a blocking channel it always finishes in one call. A body
+ * that comes from somewhere slower than the client, such as another node, may
+ * also return false because it has nothing more yet; ready then says when it will.
+ */
+interface ResponseBody extends Closeable {
+    ResponseBody EMPTY = bytes(new byte[0]);
+
+    /** Total body length in bytes, or -1 if it isn't known until the body has been written. */
+    long length();
+
+    /** Writes as much as the channel accepts; returns true once the whole body is written. */
+    boolean writeTo(WritableByteChannel target) throws IOException;
+
+    /**
+     * After writeTo returned false: null if it stopped for the channel, otherwise
+     * a future that completes once the body has more to write.
+     */
+    default CompletableFuture<Void> ready() {
+        return null;
+    }
+
+    /** Releases anything the body borrowed, such as a pooled buffer. Does not close files. */
+    @Override
+    default void close() {
+    }
+
+    static ResponseBody bytes(byte[] data) {
+        return new BytesBody(ByteBuffer.wrap(data));
+    }
+
+    /** The remaining bytes of data, which is consumed as it is written. */
+    static ResponseBody buffer(ByteBuffer data) {
+        return new BytesBody(data);
+    }
+
+    static ResponseBody fileRegion(FileChannel source, long position, long count, BufferPool copyBuffers) {
+        return new FileRegionBody(source, position, count, copyBuffers);
+    }
+
+    /**
+     * count bytes of source from position, compressed as "gzip" or "deflate" while
+     * they are written. With chunked set the output is framed as chunked transfer
+     * coding, since its length is only known at the end.
+     */
+    static ResponseBody compressed(FileChannel source, long position, long count, String encoding, int level,
+            boolean chunked) {
+        return new CompressingBody(source, position, count, encoding, level, chunked);
+    }
+
+    static ResponseBody sequence(List<ResponseBody> parts) {
+        return new SequenceBody(parts);
+    }
+
+    final class BytesBody implements ResponseBody {
+        private final ByteBuffer data;
+        private final long length;
+
+        BytesBody(ByteBuffer data) {
+            this.data = data;
+            this.length = data.remaining();
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel target) throws IOException {
+            while (data.hasRemaining()) {
+                if (target.write(data) == 0)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A region of a file. With no copy buffers it is sent with transferTo (sendfile);
+     * otherwise it is copied through one pooled direct buffer borrowed for the transfer.
+     */
+    final class FileRegionBody implements ResponseBody {
+        private final FileChannel source;
+        private final long count;
+        private final BufferPool copyBuffers;
+        private long position;
+        private final long end;
+        private ByteBuffer buffer;
+
+        FileRegionBody(FileChannel source, long position, long count, BufferPool copyBuffers) {
+            this.source = source;
+            this.position = position;
+            this.count = count;
+            this.end = position + count;
+            this.copyBuffers = copyBuffers;
+        }
+
+        @Override
+        public long length() {
+            return count;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel target) throws IOException {
+            return copyBuffers == null ? transfer(target) : copy(target);
+        }
+
+        private boolean transfer(WritableByteChannel target) throws IOException {
+            while (position < end) {
+                long sent = target instanceof ConnectionChannel
+                        ? ((ConnectionChannel) target).transferFrom(source, position, end - position)
+                        : source.transferTo(position, end - position, target);
+                if (sent == 0) {
+                    if (position >= source.size()) {
+                        throw new EOFException("File shrank while it was being sent");
+                    }
+                    return false;
+                }
+                position += sent;
+            }
+            return true;
+        }
+
+        private boolean copy(WritableByteChannel target) throws IOException {
+            if (buffer == null) {
+                buffer = copyBuffers.acquire();
+                buffer.flip();
+            }
+            while (true) {
+                if (buffer.hasRemaining()) {
+                    target.write(buffer);
+                    if (buffer.hasRemaining())
+                        return false;
+                }
+                if (position >= end) {
+                    close();
+                    return true;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = source.read(buffer, position);
+                if (read == -1) {
+                    throw new EOFException("File shrank while it was being sent");
+                }
+                position += read;
+                buffer.flip();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (buffer != null) {
+                copyBuffers.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    final class SequenceBody implements ResponseBody {
+        private final List<ResponseBody> parts;
+        private final long length;
+        private int current;
+
+        SequenceBody(List<ResponseBody> parts) {
+            this.parts = parts;
+            long total = 0;
+            for (ResponseBody part : parts) {
+                total += part.length();
+            }
+            this.length = total;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel target) throws IOException {
+            while (current < parts.size()) {
+                if (!parts.get(current).writeTo(target))
+                    return false;
+                parts.get(current).close();
+                current++;
+            }
+            return true;
+        }
+
+        @Override
+        public CompletableFuture<Void> ready() {
+            return current < parts.size() ? parts.get(current).ready() : null;
+        }
+
+        @Override
+        public void close() {
+            for (ResponseBody part : parts) {
+                part.close();
+            }
+        }
+    }
+
+    /**
+     * Compresses a file region a block at a time as it is written. Each block of
+     * output is framed (as a chunk, when chunked) before any of it is written, so
+     * a non-blocking channel that stalls resumes with the same block.
+     */
+    final class CompressingBody implements ResponseBody {
+        private static final int BLOCK_SIZE = 64 * 1024;
+        // Room in front of each block for its chunk-size line
+        private static final int CHUNK_HEADER_ROOM = 18;
+        // Room after it for the gzip trailer, the chunk's CRLF and the last-chunk marker
+        private static final int TRAILER_ROOM = 8 + 2 + 5;
+        private static final byte[] GZIP_HEADER = {
+                0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+        };
+
+        private final FileChannel source;
+        private final boolean gzip;
+        private final boolean chunked;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] input = new byte[BLOCK_SIZE];
+        private final byte[] block = new byte[CHUNK_HEADER_ROOM + BLOCK_SIZE + TRAILER_ROOM];
+        private long position;
+        private final long end;
+        private boolean headerWritten;
+        private boolean inputDone;
+        private boolean complete;
+        private ByteBuffer output;
+
+        CompressingBody(FileChannel source, long position, long count, String encoding, int level, boolean chunked) {
+            if (!"gzip".equals(encoding) && !"deflate".equals(encoding)) {
+                throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+            }
+            this.source = source;
+            this.position = position;
+            this.end = position + count;
+            this.gzip = "gzip".equals(encoding);
+            this.chunked = chunked;
+            // gzip wraps raw deflate data in its own header and trailer; "deflate" means the zlib format
+            this.deflater = new Deflater(level, gzip);
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public boolean writeTo(WritableByteChannel target) throws IOException {
+            while (true) {
+                if (output != null && output.hasRemaining()) {
+                    target.write(output);
+                    if (output.hasRemaining())
+                        return false;
+                }
+                if (complete) {
+                    close();
+                    return true;
+                }
+                nextBlock();
+            }
+        }
+
+        /** Compresses the next block of output into block and points output at it. */
+        private void nextBlock() throws IOException {
+            int dataStart = CHUNK_HEADER_ROOM;
+            int limit = dataStart + BLOCK_SIZE;
+            int n = dataStart;
+            if (gzip && !headerWritten) {
+                System.arraycopy(GZIP_HEADER, 0, block, n, GZIP_HEADER.length);
+                n += GZIP_HEADER.length;
+                headerWritten = true;
+            }
+
+            while (n < limit && !deflater.finished()) {
+                if (deflater.needsInput() && !inputDone) {
+                    readInput();
+                    continue;
+                }
+                n += deflater.deflate(block, n, limit - n);
+            }
+            if (deflater.finished()) {
+                if (gzip) {
+                    n = putIntLE(block, n, (int) crc.getValue());
+                    n = putIntLE(block, n, (int) deflater.getBytesRead());
+                }
+                complete = true;
+            }
+
+            int start = dataStart;
+            int dataLength = n - dataStart;
+            if (chunked) {
+                if (dataLength > 0) {
+                    byte[] sizeLine = (Integer.toHexString(dataLength) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                    start -= sizeLine.length;
+                    System.arraycopy(sizeLine, 0, block, start, sizeLine.length);
+                    block[n++] = '\r';
+                    block[n++] = '\n';
+                }
+                if (complete) {
+                    for (byte b : "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)) {
+                        block[n++] = b;
+                    }
+                }
+            }
+            output = ByteBuffer.wrap(block, start, n - start);
+        }
+
+        private void readInput() throws IOException {
+            int wanted = (int) Math.min(input.length, end - position);
+            int read = 0;
+            if (wanted > 0) {
+                read = source.read(ByteBuffer.wrap(input, 0, wanted), position);
+                if (read == -1) {
+                    throw new EOFException("File shrank while it was being sent");
+                }
+                position += read;
+                crc.update(input, 0, read);
+            }
+            deflater.setInput(input, 0, read);
+            if (position >= end) {
+                deflater.finish();
+                inputDone = true;
+            }
+        }
+
+        private static int putIntLE(byte[] data, int offset, int value) {
+            for (int i = 0; i < 4; i++) {
+                data[offset + i] = (byte) (value >>> (8 * i));
+            }
+            return offset + 4;
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Builds an HTTP/1.1 status line and header block and encodes it, CRLF-terminated,
+ * into a single byte array so it can go out in one write.
+ */
+class ResponseHead {
+    private final StringBuilder text = new StringBuilder(256);
+
+    ResponseHead(int statusCode, String statusText) {
+        text.append("HTTP/1.1 ").append(statusCode).append(' ').append(statusText).append("\r\n");
+    }
+
+    ResponseHead header(String name, String value) {
+        text.append(name).append(": ").append(value).append("\r\n");
+        return this;
+    }
+
+    ResponseHead header(String name, long value) {
+        text.append(name).append(": ").append(value).append("\r\n");
+        return this;
+    }
+
+    /** Encodes the head, including the blank line that ends it, as ISO-8859-1. */
+    byte[] toBytes() {
+        return toBytes(null);
+    }
+
+    /** Encodes the head followed directly by a small body, for one-write text responses. */
+    byte[] toBytes(byte[] body) {
+        int headLength = text.length() + 2;
+        byte[] bytes = new byte[headLength + (body != null ? body.length : 0)];
+        for (int i = 0; i < text.length(); i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        bytes[headLength - 2] = '\r';
+        bytes[headLength - 1] = '\n';
+        if (body != null) {
+            System.arraycopy(body, 0, bytes, headLength, body.length);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * How the server answers a request: with a response straight away, or by first
+ * passing the request body through a decoder to a handler, which then produces
+ * the response. Both serving modes route requests through HTTPFileServer.route.
+ */
+final class Route {
+    final Response response;
+    final BodyDecoder decoder;
+    final BodyHandler handler;
+
+    private Route(Response response, BodyDecoder decoder, BodyHandler handler) {
+        this.response = response;
+        this.decoder = decoder;
+        this.handler = handler;
+    }
+
+    static Route respond(Response response) {
+        return new Route(response, null, null);
+    }
+
+    static Route receive(BodyDecoder decoder, BodyHandler handler) {
+        return new Route(null, decoder, handler);
+    }
+
+    boolean hasBody() {
+        return handler != null;
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.*;
+
+/**
+ * Startup settings for the server. Each setting can be given on the command line
+ * as --name=value, or as a -Dhttpfs.name=value system property; otherwise the
+ * caller's default is used.
+ */
+class ServerOptions {
+    private static final String PROPERTY_PREFIX = "httpfs.";
+
+    private final Map<String, String> values = new HashMap<>();
+
+    static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unrecognized argument: " + arg);
+            }
+            String setting = arg.substring(2);
+            int equals = setting.indexOf('=');
+            if (equals < 0) {
+                // A bare flag such as --verbose means "true"
+                options.values.put(setting, "true");
+            } else {
+                options.values.put(setting.substring(0, equals), setting.substring(equals + 1));
+            }
+        }
+        return options;
+    }
+
+    String get(String name, String defaultValue) {
+        String value = values.get(name);
+        if (value == null) {
+            value = System.getProperty(PROPERTY_PREFIX + name);
+        }
+        return value != null ? value : defaultValue;
+    }
+
+    int getInt(String name, int defaultValue) {
+        String value = get(name, null);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    long getLong(String name, long defaultValue) {
+        String value = get(name, null);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,183 @@
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bandwidth limits, as token buckets of bytes per second: one for each
+ * connection, one shared by all connections from a client address, and one for
+ * the whole server. A transfer may move only as many bytes as every bucket it
+ * draws from allows, so the tightest limit wins. Downloads and uploads are
+ * limited separately, since the link carries both at full speed at once.
+ *
+ * Bytes are granted at most GRANT_SIZE at a time, so connections sharing a
+ * client or global bucket take turns at it rather than one draining it.
+ */
+class Throttle {
+    // The most one take hands out; small enough for shared buckets to interleave connections
+    static final int GRANT_SIZE = 64 * 1024;
+    // A take grants at least this much or nothing, so a throttled transfer moves in useful pieces
+    // instead of the byte or two that trickle in during each system call
+    private static final long MIN_GRANT = 16 * 1024;
+
+    private final long perConnection;
+    private final long perClient;
+    private final Direction downloads;
+    private final Direction uploads;
+
+    /** The client and global buckets for one direction. */
+    private final class Direction {
+        private final TokenBucket global;
+        private final Map<InetAddress, ClientBucket> clients = new ConcurrentHashMap<>();
+
+        Direction(long globalRate) {
+            global = globalRate > 0 ? new TokenBucket(globalRate) : null;
+        }
+
+        Limiter open(InetAddress client) {
+            ClientBucket shared = null;
+            if (perClient > 0) {
+                shared = clients.compute(client, (address, bucket) -> {
+                    if (bucket == null) {
+                        bucket = new ClientBucket(perClient);
+                    }
+                    bucket.connections++;
+                    return bucket;
+                });
+            }
+            return new Limiter(this, client, perConnection > 0 ? new TokenBucket(perConnection) : null, shared,
+                    global);
+        }
+
+        void release(InetAddress client) {
+            if (perClient > 0) {
+                // The address's bucket goes once its last connection has closed
+                clients.computeIfPresent(client, (address, bucket) -> --bucket.connections == 0 ? null : bucket);
+            }
+        }
+    }
+
+    Throttle(ServerOptions options) {
+        perConnection = options.getLong("rate-limit-connection", 0);
+        perClient = options.getLong("rate-limit-client", 0);
+        long global = options.getLong("rate-limit-global", 0);
+        downloads = new Direction(global);
+        uploads = new Direction(global);
+    }
+
+    /** True if any limit is set; with none, connections skip throttling altogether. */
+    boolean enabled() {
+        return perConnection > 0 || perClient > 0 || downloads.global != null;
+    }
+
+    Limiter downloadLimiter(InetAddress client) {
+        return downloads.open(client);
+    }
+
+    Limiter uploadLimiter(InetAddress client) {
+        return uploads.open(client);
+    }
+
+    /** One connection's view of the buckets it draws from in one direction. */
+    static final class Limiter {
+        private final Direction direction;
+        private final InetAddress client;
+        private final TokenBucket[] buckets;
+
+        private Limiter(Direction direction, InetAddress client, TokenBucket connection, TokenBucket shared,
+                TokenBucket global) {
+            this.direction = direction;
+            this.client = client;
+            int count = (connection != null ? 1 : 0) + (shared != null ? 1 : 0) + (global != null ? 1 : 0);
+            buckets = new TokenBucket[count];
+            int i = 0;
+            for (TokenBucket bucket : new TokenBucket[] { connection, shared, global }) {
+                if (bucket != null) {
+                    buckets[i++] = bucket;
+                }
+            }
+        }
+
+        /**
+         * Takes up to wanted bytes from every bucket and returns how many were
+         * granted, which is 0 if any bucket is short of MIN_GRANT.
+         */
+        long take(long wanted) {
+            long now = System.nanoTime();
+            long grant = Math.min(wanted, GRANT_SIZE);
+            for (TokenBucket bucket : buckets) {
+                grant = Math.min(grant, bucket.available(now));
+            }
+            if (grant <= 0 || grant < Math.min(wanted, MIN_GRANT))
+                return 0;
+            // Another connection may take from a shared bucket in between; it just runs briefly into debt
+            for (TokenBucket bucket : buckets) {
+                bucket.add(-grant);
+            }
+            return grant;
+        }
+
+        /** Returns bytes that were granted but not sent after all. */
+        void refund(long unused) {
+            for (TokenBucket bucket : buckets) {
+                bucket.add(unused);
+            }
+        }
+
+        /** How long until every bucket can grant MIN_GRANT again. */
+        long waitNanos() {
+            long now = System.nanoTime();
+            long wait = 0;
+            for (TokenBucket bucket : buckets) {
+                wait = Math.max(wait, bucket.nanosUntil(MIN_GRANT, now));
+            }
+            return Math.max(wait, 1_000_000);
+        }
+
+        /** Called when the connection closes. */
+        void release() {
+            direction.release(client);
+        }
+    }
+
+    /** Refills at rate bytes per second, holding at most a tenth of a second's worth. */
+    static class TokenBucket {
+        private final long rate;
+        final long burst;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.burst = Math.max(GRANT_SIZE, rate / 10);
+            this.tokens = burst;
+        }
+
+        synchronized long available(long now) {
+            refill(now);
+            return (long) tokens;
+        }
+
+        synchronized void add(long amount) {
+            tokens = Math.min(burst, tokens + amount);
+        }
+
+        synchronized long nanosUntil(long amount, long now) {
+            refill(now);
+            return tokens >= amount ? 0 : (long) ((amount - tokens) * 1e9 / rate);
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * (double) rate / 1e9);
+            lastRefill = now;
+        }
+    }
+
+    /** The per-client bucket, counting the connections that share it. */
+    private static final class ClientBucket extends TokenBucket {
+        int connections;
+
+        ClientBucket(long rate) {
+            super(rate);
+        }
+    }
+}
@@ -0,0 +1,358 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import javax.net.ssl.*;
+
+/**
+ * One HTTPS connection: an SSLEngine between the socket and the plaintext the
+ * serving modes read and write, usable with the socket blocking or not.
+ *
+ * Reads and writes behave like a socket channel's. A non-blocking read or write
+ * returns 0 when the socket has nothing to give or can't take more, including
+ * partway through the handshake, which is carried out by the first reads and
+ * writes. Plaintext a write has taken may still be waiting to go out as
+ * ciphertext; flush() reports whether it has. Likewise a read can leave
+ * decrypted bytes behind that won't wake a selector, so hasBufferedInput() must
+ * be checked before waiting for the socket.
+ *
+ * Buffers come from the TlsContext pools and go back on close. A read into a
+ * buffer with room for a whole record decrypts straight into it, and file data
+ * is read straight into the buffer that is encrypted from, so neither is copied
+ * on top of what the cipher does.
+ */
+final class TlsChannel implements ByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final TlsContext context;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final InputStream blockingInput;
+    // Ciphertext read but not yet unwrapped; kept ready for filling
+    private ByteBuffer netIn;
+    // Ciphertext wrapped but not yet sent; kept ready for draining
+    private ByteBuffer netOut;
+    // Plaintext unwrapped but not yet read; kept ready for draining
+    private ByteBuffer appIn;
+    private boolean handshaking = true;
+    // Set once the first handshake is done; any later one is a post-handshake message
+    private boolean established;
+    private final long handshakeStarted = System.nanoTime();
+    private boolean inputClosed;
+    private boolean closed;
+
+    TlsChannel(TlsContext context, SocketChannel channel, SSLEngine engine, InputStream blockingInput) {
+        this.context = context;
+        this.channel = channel;
+        this.engine = engine;
+        this.blockingInput = blockingInput;
+        netIn = context.recordBuffers.acquire();
+        netOut = context.outputBuffers.acquire();
+        netOut.flip();
+        appIn = context.recordBuffers.acquire();
+        appIn.flip();
+        try {
+            // Until it begins the engine says it isn't handshaking at all
+            engine.beginHandshake();
+        } catch (SSLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** True if decrypted bytes are waiting to be read. */
+    boolean hasBufferedInput() {
+        return appIn.hasRemaining();
+    }
+
+    /** Sends whatever ciphertext is waiting; returns true once nothing is. */
+    boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read(ByteBuffer target) throws IOException {
+        if (!target.hasRemaining())
+            return 0;
+        if (handshaking && !handshake())
+            return 0;
+        while (!appIn.hasRemaining()) {
+            if (inputClosed)
+                return -1;
+            int before = target.position();
+            int status;
+            // With room for a whole record, decrypt straight into the caller's buffer
+            if (target.remaining() >= context.applicationSize) {
+                status = unwrap(target);
+            } else {
+                appIn.clear();
+                try {
+                    status = unwrap(appIn);
+                } finally {
+                    appIn.flip();
+                }
+            }
+            if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                // A post-handshake message, such as a key update, wants an answer; it goes out by the next write
+                handshaking = true;
+                handshake();
+            }
+            if (target.position() > before)
+                return target.position() - before;
+            if (status <= 0 && !appIn.hasRemaining())
+                return status;
+        }
+        int count = Math.min(appIn.remaining(), target.remaining());
+        ByteBuffer slice = appIn.duplicate();
+        slice.limit(slice.position() + count);
+        target.put(slice);
+        appIn.position(appIn.position() + count);
+        return count;
+    }
+
+    /**
+     * Unwraps records into target, reading from the socket as needed, until one
+     * yields plaintext or a handshake message needs handling. Returns 1 then, 0
+     * if the socket has nothing more for now, and -1 at the end of the stream.
+     */
+    private int unwrap(ByteBuffer target) throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, target);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    if (result.bytesProduced() > 0
+                            || engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)
+                        return 1;
+                    break;
+                case BUFFER_UNDERFLOW: {
+                    int read = readNetwork();
+                    if (read == -1) {
+                        inputClosed = true;
+                        return -1;
+                    }
+                    if (read == 0)
+                        return 0;
+                    break;
+                }
+                case BUFFER_OVERFLOW:
+                    // Only reached with a record bigger than the session said; nothing sensible to do
+                    throw new SSLException("TLS record larger than the application buffer");
+                case CLOSED:
+                    inputClosed = true;
+                    return -1;
+            }
+        }
+    }
+
+    private int readNetwork() throws IOException {
+        if (!netIn.hasRemaining()) {
+            throw new SSLException("TLS record larger than the packet buffer");
+        }
+        if (blockingInput == null)
+            return channel.read(netIn);
+        int read = blockingInput.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+        if (read > 0) {
+            netIn.position(netIn.position() + read);
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        if (handshaking && !handshake())
+            return 0;
+        if (!flush())
+            return 0;
+        int before = source.position();
+        netOut.compact();
+        try {
+            while (source.hasRemaining() && netOut.remaining() >= context.packetSize) {
+                SSLEngineResult result = engine.wrap(source, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS connection closed");
+                }
+                if (result.getStatus() != SSLEngineResult.Status.OK)
+                    break;
+            }
+        } finally {
+            netOut.flip();
+        }
+        flush();
+        return source.position() - before;
+    }
+
+    /**
+     * Sends up to length bytes of source from position, reading them into the
+     * buffer they are encrypted from. Returns how many were taken; any left over
+     * are simply read again by the next call.
+     */
+    long transferFrom(FileChannel source, long position, long length) throws IOException {
+        if (handshaking && !handshake())
+            return 0;
+        if (!flush())
+            return 0;
+        ByteBuffer plain = context.outputBuffers.acquire();
+        try {
+            // What fits into the ciphertext buffer in one go
+            long records = TlsContext.RECORDS_PER_WRITE * (long) context.applicationSize;
+            plain.limit((int) Math.min(Math.min(length, records), plain.capacity()));
+            int read = source.read(plain, position);
+            if (read <= 0)
+                return 0;
+            plain.flip();
+            long taken = 0;
+            while (plain.hasRemaining()) {
+                int written = write(plain);
+                if (written == 0)
+                    break;
+                taken += written;
+            }
+            return taken;
+        } finally {
+            context.outputBuffers.release(plain);
+        }
+    }
+
+    /**
+     * Drives the handshake as far as the socket allows. Returns true once it is
+     * done, false if a non-blocking socket has to become readable or writable
+     * first.
+     */
+    private boolean handshake() throws IOException {
+        try {
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK: {
+                        // Certificate and key work; run inline, which an event loop pays for once per handshake
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        break;
+                    }
+                    case NEED_WRAP: {
+                        if (!flush())
+                            return false;
+                        netOut.compact();
+                        SSLEngineResult result;
+                        try {
+                            result = engine.wrap(EMPTY, netOut);
+                        } finally {
+                            netOut.flip();
+                        }
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED && !netOut.hasRemaining()) {
+                            throw new SSLException("TLS connection closed during handshake");
+                        }
+                        if (!flush())
+                            return false;
+                        break;
+                    }
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN: {
+                        // Application data that arrives with the last handshake flight lands in appIn
+                        appIn.compact();
+                        int status;
+                        try {
+                            status = unwrapHandshake();
+                        } finally {
+                            appIn.flip();
+                        }
+                        if (status == 0)
+                            return false;
+                        if (status < 0)
+                            throw new EOFException("Connection closed during TLS handshake");
+                        break;
+                    }
+                    default:
+                        finishHandshake();
+                        return true;
+                }
+            }
+        } catch (SSLException e) {
+            if (!established) {
+                context.handshakeFailures.increment();
+            }
+            throw e;
+        }
+    }
+
+    private int unwrapHandshake() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    return 1;
+                case BUFFER_UNDERFLOW: {
+                    int read = readNetwork();
+                    if (read <= 0)
+                        return read;
+                    break;
+                }
+                case CLOSED:
+                    return -1;
+                default:
+                    throw new SSLException("Unexpected TLS handshake state: " + result.getStatus());
+            }
+        }
+    }
+
+    private void finishHandshake() {
+        handshaking = false;
+        if (established)
+            return;
+        established = true;
+        context.handshakes.increment();
+        context.handshakeNanos.add(System.nanoTime() - handshakeStarted);
+        if (!context.fullHandshake(engine.getSession())) {
+            context.handshakesResumed.increment();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /** Sends close_notify if the socket takes it at once, closes the socket and returns the buffers. */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (!handshaking && channel.isOpen()) {
+                engine.closeOutbound();
+                if (flush()) {
+                    netOut.compact();
+                    try {
+                        engine.wrap(EMPTY, netOut);
+                    } finally {
+                        netOut.flip();
+                    }
+                    flush();
+                }
+            }
+        } catch (IOException e) {
+            // The peer is gone; nothing to tell it
+        } finally {
+            channel.close();
+            context.recordBuffers.release(netIn);
+            context.recordBuffers.release(appIn);
+            context.outputBuffers.release(netOut);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.*;
+
+/**
+ * Server-side TLS settings for the HTTPS listener, built once at startup:
+ *
+ *   --tls-port=N                  port for HTTPS; 0 (the default) for none
+ *   --tls-keystore=file           PKCS12 or JKS keystore holding the server's key and certificate
+ *   --tls-keystore-password=pw
+ *   --tls-protocols=TLSv1.3,TLSv1.2
+ *   --tls-ciphers=a,b,...         cipher suites, in order of preference; the JDK's defaults if unset
+ *   --tls-session-cache=N         sessions kept for resumption (0 for no limit)
+ *   --tls-session-timeout=s       how long a session may be resumed
+ *   --tls-session-tickets=true    resume from tickets the client keeps (stateless) as well as the cache
+ *
+ * For a local self-signed keystore:
+ *   keytool -genkeypair -alias httpfs -keyalg EC -groupname secp256r1 -validity 365
+ *           -dname CN=localhost -ext san=dns:localhost,ip:127.0.0.1
+ *           -storetype PKCS12 -keystore server.p12 -storepass changeit
+ *
+ * It also owns the pools TLS connections borrow their record buffers from, so
+ * a connection costs no allocation beyond its SSLEngine.
+ */
+class TlsContext {
+    // Plaintext for one file read feeds this many records at once, so each socket write carries several
+    static final int RECORDS_PER_WRITE = 4;
+    // Put on a handshake's session when it picks a certificate, which only a full handshake does
+    private static final String FULL_HANDSHAKE = "httpfs.full-handshake";
+
+    private final SSLContext context;
+    private final String[] protocols;
+    private final String[] cipherSuites;
+    final int packetSize;
+    final int applicationSize;
+    // Ciphertext coming in and plaintext unwrapped from it; one record each
+    final BufferPool recordBuffers;
+    // Ciphertext going out, and plaintext read from files to fill it; RECORDS_PER_WRITE records each
+    final BufferPool outputBuffers;
+
+    final LongAdder handshakes = new LongAdder();
+    final LongAdder handshakesResumed = new LongAdder();
+    final LongAdder handshakeFailures = new LongAdder();
+    final LongAdder handshakeNanos = new LongAdder();
+
+    TlsContext(ServerOptions options) {
+        String keystore = options.get("tls-keystore", null);
+        if (keystore == null) {
+            throw new IllegalArgumentException("--tls-port needs --tls-keystore");
+        }
+        // Read by the JDK when TLS is first used, so it has to be set before the context exists
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                Boolean.toString(options.getBoolean("tls-session-tickets", true)));
+        char[] password = options.get("tls-keystore-password", "changeit").toCharArray();
+        try {
+            KeyStore keys = KeyStore.getInstance(new File(keystore), password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keys, password);
+            context = SSLContext.getInstance("TLS");
+            KeyManager[] managers = keyManagers.getKeyManagers();
+            for (int i = 0; i < managers.length; i++) {
+                if (managers[i] instanceof X509ExtendedKeyManager) {
+                    managers[i] = new MarkingKeyManager((X509ExtendedKeyManager) managers[i]);
+                }
+            }
+            context.init(managers, null, null);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalArgumentException("Could not load keystore " + keystore + ": " + e.getMessage());
+        }
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(options.getInt("tls-session-cache", 20480));
+        sessions.setSessionTimeout(options.getInt("tls-session-timeout", 24 * 60 * 60));
+
+        SSLParameters supported = context.getSupportedSSLParameters();
+        protocols = pick("tls-protocols", options.get("tls-protocols", "TLSv1.3,TLSv1.2"),
+                supported.getProtocols());
+        String ciphers = options.get("tls-ciphers", null);
+        cipherSuites = ciphers == null ? context.getDefaultSSLParameters().getCipherSuites()
+                : pick("tls-ciphers", ciphers, supported.getCipherSuites());
+
+        SSLSession session = newEngine().getSession();
+        packetSize = session.getPacketBufferSize();
+        applicationSize = session.getApplicationBufferSize();
+        recordBuffers = new BufferPool(Math.max(packetSize, applicationSize), 512, false);
+        outputBuffers = new BufferPool(RECORDS_PER_WRITE * packetSize, 256, false);
+    }
+
+    /** The listed names, which must all be among the supported ones. */
+    private static String[] pick(String option, String list, String[] supported) {
+        List<String> known = Arrays.asList(supported);
+        List<String> picked = new ArrayList<>();
+        for (String name : list.split(",")) {
+            name = name.trim();
+            if (name.isEmpty())
+                continue;
+            if (!known.contains(name)) {
+                throw new IllegalArgumentException("Unsupported value for " + option + ": " + name);
+            }
+            picked.add(name);
+        }
+        if (picked.isEmpty()) {
+            throw new IllegalArgumentException("No values given for " + option);
+        }
+        return picked.toArray(new String[0]);
+    }
+
+    private SSLEngine newEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(protocols);
+        parameters.setCipherSuites(cipherSuites);
+        // Our order, not the client's, so the fastest suites configured first win
+        parameters.setUseCipherSuitesOrder(true);
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    /**
+     * Wraps an accepted connection. blockingInput is the socket's input stream in
+     * blocking mode, so reads honour its timeout, and null in non-blocking mode.
+     */
+    TlsChannel open(SocketChannel channel, InputStream blockingInput) {
+        return new TlsChannel(this, channel, newEngine(), blockingInput);
+    }
+
+    /**
+     * True if the handshake that produced session picked a certificate, i.e.
+     * did not resume an earlier session. Answers once per handshake.
+     */
+    boolean fullHandshake(SSLSession session) {
+        if (session.getValue(FULL_HANDSHAKE) == null)
+            return false;
+        // A session resumed from the cache later is the same object, so it mustn't still say so then
+        session.removeValue(FULL_HANDSHAKE);
+        return true;
+    }
+
+    /** Marks the handshake session whenever the server's certificate is chosen. */
+    private static final class MarkingKeyManager extends X509ExtendedKeyManager {
+        private final X509ExtendedKeyManager keys;
+
+        MarkingKeyManager(X509ExtendedKeyManager keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            String alias = keys.chooseEngineServerAlias(keyType, issuers, engine);
+            SSLSession handshake = engine != null ? engine.getHandshakeSession() : null;
+            if (alias != null && handshake != null) {
+                handshake.putValue(FULL_HANDSHAKE, Boolean.TRUE);
+            }
+            return alias;
+        }
+
+        @Override
+        public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+            return keys.chooseEngineClientAlias(keyType, issuers, engine);
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return keys.getClientAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            return keys.chooseClientAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return keys.getServerAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            return keys.chooseServerAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return keys.getCertificateChain(alias);
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            return keys.getPrivateKey(alias);
+        }
+    }
+
+    String describe() {
+        return String.join("/", protocols) + ", " + cipherSuites.length + " cipher suites";
+    }
+}
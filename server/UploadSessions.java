@@ -0,0 +1,446 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resumable uploads. A client creates a session for a file of known length, PUTs
+ * its numbered parts in any order (several at once if it likes), asks which parts
+ * have arrived, and commits once they all have:
+ *
+ *   POST   /upload/sessions                  X-Filename, X-Upload-Length [, X-Part-Size]
+ *   PUT    /upload/sessions/{id}/parts/{n}   part n, numbered from 1
+ *   GET    /upload/sessions/{id}             received and missing parts
+ *   POST   /upload/sessions/{id}/commit      verifies any Digest and stores the file
+ *   DELETE /upload/sessions/{id}             abandons the upload
+ *
+ * Each part is written straight to its offset in the session's data file,
+ * through the same UploadWriter as plain uploads, so the connection stops
+ * reading while the disk catches up and committing is a hash and a rename into
+ * the upload store rather than another copy. The hash runs on a disk thread, so reading back a large file doesn't
+ * hold up the connection's thread. A part's data is forced to disk before the
+ * part is recorded as received, so a session that survives a crash never
+ * claims a part it lost.
+ * Sessions live under uploads/.sessions and survive a server restart.
+ */
+class UploadSessions {
+    static final String PATH = "/upload/sessions";
+    private static final long DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    private static final long MIN_PART_SIZE = 64 * 1024;
+    private static final long MAX_PART_SIZE = 1024L * 1024 * 1024;
+    private static final int MAX_PARTS = 10_000;
+    private static final long MAX_LENGTH = MAX_PART_SIZE * MAX_PARTS;
+
+    private final HTTPFileServer server;
+    private final File directory;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    UploadSessions(HTTPFileServer server, File directory) {
+        this.server = server;
+        this.directory = directory;
+        directory.mkdirs();
+        loadSessions();
+    }
+
+    /** A session's target file, part layout and which parts have been written so far. */
+    private final class Session {
+        final String id;
+        final String filename;
+        final long length;
+        final long partSize;
+        final int partCount;
+        final BitSet received = new BitSet();
+        private FileChannel data;
+        private boolean closed;
+
+        Session(String id, String filename, long length, long partSize) {
+            this.id = id;
+            this.filename = filename;
+            this.length = length;
+            this.partSize = partSize;
+            this.partCount = (int) Math.max(1, ceilDiv(length, partSize));
+        }
+
+        File dataFile() {
+            return new File(directory, id + ".data");
+        }
+
+        File stateFile() {
+            return new File(directory, id + ".state");
+        }
+
+        long partOffset(int part) {
+            return (part - 1) * partSize;
+        }
+
+        long partLength(int part) {
+            return Math.min(partSize, length - partOffset(part));
+        }
+
+        synchronized FileChannel data() throws IOException {
+            if (closed) {
+                throw new IOException("Upload session " + id + " is closed");
+            }
+            if (data == null) {
+                data = FileChannel.open(dataFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            return data;
+        }
+
+        synchronized void partReceived(int part) throws IOException {
+            received.set(part);
+            saveState();
+        }
+
+        synchronized int[] missingParts() {
+            int[] missing = new int[partCount - received.cardinality()];
+            int count = 0;
+            for (int part = 1; part <= partCount; part++) {
+                if (!received.get(part)) {
+                    missing[count++] = part;
+                }
+            }
+            return missing;
+        }
+
+        /** Closes the data file; later part writes fail instead of reopening it. */
+        synchronized void close() throws IOException {
+            closed = true;
+            if (data != null) {
+                data.close();
+                data = null;
+            }
+        }
+
+        synchronized void saveState() throws IOException {
+            Properties state = new Properties();
+            state.setProperty("filename", filename);
+            state.setProperty("length", Long.toString(length));
+            state.setProperty("partSize", Long.toString(partSize));
+            state.setProperty("received", received.toString().replaceAll("[{} ]", ""));
+
+            // Written beside the old state and renamed over it, so a crash never leaves half a file
+            File temp = new File(directory, id + ".state.tmp");
+            try (OutputStream out = new FileOutputStream(temp)) {
+                state.store(out, null);
+            }
+            Files.move(temp.toPath(), stateFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void loadSessions() {
+        File[] stateFiles = directory.listFiles((dir, name) -> name.endsWith(".state"));
+        if (stateFiles == null)
+            return;
+
+        for (File stateFile : stateFiles) {
+            String id = stateFile.getName().substring(0, stateFile.getName().length() - ".state".length());
+            Properties state = new Properties();
+            try (InputStream in = new FileInputStream(stateFile)) {
+                state.load(in);
+                Session session = new Session(id, state.getProperty("filename"),
+                        Long.parseLong(state.getProperty("length")), Long.parseLong(state.getProperty("partSize")));
+                for (String part : state.getProperty("received", "").split(",")) {
+                    if (!part.isEmpty()) {
+                        session.received.set(Integer.parseInt(part));
+                    }
+                }
+                sessions.put(id, session);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Skipping unreadable upload session " + id + ": " + e.getMessage());
+            }
+        }
+        if (!sessions.isEmpty()) {
+            System.out.println("Resumed " + sessions.size() + " upload session(s)");
+        }
+    }
+
+    Route route(HTTPFileServer.HTTPRequest request) throws IOException {
+        String path = request.path;
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+
+        if (path.equals(PATH) || path.equals(PATH + "/")) {
+            if (!"POST".equals(request.method))
+                return Route.respond(Response.error(405, "Method Not Allowed"));
+            return Route.respond(create(request));
+        }
+
+        // {id}, {id}/commit or {id}/parts/{n}
+        String[] segments = path.substring(PATH.length() + 1).split("/");
+        Session session = sessions.get(segments[0]);
+        if (session == null)
+            return Route.respond(Response.error(404, "Upload Session Not Found"));
+
+        if (segments.length == 1) {
+            if ("GET".equals(request.method))
+                return Route.respond(status(session));
+            if ("DELETE".equals(request.method))
+                return Route.respond(abort(session));
+            return Route.respond(Response.error(405, "Method Not Allowed"));
+        }
+        if (segments.length == 2 && segments[1].equals("commit")) {
+            if (!"POST".equals(request.method))
+                return Route.respond(Response.error(405, "Method Not Allowed"));
+            return Route.respond(commit(request, session));
+        }
+        if (segments.length == 3 && segments[1].equals("parts")) {
+            if (!"PUT".equals(request.method))
+                return Route.respond(Response.error(405, "Method Not Allowed"));
+            return receivePart(request, session, segments[2]);
+        }
+        return Route.respond(Response.error(404, "Not Found"));
+    }
+
+    private Response create(HTTPFileServer.HTTPRequest request) throws IOException {
+        String filename = HTTPFileServer.extractOriginalFilename(request.headers);
+        long length;
+        long partSize;
+        try {
+            length = Long.parseLong(request.headers.getOrDefault("x-upload-length", "-1").trim());
+            String partSizeHeader = request.headers.get("x-part-size");
+            partSize = partSizeHeader == null ? DEFAULT_PART_SIZE : Long.parseLong(partSizeHeader.trim());
+        } catch (NumberFormatException e) {
+            return Response.error(400, "Bad Request: Invalid X-Upload-Length or X-Part-Size");
+        }
+        if (length < 0) {
+            return Response.error(400, "Bad Request: X-Upload-Length header required");
+        }
+        if (length > MAX_LENGTH) {
+            return Response.error(400, "Bad Request: X-Upload-Length may be at most " + MAX_LENGTH);
+        }
+        // Small parts are rounded up so a session never has more than MAX_PARTS of them
+        partSize = Math.max(Math.min(Math.max(partSize, MIN_PART_SIZE), MAX_PART_SIZE), ceilDiv(length, MAX_PARTS));
+
+        // Claimed with putIfAbsent, so two sessions can't end up with one id even if the random ids collide
+        Session session;
+        do {
+            String id = Long.toHexString(random.nextLong() & Long.MAX_VALUE);
+            session = new Session(id, filename == null ? id : filename, length, partSize);
+        } while (sessions.putIfAbsent(session.id, session) != null);
+        String id = session.id;
+        session.saveState();
+
+        String location = PATH + "/" + id;
+        String body = "Upload session created: " + id + " (" + session.partCount + " parts of " + partSize
+                + " bytes)";
+        Response response = Response.text(201, "Created", body).withLogMessage(body + " for " + session.filename);
+        response.head.header("Location", location)
+                .header("X-Upload-Id", id)
+                .header("X-Part-Size", partSize)
+                .header("X-Part-Count", session.partCount);
+        return response;
+    }
+
+    /** a / b rounded up, for a >= 0 and b > 0, without the overflow of (a + b - 1) / b. */
+    private static long ceilDiv(long a, long b) {
+        return a / b + (a % b == 0 ? 0 : 1);
+    }
+
+    private Response status(Session session) {
+        StringBuilder received = new StringBuilder();
+        StringBuilder ranges = new StringBuilder();
+        long receivedBytes = 0;
+        synchronized (session) {
+            int rangeStart = 0;
+            for (int part = 1; part <= session.partCount + 1; part++) {
+                boolean has = part <= session.partCount && session.received.get(part);
+                if (has) {
+                    received.append(received.length() > 0 ? "," : "").append(part);
+                    receivedBytes += session.partLength(part);
+                    if (rangeStart == 0) {
+                        rangeStart = part;
+                    }
+                } else if (rangeStart != 0) {
+                    long end = session.partOffset(part - 1) + session.partLength(part - 1) - 1;
+                    ranges.append(ranges.length() > 0 ? "," : "")
+                            .append(session.partOffset(rangeStart)).append('-').append(end);
+                    rangeStart = 0;
+                }
+            }
+        }
+
+        StringBuilder missing = new StringBuilder();
+        for (int part : session.missingParts()) {
+            missing.append(missing.length() > 0 ? "," : "").append(part);
+        }
+
+        String body = "id: " + session.id + "\n" +
+                "filename: " + session.filename + "\n" +
+                "length: " + session.length + "\n" +
+                "part-size: " + session.partSize + "\n" +
+                "parts: " + session.partCount + "\n" +
+                "received: " + received + "\n" +
+                "received-bytes: " + receivedBytes + "\n" +
+                "received-ranges: " + ranges + "\n" +
+                "missing: " + missing + "\n";
+        Response response = Response.text(200, "OK", body);
+        response.head.header("X-Part-Size", session.partSize)
+                .header("X-Part-Count", session.partCount);
+        return response;
+    }
+
+    private Response commit(HTTPFileServer.HTTPRequest request, Session session) throws IOException {
+        int[] missing = session.missingParts();
+        if (missing.length > 0) {
+            StringBuilder list = new StringBuilder();
+            for (int i = 0; i < missing.length && i < 20; i++) {
+                list.append(i > 0 ? "," : "").append(missing[i]);
+            }
+            if (missing.length > 20) {
+                list.append(",...");
+            }
+            return Response.text(409, "Conflict", "Upload incomplete: missing parts " + list);
+        }
+
+        File dataFile = session.dataFile();
+        if (!dataFile.exists()) {
+            // A zero-length upload never had a part written
+            dataFile.createNewFile();
+        }
+        Map<String, byte[]> expected;
+        try {
+            expected = UploadStore.expectedDigests(request.headers);
+        } catch (HTTPRequestParser.HTTPParseException e) {
+            return notCommitted(session, e);
+        }
+        FileChannel data = session.data();
+        // Hashing a large file takes a while, so it runs on a disk thread and the response waits for it.
+        // Checked before the session is closed, so a client whose digest doesn't match can still fix its parts
+        UploadWriter writer = server.uploadStore.writer;
+        return Response.deferred(writer.offload(() -> server.uploadStore.verify(dataFile, expected))
+                .thenCompose(sha256 -> writer.sync(data).thenCompose(done -> writer.offload(() -> store(session, sha256))))
+                .handle((response, failure) -> {
+                    if (failure == null)
+                        return response;
+                    Throwable cause = Response.cause(failure);
+                    if (cause instanceof HTTPRequestParser.HTTPParseException) {
+                        return notCommitted(session, (HTTPRequestParser.HTTPParseException) cause);
+                    }
+                    throw new CompletionException(cause);
+                }));
+    }
+
+    /** Moves a verified session's data file into the upload store and forgets the session. */
+    private Response store(Session session, byte[] sha256) throws IOException {
+        if (sessions.remove(session.id) == null) {
+            return Response.error(404, "Upload Session Not Found");
+        }
+        session.close();
+        UploadStore.Result result = server.uploadStore.add(session.dataFile(), session.length, sha256,
+                session.filename);
+        session.stateFile().delete();
+        return HTTPFileServer.uploadedResponse(result);
+    }
+
+    private static Response notCommitted(Session session, HTTPRequestParser.HTTPParseException e) {
+        return Response.error(e.statusCode, e.getMessage())
+                .withLogMessage("Upload session " + session.id + " not committed: " + e.getMessage());
+    }
+
+    private Response abort(Session session) throws IOException {
+        sessions.remove(session.id);
+        session.close();
+        session.dataFile().delete();
+        session.stateFile().delete();
+        return Response.text(200, "OK", "Upload session aborted: " + session.id)
+                .withLogMessage("Upload session aborted: " + session.id);
+    }
+
+    private Route receivePart(HTTPFileServer.HTTPRequest request, Session session, String partNumber)
+            throws IOException {
+        int part;
+        try {
+            part = Integer.parseInt(partNumber);
+        } catch (NumberFormatException e) {
+            part = 0;
+        }
+        if (part < 1 || part > session.partCount) {
+            return Route.respond(Response.error(400, "Bad Request: part must be between 1 and " + session.partCount));
+        }
+
+        BodyDecoder decoder;
+        try {
+            decoder = BodyDecoder.forRequest(request);
+        } catch (HTTPRequestParser.HTTPParseException e) {
+            request.keepAlive = false;
+            return Route.respond(Response.error(e.statusCode, e.getMessage()));
+        }
+        long expected = session.partLength(part);
+        if (decoder.remaining() >= 0 && decoder.remaining() != expected) {
+            return Route.respond(Response.error(400, "Bad Request: part " + part + " must be " + expected + " bytes"));
+        }
+        FileChannel data = session.data();
+        UploadWriter writer = server.uploadStore.writer;
+        return Route.receive(decoder, new PartHandler(session, part, data,
+                writer.open(session.dataFile().toPath(), session.partOffset(part)), writer));
+    }
+
+    /** Writes one part at its offset in the session's data file. */
+    private static final class PartHandler implements BodyHandler {
+        private final UploadWriter writer;
+        private final Session session;
+        private final int part;
+        // The session's own channel, forced once the part's writes are done
+        private final FileChannel data;
+        private final UploadWriter.Sink sink;
+        private final long expected;
+        private long received;
+
+        PartHandler(Session session, int part, FileChannel data, UploadWriter.Sink sink, UploadWriter writer) {
+            this.writer = writer;
+            this.session = session;
+            this.part = part;
+            this.data = data;
+            this.sink = sink;
+            this.expected = session.partLength(part);
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            int count = buffer.remaining();
+            if (received + count > expected) {
+                // Too long; the rest is drained and discarded and the part rejected in finish
+                buffer.position(buffer.limit());
+            } else {
+                sink.write(buffer);
+            }
+            received += count;
+        }
+
+        @Override
+        public CompletableFuture<Void> ready() throws IOException {
+            return sink.ready();
+        }
+
+        @Override
+        public Response finish(boolean complete) {
+            if (received != expected) {
+                abort();
+                return Response.error(400, "Bad Request: part " + part + " must be " + expected + " bytes, got "
+                        + received);
+            }
+            return Response.deferred(sink.finish().thenCompose(done -> writer.offload(() -> {
+                data.force(false);
+                session.partReceived(part);
+                String body = "Part " + part + " of " + session.partCount + " received (" + received + " bytes)";
+                return Response.text(200, "OK", body);
+            })));
+        }
+
+        @Override
+        public void abort() {
+            // The part stays unmarked and is simply sent again
+            sink.abort();
+        }
+    }
+}
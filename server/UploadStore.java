@@ -0,0 +1,345 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content-addressed storage for uploads. Every upload is hashed with SHA-256 as
+ * it is written, checked against any digest the client sent (Digest,
+ * Content-Digest or Content-MD5) and kept once, as uploads/.store/<sha-256>.
+ * The upload_<timestamp> file a client gets back is a hard link to that object,
+ * so identical uploads share their bytes on disk. The filesystem's link count
+ * is the reference count: an object nothing links to any more is removed at
+ * startup. Since the names share one copy, uploaded files are meant to be
+ * treated as read-only. Where hard links aren't supported every upload is kept
+ * as its own file, without deduplication.
+ *
+ * The body is written to a temporary file in the store by the UploadWriter,
+ * which overlaps the disk writes with reading the socket and fsyncs as
+ * --upload-sync asks; only a complete file is ever renamed or linked to its
+ * upload name, so nothing sees a partial upload. Committing finishes on the
+ * writer's disk threads, so it never holds up the connection's thread.
+ *
+ * An upload whose name is already taken, by another upload in the same second,
+ * gets the next free _2, _3, ... suffix. A name is claimed by creating it, which
+ * fails if it exists, so concurrent uploads never collide and need no lock.
+ */
+class UploadStore {
+    static final String STORE_FOLDER = ".store";
+    private static final String TEMP_PREFIX = "incoming-";
+
+    private final File uploadDirectory;
+    private final File objectDirectory;
+    private final boolean linksSupported;
+    final UploadWriter writer;
+
+    final LongAdder stored = new LongAdder();
+    final LongAdder deduplicated = new LongAdder();
+    final LongAdder bytesDeduplicated = new LongAdder();
+    final LongAdder digestMismatches = new LongAdder();
+
+    /** Where an upload ended up. */
+    static final class Result {
+        final File file;
+        final long length;
+        final byte[] sha256;
+        // True if the same content had been uploaded before and this upload shares its copy
+        final boolean duplicate;
+
+        Result(File file, long length, byte[] sha256, boolean duplicate) {
+            this.file = file;
+            this.length = length;
+            this.sha256 = sha256;
+            this.duplicate = duplicate;
+        }
+    }
+
+    UploadStore(File uploadDirectory, UploadWriter writer) {
+        this.uploadDirectory = uploadDirectory;
+        this.writer = writer;
+        this.objectDirectory = new File(uploadDirectory, STORE_FOLDER);
+        objectDirectory.mkdirs();
+        linksSupported = probeLinks();
+        removeUnreferenced();
+    }
+
+    /**
+     * Digests a client asked to have checked, by algorithm name, from the Digest
+     * (RFC 3230), Content-Digest (RFC 9530) and Content-MD5 headers. Algorithms
+     * other than SHA-256 and MD5 are ignored.
+     */
+    static Map<String, byte[]> expectedDigests(Map<String, String> headers)
+            throws HTTPRequestParser.HTTPParseException {
+        Map<String, byte[]> expected = new HashMap<>();
+        try {
+            for (String header : new String[] { "digest", "content-digest" }) {
+                String value = headers.get(header);
+                if (value == null)
+                    continue;
+                for (String item : value.split(",")) {
+                    int equals = item.indexOf('=');
+                    if (equals < 0)
+                        continue;
+                    String algorithm = algorithmName(item.substring(0, equals).trim());
+                    String encoded = item.substring(equals + 1).trim();
+                    if (encoded.length() >= 2 && encoded.startsWith(":") && encoded.endsWith(":")) {
+                        encoded = encoded.substring(1, encoded.length() - 1); // RFC 9530 byte sequence
+                    }
+                    if (algorithm != null) {
+                        expected.put(algorithm, Base64.getDecoder().decode(encoded));
+                    }
+                }
+            }
+            String md5 = headers.get("content-md5");
+            if (md5 != null) {
+                expected.put("MD5", Base64.getDecoder().decode(md5.trim()));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new HTTPRequestParser.HTTPParseException(400, "Bad Request: Invalid digest header");
+        }
+        return expected;
+    }
+
+    private static String algorithmName(String token) {
+        switch (token.toLowerCase()) {
+            case "sha-256":
+                return "SHA-256";
+            case "md5":
+                return "MD5";
+            default:
+                return null;
+        }
+    }
+
+    /** The value of a Digest header naming this SHA-256. */
+    static String digestHeader(byte[] sha256) {
+        return "sha-256=" + Base64.getEncoder().encodeToString(sha256);
+    }
+
+    /**
+     * Starts an upload into a temporary file in the store; the caller writes the
+     * body to it and then commits or aborts it.
+     */
+    Upload begin(String originalFilename, Map<String, byte[]> expected) throws IOException {
+        File temp = File.createTempFile(TEMP_PREFIX, ".tmp", objectDirectory);
+        return new Upload(temp, originalFilename, expected);
+    }
+
+    /** An upload being written, hashed as its bytes go by. */
+    final class Upload {
+        private final File temp;
+        private final String originalFilename;
+        private final Map<String, byte[]> expected;
+        private final UploadWriter.Sink sink;
+        private final Hashes hashes;
+        private long length;
+
+        private Upload(File temp, String originalFilename, Map<String, byte[]> expected) throws IOException {
+            this.temp = temp;
+            this.originalFilename = originalFilename;
+            this.expected = expected;
+            this.hashes = new Hashes(expected.containsKey("MD5"));
+            this.sink = writer.open(temp.toPath());
+        }
+
+        void write(ByteBuffer data) throws IOException {
+            hashes.update(data.duplicate());
+            length += data.remaining();
+            sink.write(data);
+        }
+
+        /** Null if the upload can take more now; otherwise a future that completes once it can. */
+        CompletableFuture<Void> ready() throws IOException {
+            return sink.ready();
+        }
+
+        /**
+         * Verifies the upload and stores it once it is written out. On a digest
+         * mismatch the upload is thrown away and the future fails with an
+         * HTTPParseException.
+         */
+        CompletableFuture<Result> commit() {
+            byte[] sha256;
+            try {
+                sha256 = hashes.verify(expected);
+            } catch (HTTPRequestParser.HTTPParseException e) {
+                abort();
+                return CompletableFuture.failedFuture(e);
+            }
+            return sink.finish()
+                    .thenCompose(done -> writer.offload(() -> add(temp, length, sha256, originalFilename)))
+                    .whenComplete((result, failure) -> {
+                        if (failure != null) {
+                            temp.delete();
+                        }
+                    });
+        }
+
+        void abort() {
+            sink.abort().whenComplete((done, failure) -> temp.delete());
+        }
+    }
+
+    /**
+     * Hashes a file that is already complete, such as an assembled upload session,
+     * and verifies it against the expected digests. Returns its SHA-256.
+     */
+    byte[] verify(File file, Map<String, byte[]> expected) throws IOException {
+        Hashes hashes = new Hashes(expected.containsKey("MD5"));
+        ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                hashes.update(buffer);
+                buffer.clear();
+            }
+        }
+        return hashes.verify(expected);
+    }
+
+    /**
+     * Moves a complete upload with this SHA-256 into the store and gives it a new
+     * upload_<timestamp> name. The file is consumed either way.
+     */
+    Result add(File file, long length, byte[] sha256, String originalFilename) throws IOException {
+        String base = "upload_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        // Try to preserve original extension if available
+        String extension = "";
+        if (originalFilename != null && originalFilename.contains(".")) {
+            extension = originalFilename.substring(originalFilename.lastIndexOf("."));
+        }
+
+        if (!linksSupported) {
+            for (int attempt = 1;; attempt++) {
+                Path target = uploadDirectory.toPath().resolve(candidate(base, attempt, extension));
+                try {
+                    Files.createFile(target);
+                } catch (FileAlreadyExistsException e) {
+                    continue;
+                }
+                Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                stored.increment();
+                return new Result(target.toFile(), length, sha256, false);
+            }
+        }
+
+        Path object = objectDirectory.toPath().resolve(hex(sha256));
+        boolean duplicate = Files.exists(object);
+        if (duplicate) {
+            Files.delete(file.toPath());
+            deduplicated.increment();
+            bytesDeduplicated.add(length);
+        } else {
+            // Two identical uploads racing here both rename onto the object; either copy will do
+            Files.move(file.toPath(), object, StandardCopyOption.ATOMIC_MOVE);
+            stored.increment();
+        }
+        for (int attempt = 1;; attempt++) {
+            Path target = uploadDirectory.toPath().resolve(candidate(base, attempt, extension));
+            try {
+                Files.createLink(target, object);
+                return new Result(target.toFile(), length, sha256, duplicate);
+            } catch (FileAlreadyExistsException e) {
+                // Taken by another upload this second; try the next suffix
+            }
+        }
+    }
+
+    private static String candidate(String base, int attempt, String extension) {
+        return attempt == 1 ? base + extension : base + "_" + attempt + extension;
+    }
+
+    /** Checks once whether the uploads folder's filesystem can hard-link files. */
+    private boolean probeLinks() {
+        File probe = new File(objectDirectory, TEMP_PREFIX + "probe");
+        File link = new File(objectDirectory, TEMP_PREFIX + "probe-link");
+        try {
+            probe.delete();
+            link.delete();
+            probe.createNewFile();
+            Files.createLink(link.toPath(), probe.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("Hard links not supported in " + uploadDirectory + "; uploads won't be deduplicated");
+            return false;
+        } finally {
+            probe.delete();
+            link.delete();
+        }
+    }
+
+    /**
+     * Deletes temporary files left by uploads that were cut off by a crash, and
+     * objects no upload links to any more, i.e. whose link count is down to one.
+     */
+    private void removeUnreferenced() {
+        File[] files = objectDirectory.listFiles();
+        if (files == null)
+            return;
+        int removed = 0;
+        for (File file : files) {
+            try {
+                if (file.getName().startsWith(TEMP_PREFIX)
+                        || (linksSupported && (Integer) Files.getAttribute(file.toPath(), "unix:nlink") == 1)) {
+                    Files.delete(file.toPath());
+                    removed++;
+                }
+            } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+                // Without a link count an object is kept
+            }
+        }
+        if (removed > 0) {
+            System.out.println("Removed " + removed + " unreferenced files from " + objectDirectory);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /** SHA-256 of everything written, plus MD5 when the client sent one to check. */
+    private final class Hashes {
+        private final MessageDigest sha256;
+        private final MessageDigest md5;
+
+        Hashes(boolean withMd5) {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+                md5 = withMd5 ? MessageDigest.getInstance("MD5") : null;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void update(ByteBuffer data) {
+            if (md5 != null) {
+                md5.update(data.duplicate());
+            }
+            sha256.update(data);
+        }
+
+        /** Returns the SHA-256, or fails with a 400 if any expected digest doesn't match. */
+        byte[] verify(Map<String, byte[]> expected) throws HTTPRequestParser.HTTPParseException {
+            byte[] actualSha256 = sha256.digest();
+            for (Map.Entry<String, byte[]> digest : expected.entrySet()) {
+                byte[] actual = digest.getKey().equals("MD5") ? md5.digest() : actualSha256;
+                if (!MessageDigest.isEqual(actual, digest.getValue())) {
+                    digestMismatches.increment();
+                    throw new HTTPRequestParser.HTTPParseException(400,
+                            "Bad Request: " + digest.getKey() + " digest does not match the upload");
+                }
+            }
+            return actualSha256;
+        }
+    }
+}
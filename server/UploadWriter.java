@@ -0,0 +1,337 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The disk side of uploads. A connection hands each slice of body to a Sink,
+ * which copies it into a pooled direct buffer and, once the buffer is full,
+ * writes it with an AsynchronousFileChannel while the connection goes back to
+ * reading the socket. Once MAX_IN_FLIGHT buffers of an upload are being written
+ * the Sink reports that it isn't ready, and the connection stops reading until
+ * the oldest write is done, so a disk slower than the network holds the client
+ * back instead of filling memory. Nothing here waits on the caller's thread:
+ * finishing an upload returns a future for the remaining writes and the fsync.
+ *
+ * How durable a finished upload is before it is given its name is set with
+ * --upload-sync:
+ *   none      no fsync; the OS writes it back when it likes (the default)
+ *   complete  each upload is fsynced on its own as soon as it finishes
+ *   group     a group commit: uploads finishing within --upload-sync-delay ms
+ *             of the first one (or while the previous group is still being
+ *             synced) form a group, all of whose files are forced at once,
+ *             and none of them completes until the whole group is on disk.
+ *             Java has no call that fsyncs several files, so a group is
+ *             forced as concurrent fsyncs, which a journaling filesystem
+ *             folds into shared journal commits; many small uploads then
+ *             cost a few disk flushes between them instead of one each.
+ */
+class UploadWriter {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_IN_FLIGHT = 4;
+    private static final int DISK_THREADS = 8;
+    private static final int MAX_GROUP = 256;
+
+    enum Durability { NONE, COMPLETE, GROUP }
+
+    private final Durability durability;
+    private final long groupDelayNanos;
+    // Finished uploads waiting for the next group, under --upload-sync=group
+    private final BlockingQueue<SyncRequest> syncQueue = new LinkedBlockingQueue<>();
+    private final BufferPool buffers = new BufferPool(BUFFER_SIZE, 64);
+    // fsyncs, and other disk work too slow for a connection's thread
+    private final ExecutorService diskWork;
+
+    final LongAdder syncs = new LongAdder();
+    final LongAdder syncGroups = new LongAdder();
+    // Times an upload had to wait for the disk to catch up before reading more
+    final LongAdder writeStalls = new LongAdder();
+
+    UploadWriter(ServerOptions options) {
+        String policy = options.get("upload-sync", "none");
+        try {
+            durability = Durability.valueOf(policy.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown upload-sync policy: " + policy
+                    + " (expected none, complete or group)");
+        }
+        groupDelayNanos = TimeUnit.MILLISECONDS.toNanos(options.getLong("upload-sync-delay", 2));
+        diskWork = Executors.newFixedThreadPool(DISK_THREADS, task -> {
+            Thread thread = new Thread(task, "upload-disk");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (durability == Durability.GROUP) {
+            Thread syncer = new Thread(this::runGroupSync, "upload-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    /** Opens an existing, empty file for writing an upload into. */
+    Sink open(Path file) throws IOException {
+        return open(file, 0);
+    }
+
+    /** Opens an existing file for writing into from offset on, such as one part of an upload session. */
+    Sink open(Path file, long offset) throws IOException {
+        return new Sink(AsynchronousFileChannel.open(file, StandardOpenOption.WRITE), offset);
+    }
+
+    /** Disk work that may take a while, such as hashing or renaming a finished upload. */
+    interface DiskTask<T> {
+        T run() throws IOException;
+    }
+
+    /** Runs task on a disk thread. */
+    <T> CompletableFuture<T> offload(DiskTask<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        diskWork.execute(() -> {
+            try {
+                result.complete(task.run());
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Makes a file written some other way, such as an upload session's data file,
+     * as durable as the policy asks before it is stored.
+     */
+    CompletableFuture<Void> sync(FileChannel channel) {
+        return sync(channel::force);
+    }
+
+    private CompletableFuture<Void> sync(Force force) {
+        if (durability == Durability.NONE)
+            return CompletableFuture.completedFuture(null);
+        if (durability == Durability.GROUP) {
+            SyncRequest request = new SyncRequest(force);
+            syncQueue.add(request);
+            return request.done;
+        }
+        return offload(() -> {
+            force.force(true);
+            syncs.increment();
+            return null;
+        });
+    }
+
+    /** An fsync, with metadata, of whichever channel type is being synced. */
+    private interface Force {
+        void force(boolean metaData) throws IOException;
+    }
+
+    /** A finished upload waiting for its group to be synced. */
+    private static final class SyncRequest {
+        final Force force;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        SyncRequest(Force force) {
+            this.force = force;
+        }
+    }
+
+    /**
+     * Runs on the upload-sync thread: gathers a group, starting with the first
+     * upload to arrive and closing --upload-sync-delay later, forces it, and
+     * starts on the next. Uploads that finish while a group is being forced
+     * wait and join the next one, so a busier disk makes bigger groups.
+     */
+    private void runGroupSync() {
+        List<SyncRequest> group = new ArrayList<>();
+        while (true) {
+            try {
+                group.add(syncQueue.take());
+                long deadline = System.nanoTime() + groupDelayNanos;
+                while (group.size() < MAX_GROUP) {
+                    long wait = deadline - System.nanoTime();
+                    SyncRequest next = wait > 0 ? syncQueue.poll(wait, TimeUnit.NANOSECONDS) : syncQueue.poll();
+                    if (next == null)
+                        break;
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            syncGroup(group);
+            group.clear();
+        }
+    }
+
+    /** Forces every file in the group at once and completes them all when the last is on disk. */
+    private void syncGroup(List<SyncRequest> group) {
+        List<CompletableFuture<Void>> forced = new ArrayList<>(group.size());
+        for (SyncRequest request : group) {
+            forced.add(offload(() -> {
+                request.force.force(true);
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(forced.toArray(new CompletableFuture<?>[0])).handle((done, failure) -> null).join();
+        syncGroups.increment();
+        for (int i = 0; i < group.size(); i++) {
+            CompletableFuture<Void> done = group.get(i).done;
+            try {
+                forced.get(i).join();
+                syncs.increment();
+                done.complete(null);
+            } catch (CompletionException e) {
+                done.completeExceptionally(e.getCause());
+            }
+        }
+    }
+
+    /** One upload's file, written behind the connection that feeds it; used by one thread at a time. */
+    final class Sink {
+        private final AsynchronousFileChannel channel;
+        private final ArrayDeque<PendingWrite> inFlight = new ArrayDeque<>();
+        private ByteBuffer filling;
+        private long position;
+
+        private Sink(AsynchronousFileChannel channel, long offset) {
+            this.channel = channel;
+            this.position = offset;
+        }
+
+        /**
+         * Takes all of data; the caller may reuse data's buffer as soon as this
+         * returns. Fails if an earlier write to the file did.
+         */
+        void write(ByteBuffer data) throws IOException {
+            retire();
+            while (data.hasRemaining()) {
+                if (filling == null) {
+                    filling = buffers.acquire();
+                }
+                if (data.remaining() <= filling.remaining()) {
+                    filling.put(data);
+                } else {
+                    ByteBuffer slice = data.duplicate();
+                    slice.limit(slice.position() + filling.remaining());
+                    filling.put(slice);
+                    data.position(slice.position());
+                }
+                if (!filling.hasRemaining()) {
+                    submit();
+                }
+            }
+        }
+
+        /** Null while fewer than MAX_IN_FLIGHT writes are running; otherwise the oldest of them. */
+        CompletableFuture<Void> ready() throws IOException {
+            retire();
+            if (inFlight.size() < MAX_IN_FLIGHT)
+                return null;
+            writeStalls.increment();
+            return inFlight.peek().done;
+        }
+
+        private void submit() {
+            filling.flip();
+            PendingWrite write = new PendingWrite(filling, position);
+            position += filling.remaining();
+            filling = null;
+            inFlight.add(write);
+            write.start();
+        }
+
+        /** Hands back the buffers of the writes that are done, oldest first; fails if one of them failed. */
+        private void retire() throws IOException {
+            while (!inFlight.isEmpty() && inFlight.peek().done.isDone()) {
+                PendingWrite write = inFlight.poll();
+                buffers.release(write.buffer);
+                if (write.done.isCompletedExceptionally()) {
+                    try {
+                        write.done.join();
+                    } catch (CompletionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes out what is left and applies the durability policy; the future
+         * completes once the file is on disk as the policy asks, and closed.
+         */
+        CompletableFuture<Void> finish() {
+            if (filling != null && filling.position() > 0) {
+                submit();
+            }
+            return written().thenCompose(done -> sync(channel::force)).whenComplete((done, failure) -> close());
+        }
+
+        /** Closes the file once no write is using its buffers; the caller deletes it when the future completes. */
+        CompletableFuture<Void> abort() {
+            return written().whenComplete((done, failure) -> close());
+        }
+
+        private CompletableFuture<Void> written() {
+            CompletableFuture<?>[] writes = new CompletableFuture<?>[inFlight.size()];
+            int i = 0;
+            for (PendingWrite write : inFlight) {
+                writes[i++] = write.done;
+            }
+            return CompletableFuture.allOf(writes);
+        }
+
+        private void close() {
+            for (PendingWrite write : inFlight) {
+                buffers.release(write.buffer);
+            }
+            inFlight.clear();
+            buffers.release(filling);
+            filling = null;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing was left to write
+            }
+        }
+
+        /** One buffer on its way to the file, resubmitting whatever a short write leaves over. */
+        private final class PendingWrite implements CompletionHandler<Integer, Void> {
+            final ByteBuffer buffer;
+            final long position;
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+
+            PendingWrite(ByteBuffer buffer, long position) {
+                this.buffer = buffer;
+                this.position = position;
+            }
+
+            void start() {
+                try {
+                    channel.write(buffer, position + buffer.position(), null, this);
+                } catch (RuntimeException e) {
+                    done.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void completed(Integer written, Void attachment) {
+                if (buffer.hasRemaining()) {
+                    start();
+                } else {
+                    done.complete(null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable failure, Void attachment) {
+                done.completeExceptionally(failure);
+            }
+        }
+    }
+}